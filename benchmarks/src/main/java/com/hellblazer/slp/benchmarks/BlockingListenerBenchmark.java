@@ -0,0 +1,112 @@
+/** (C) Copyright 2014 Chiral Behaviors, All Rights Reserved
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.hellblazer.slp.benchmarks;
+
+import java.util.UUID;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicReference;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import com.fasterxml.uuid.Generators;
+import com.hellblazer.slp.ServiceEvent;
+import com.hellblazer.slp.ServiceListener;
+import com.hellblazer.slp.ServiceScope;
+import com.hellblazer.slp.ServiceURL;
+import com.hellblazer.slp.local.LocalScope;
+import com.hellblazer.slp.local.NotificationMode;
+
+/**
+ * The time for a registration to reach every listener of a scope, when each
+ * listener blocks - as if on I/O - for a millisecond per notification. A fixed
+ * pool delivers to at most as many listeners at once as it has threads, while
+ * virtual threads deliver to all the listeners at once. The virtual thread
+ * mode requires Java 21 or later, and fails its setup on earlier JVMs.
+ *
+ * @author hhildebrand
+ *
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class BlockingListenerBenchmark {
+    private static final String                   QUERY   = "("
+                                                            + ServiceScope.SERVICE_TYPE
+                                                            + "=service:http)";
+
+    private ExecutorService                       executor;
+    private final AtomicReference<CountDownLatch> latch   = new AtomicReference<CountDownLatch>();
+    @Param({ "100", "1000" })
+    private int                                   listeners;
+    @Param({ "FIXED_POOL", "VIRTUAL_THREADS" })
+    private NotificationMode                      mode;
+    private LocalScope                            scope;
+    @Param({ "16" })
+    private int                                   threads;
+    private ServiceURL                            url;
+
+    @Benchmark
+    public void fanOut() throws Exception {
+        CountDownLatch done = new CountDownLatch(listeners);
+        latch.set(done);
+        UUID registration = scope.register(url, null);
+        done.await();
+        done = new CountDownLatch(listeners);
+        latch.set(done);
+        scope.unregister(registration);
+        done.await();
+    }
+
+    @Setup
+    public void setup() throws Exception {
+        executor = mode.newExecutor(threads);
+        scope = new LocalScope(executor, Generators.randomBasedGenerator());
+        url = new ServiceURL("service:http://foo.bar:80/");
+        for (int i = 0; i < listeners; i++) {
+            scope.addServiceListener(new ServiceListener() {
+                @Override
+                public void serviceChanged(ServiceEvent event) {
+                    try {
+                        Thread.sleep(1);
+                    } catch (InterruptedException e) {
+                        return;
+                    }
+                    latch.get().countDown();
+                }
+            }, QUERY);
+        }
+    }
+
+    @TearDown
+    public void tearDown() {
+        executor.shutdownNow();
+    }
+}
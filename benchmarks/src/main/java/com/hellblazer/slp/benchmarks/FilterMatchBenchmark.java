@@ -0,0 +1,105 @@
+/** (C) Copyright 2014 Chiral Behaviors, All Rights Reserved
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.hellblazer.slp.benchmarks;
+
+import java.util.HashMap;
+import java.util.Map;
+import java.util.UUID;
+import java.util.concurrent.Executor;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import com.fasterxml.uuid.Generators;
+import com.hellblazer.slp.CompiledFilter;
+import com.hellblazer.slp.Filter;
+import com.hellblazer.slp.PropertySnapshot;
+import com.hellblazer.slp.ServiceReference;
+import com.hellblazer.slp.ServiceURL;
+import com.hellblazer.slp.local.LocalScope;
+
+/**
+ * The cost of matching a filter against the properties of a service. Run with
+ * <code>-prof gc</code> to observe the allocation per match: matching a
+ * service reference or a property snapshot allocates nothing, while matching
+ * a plain Map first copies it into a case insensitive Map.
+ *
+ * @author hhildebrand
+ *
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class FilterMatchBenchmark {
+    private CompiledFilter      compiled;
+    private Filter              filter;
+    private Map<String, String> map;
+    private ServiceReference    reference;
+    private PropertySnapshot    snapshot;
+
+    @Benchmark
+    public boolean compiledMatchReference() {
+        return compiled.match(reference);
+    }
+
+    @Benchmark
+    public boolean compiledMatchSnapshot() {
+        return compiled.match(snapshot);
+    }
+
+    @Benchmark
+    public boolean filterMatchMap() {
+        return filter.match(map);
+    }
+
+    @Benchmark
+    public boolean filterMatchReference() {
+        return filter.match(reference);
+    }
+
+    @Setup
+    public void setup() throws Exception {
+        map = new HashMap<String, String>();
+        map.put("Zone", "us-east");
+        map.put("Tier", "web");
+        map.put("Version", "2.4");
+        map.put("Owner", "ops");
+        LocalScope scope = new LocalScope(new Executor() {
+            @Override
+            public void execute(Runnable command) {
+                command.run();
+            }
+        }, Generators.randomBasedGenerator());
+        UUID registration = scope.register(new ServiceURL(
+                                                          "service:http://foo.bar:80/"),
+                                           map);
+        reference = scope.getReference(registration);
+        snapshot = new PropertySnapshot(map, 0);
+        filter = new Filter("(&(zone=us-east) (tier=web) (version>=2) (owner=*))");
+        compiled = filter.compile();
+    }
+}
@@ -0,0 +1,105 @@
+/** (C) Copyright 2014 Chiral Behaviors, All Rights Reserved
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.hellblazer.slp.benchmarks;
+
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.UUID;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import com.hellblazer.slp.CompiledFilter;
+import com.hellblazer.slp.Filter;
+import com.hellblazer.slp.ServiceReference;
+import com.hellblazer.slp.ServiceURL;
+import com.hellblazer.slp.local.LocalScope;
+
+/**
+ * The cost of matching a service against each of the operators of the filter
+ * language, interpreted and compiled. The numeric operator is an ordering
+ * assertion on an attribute compiled as numeric.
+ *
+ * @author hhildebrand
+ *
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class FilterOperatorBenchmark {
+    private static final Map<String, String> FILTERS = new HashMap<String, String>();
+
+    static {
+        FILTERS.put("equal", "(zone=us-east)");
+        FILTERS.put("approx", "(owner~=O P S)");
+        FILTERS.put("greater", "(version>=2.0)");
+        FILTERS.put("less", "(version<=3.0)");
+        FILTERS.put("numeric", "(port>=8000)");
+        FILTERS.put("present", "(tier=*)");
+        FILTERS.put("substring", "(name=web-*-east*)");
+        FILTERS.put("not", "(!(zone=eu-west))");
+        FILTERS.put("and", "(&(zone=us-east) (tier=web))");
+        FILTERS.put("or", "(|(zone=eu-west) (tier=web))");
+    }
+
+    private CompiledFilter                   compiled;
+    private Filter                           filter;
+    @Param({ "equal", "approx", "greater", "less", "numeric", "present",
+            "substring", "not", "and", "or" })
+    private String                           operator;
+    private ServiceReference                 reference;
+
+    @Benchmark
+    public boolean compiled() {
+        return compiled.match(reference);
+    }
+
+    @Benchmark
+    public boolean interpreted() {
+        return filter.match(reference);
+    }
+
+    @Setup
+    public void setup() throws Exception {
+        Map<String, String> properties = new HashMap<String, String>();
+        properties.put("name", "web-01-east-1");
+        properties.put("zone", "us-east");
+        properties.put("tier", "web");
+        properties.put("version", "2.4");
+        properties.put("owner", "ops");
+        properties.put("port", "8080");
+        LocalScope scope = Scopes.empty();
+        UUID registration = scope.register(new ServiceURL(
+                                                          "service:http://foo.bar:80/"),
+                                           properties);
+        reference = scope.getReference(registration);
+        filter = new Filter(FILTERS.get(operator));
+        compiled = filter.compile(Collections.singleton("port"));
+    }
+}
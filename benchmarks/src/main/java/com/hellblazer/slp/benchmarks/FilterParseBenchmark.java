@@ -0,0 +1,79 @@
+/** (C) Copyright 2014 Chiral Behaviors, All Rights Reserved
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.hellblazer.slp.benchmarks;
+
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import com.hellblazer.slp.CompiledFilter;
+import com.hellblazer.slp.Filter;
+
+/**
+ * The cost of parsing, and of parsing and compiling, filters of increasing
+ * complexity.
+ *
+ * @author hhildebrand
+ *
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class FilterParseBenchmark {
+    private static final Map<String, String> FILTERS = new HashMap<String, String>();
+
+    static {
+        FILTERS.put("equality", "(zone=us-east)");
+        FILTERS.put("substring", "(name=web-*-east*)");
+        FILTERS.put("conjunction",
+                    "(&(zone=us-east) (tier=web) (version>=2) (owner=*))");
+        FILTERS.put("nested",
+                    "(|(&(zone=us-east) (!(tier=db)) (version>=2)) (&(zone=eu-west) (|(owner=ops) (owner=dev)) (name~=Web-Server)))");
+    }
+
+    @Param({ "equality", "substring", "conjunction", "nested" })
+    private String                           shape;
+    private String                           text;
+
+    @Benchmark
+    public CompiledFilter compile() throws Exception {
+        return new Filter(text).compile();
+    }
+
+    @Benchmark
+    public Filter parse() throws Exception {
+        return new Filter(text);
+    }
+
+    @Setup
+    public void setup() {
+        text = FILTERS.get(shape);
+    }
+}
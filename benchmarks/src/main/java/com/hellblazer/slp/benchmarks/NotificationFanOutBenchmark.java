@@ -0,0 +1,92 @@
+/** (C) Copyright 2014 Chiral Behaviors, All Rights Reserved
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.hellblazer.slp.benchmarks;
+
+import java.util.UUID;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import com.hellblazer.slp.ServiceEvent;
+import com.hellblazer.slp.ServiceListener;
+import com.hellblazer.slp.ServiceScope;
+import com.hellblazer.slp.ServiceURL;
+import com.hellblazer.slp.local.LocalScope;
+
+/**
+ * The cost of notifying the listeners of a scope of a registration and its
+ * unregistration, as the number of listeners grows. Each listener is a
+ * distinct instance, so each is notified through its own mailbox. When every
+ * listener matches, each change is delivered to all the listeners; when only
+ * one matches, each listener queries the name of a distinct service, and the
+ * listener index narrows the listeners to evaluate for a change to the one
+ * whose query it matches.
+ *
+ * @author hhildebrand
+ *
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class NotificationFanOutBenchmark {
+    private final AtomicLong delivered = new AtomicLong();
+    @Param({ "1", "100", "10000" })
+    private int              listeners;
+    @Param({ "all", "one" })
+    private String           matching;
+    private LocalScope       scope;
+    private ServiceURL       url;
+
+    @Benchmark
+    public long fanOut() {
+        UUID registration = scope.register(url, Scopes.properties(0));
+        scope.unregister(registration);
+        return delivered.get();
+    }
+
+    @Setup
+    public void setup() throws Exception {
+        scope = Scopes.empty();
+        url = Scopes.url(0);
+        boolean all = "all".equals(matching);
+        for (int i = 0; i < listeners; i++) {
+            // a listener instance per registration, each with its own mailbox
+            ServiceListener listener = new ServiceListener() {
+                @Override
+                public void serviceChanged(ServiceEvent event) {
+                    delivered.incrementAndGet();
+                }
+            };
+            scope.addServiceListener(listener,
+                                     all ? "(" + ServiceScope.SERVICE_TYPE
+                                           + "=service:type-0)"
+                                        : "(name=service-" + i + ")");
+        }
+    }
+}
@@ -0,0 +1,119 @@
+/** (C) Copyright 2014 Chiral Behaviors, All Rights Reserved
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.hellblazer.slp.benchmarks;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import com.fasterxml.uuid.Generators;
+import com.hellblazer.slp.ServiceReference;
+import com.hellblazer.slp.ServiceDescription;
+import com.hellblazer.slp.ServiceURL;
+import com.hellblazer.slp.local.LocalScope;
+
+/**
+ * The scaling of a query which no index can narrow - a substring match over
+ * every service of the scope - with the number of cores evaluating it. The
+ * query runs in a fork/join pool of the given parallelism, so the parallel
+ * scan of the scope is split across that many workers; the sequential
+ * benchmark is the single threaded baseline.
+ *
+ * @author hhildebrand
+ *
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class ParallelScanBenchmark {
+    private static final String QUERY = "(name=*-7*)";
+
+    @Param({ "1", "2", "4", "8" })
+    private int                 parallelism;
+    private ForkJoinPool        pool;
+    private LocalScope          scope;
+    @Param({ "100000" })
+    private int                 services;
+
+    @Benchmark
+    public List<ServiceReference> parallel() throws Exception {
+        return pool.submit(new Callable<List<ServiceReference>>() {
+            @Override
+            public List<ServiceReference> call() throws Exception {
+                return scope.getServiceReferences(null, QUERY);
+            }
+        }).get();
+    }
+
+    @Benchmark
+    public List<ServiceReference> sequential() throws Exception {
+        scope.setParallelScanThreshold(Integer.MAX_VALUE);
+        try {
+            return scope.getServiceReferences(null, QUERY);
+        } finally {
+            scope.setParallelScanThreshold(LocalScope.DEFAULT_PARALLEL_SCAN_THRESHOLD);
+        }
+    }
+
+    @Setup
+    public void setup() throws Exception {
+        pool = new ForkJoinPool(parallelism);
+        scope = new LocalScope(new Executor() {
+            @Override
+            public void execute(Runnable command) {
+                command.run();
+            }
+        }, Generators.randomBasedGenerator());
+        List<ServiceDescription> registrations = new ArrayList<ServiceDescription>();
+        for (int i = 0; i < services; i++) {
+            Map<String, String> properties = new HashMap<String, String>();
+            properties.put("name", "service-" + i);
+            properties.put("zone", "zone-" + i % 16);
+            registrations.add(new ServiceDescription(
+                                                     new ServiceURL(
+                                                                    "service:http://host-"
+                                                                            + i
+                                                                            + ":80/"),
+                                                     properties));
+        }
+        scope.registerAll(registrations);
+    }
+
+    @TearDown
+    public void tearDown() {
+        pool.shutdown();
+    }
+}
@@ -0,0 +1,85 @@
+/** (C) Copyright 2014 Chiral Behaviors, All Rights Reserved
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.hellblazer.slp.benchmarks;
+
+import java.util.List;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import com.hellblazer.slp.ServiceReference;
+import com.hellblazer.slp.local.LocalScope;
+
+/**
+ * The cost of the queries of a scope as the number of services grows: the
+ * selection of a service of a type, a lookup narrowed by the attribute index
+ * to a single service, a lookup of all the services of one type, and a
+ * lookup which no index can narrow.
+ *
+ * @author hhildebrand
+ *
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(value = 1, jvmArgsAppend = "-Xmx4g")
+public class QueryBenchmark {
+    private LocalScope scope;
+    @Param({ "1000", "100000", "1000000" })
+    private int        services;
+
+    @Benchmark
+    public List<ServiceReference> attribute() throws Exception {
+        int i = ThreadLocalRandom.current().nextInt(services);
+        return scope.getServiceReferences("service:type-" + i % Scopes.TYPES,
+                                          "(name=service-" + i + ")");
+    }
+
+    @Benchmark
+    public ServiceReference select() throws Exception {
+        return scope.getServiceReference("service:type-"
+                                         + ThreadLocalRandom.current().nextInt(Scopes.TYPES));
+    }
+
+    @Setup
+    public void setup() throws Exception {
+        scope = Scopes.populated(services);
+    }
+
+    @Benchmark
+    public List<ServiceReference> type() throws Exception {
+        return scope.getServiceReferences("service:type-"
+                                                  + ThreadLocalRandom.current().nextInt(Scopes.TYPES),
+                                          null);
+    }
+
+    @Benchmark
+    public List<ServiceReference> unnarrowed() throws Exception {
+        return scope.getServiceReferences(null, "(name=*-7*)");
+    }
+}
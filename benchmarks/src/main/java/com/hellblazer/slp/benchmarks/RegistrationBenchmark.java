@@ -0,0 +1,84 @@
+/** (C) Copyright 2014 Chiral Behaviors, All Rights Reserved
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.hellblazer.slp.benchmarks;
+
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.UUID;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import com.hellblazer.slp.ServiceURL;
+import com.hellblazer.slp.local.LocalScope;
+
+/**
+ * The cost of the mutations of a scope - register, setProperties and
+ * unregister - as the number of services in the scope grows. A registration
+ * is measured together with its unregistration, so the size of the scope is
+ * constant across the iterations.
+ *
+ * @author hhildebrand
+ *
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(value = 1, jvmArgsAppend = "-Xmx4g")
+public class RegistrationBenchmark {
+    private Map<String, String> properties;
+    private UUID[]              registrations;
+    @Param({ "1000", "100000", "1000000" })
+    private int                 services;
+    private LocalScope          scope;
+    private ServiceURL          url;
+
+    @Benchmark
+    public void registerUnregister() {
+        scope.unregister(scope.register(url, properties));
+    }
+
+    @Setup
+    public void setup() throws Exception {
+        scope = Scopes.empty();
+        List<UUID> registered = Scopes.register(scope, 0, services);
+        registrations = registered.toArray(new UUID[registered.size()]);
+        url = Scopes.url(services);
+        properties = Scopes.properties(services);
+    }
+
+    @Benchmark
+    public void setProperties() {
+        ThreadLocalRandom random = ThreadLocalRandom.current();
+        Map<String, String> updated = new HashMap<String, String>(properties);
+        updated.put("load", Integer.toString(random.nextInt(100)));
+        scope.setProperties(registrations[random.nextInt(registrations.length)],
+                            updated);
+    }
+}
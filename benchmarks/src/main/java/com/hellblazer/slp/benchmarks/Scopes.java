@@ -0,0 +1,92 @@
+/** (C) Copyright 2014 Chiral Behaviors, All Rights Reserved
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.hellblazer.slp.benchmarks;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.UUID;
+import java.util.concurrent.Executor;
+
+import com.fasterxml.uuid.Generators;
+import com.hellblazer.slp.ServiceDescription;
+import com.hellblazer.slp.ServiceURL;
+import com.hellblazer.slp.local.LocalScope;
+
+/**
+ * The scopes shared by the benchmarks of the local scope. Notifications are
+ * delivered on the calling thread, so a benchmark measures the cost of
+ * notifying the listeners along with the change itself.
+ *
+ * @author hhildebrand
+ *
+ */
+class Scopes {
+    /**
+     * The number of service types, and of zones, among the services of a
+     * populated scope
+     */
+    static final int      TYPES       = 16;
+
+    static final Executor SAME_THREAD = new Executor() {
+                                          @Override
+                                          public void execute(Runnable command) {
+                                              command.run();
+                                          }
+                                      };
+
+    /**
+     * Answer a new, empty scope
+     */
+    static LocalScope empty() {
+        return new LocalScope(SAME_THREAD, Generators.randomBasedGenerator());
+    }
+
+    /**
+     * Answer a new scope holding the services. Service i is of the type
+     * 'service:type-(i % TYPES)', with the properties name=service-i and
+     * zone=zone-(i % TYPES).
+     */
+    static LocalScope populated(int services) throws Exception {
+        LocalScope scope = empty();
+        register(scope, 0, services);
+        return scope;
+    }
+
+    /**
+     * Register the services [from, to) with the scope
+     */
+    static List<UUID> register(LocalScope scope, int from, int to)
+                                                              throws Exception {
+        List<ServiceDescription> registrations = new ArrayList<ServiceDescription>();
+        for (int i = from; i < to; i++) {
+            registrations.add(new ServiceDescription(url(i), properties(i)));
+        }
+        return scope.registerAll(registrations);
+    }
+
+    static Map<String, String> properties(int i) {
+        Map<String, String> properties = new HashMap<String, String>();
+        properties.put("name", "service-" + i);
+        properties.put("zone", "zone-" + i % TYPES);
+        return properties;
+    }
+
+    static ServiceURL url(int i) throws Exception {
+        return new ServiceURL("service:type-" + i % TYPES + "://host-" + i
+                              + ":80/");
+    }
+}
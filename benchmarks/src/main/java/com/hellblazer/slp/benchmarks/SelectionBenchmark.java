@@ -0,0 +1,88 @@
+/** (C) Copyright 2014 Chiral Behaviors, All Rights Reserved
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.hellblazer.slp.benchmarks;
+
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import com.hellblazer.slp.ServiceReference;
+import com.hellblazer.slp.ServiceURL;
+import com.hellblazer.slp.local.LocalScope;
+
+/**
+ * The cost of building up the services of a single type one registration at
+ * a time, as the number of services grows, with and without a selection of a
+ * service of the type after each registration. In either case the cost of a
+ * registration should not depend on the number of services of its type.
+ *
+ * @author hhildebrand
+ *
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.SingleShotTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 5)
+@Measurement(iterations = 10)
+@Fork(value = 1, jvmArgsAppend = "-Xmx4g")
+public class SelectionBenchmark {
+    private Map<String, String>[] properties;
+    @Param({ "1000", "10000", "100000" })
+    private int                   services;
+    private ServiceURL[]          urls;
+
+    @Benchmark
+    public LocalScope registerOneAtATime() {
+        LocalScope scope = Scopes.empty();
+        for (int i = 0; i < services; i++) {
+            scope.register(urls[i], properties[i]);
+        }
+        return scope;
+    }
+
+    @Benchmark
+    public ServiceReference registerAndSelect() throws Exception {
+        LocalScope scope = Scopes.empty();
+        ServiceReference selected = null;
+        for (int i = 0; i < services; i++) {
+            scope.register(urls[i], properties[i]);
+            selected = scope.getServiceReference("service:type-0");
+        }
+        return selected;
+    }
+
+    @SuppressWarnings({ "rawtypes", "unchecked" })
+    @Setup
+    public void setup() throws Exception {
+        urls = new ServiceURL[services];
+        properties = new Map[services];
+        for (int i = 0; i < services; i++) {
+            // every service is of the type service:type-0
+            urls[i] = Scopes.url(i * Scopes.TYPES);
+            properties[i] = Scopes.properties(i * Scopes.TYPES);
+        }
+    }
+}
@@ -0,0 +1,38 @@
+/** (C) Copyright 2014 Chiral Behaviors, All Rights Reserved
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.hellblazer.slp;
+
+import java.util.Map;
+
+/**
+ * A Map of properties whose keys have been normalized to lower case, so that
+ * attribute names may be looked up case insensitively without allocation.
+ * Filters match attribute maps directly, rather than first copying the
+ * properties into a case insensitive Map.
+ *
+ * @author hhildebrand
+ *
+ */
+public interface AttributeMap extends Map<String, String> {
+    /**
+     * Answer the value of the attribute
+     *
+     * @param name
+     *            - the name of the attribute, in lower case
+     * @return the value of the attribute, or null if the attribute is not
+     *         present
+     */
+    String getAttribute(String name);
+}
@@ -0,0 +1,46 @@
+/** (C) Copyright 2014 Chiral Behaviors, All Rights Reserved
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.hellblazer.slp;
+
+import java.util.List;
+
+/**
+ * A service listener which receives its lifecycle events in batches. Scopes
+ * which support batched delivery call {@link #serviceChanged(List)} with the
+ * events pending for the listener, in order. Within a batch, the events of a
+ * single service registration are coalesced:
+ *
+ * <pre>
+ *   REGISTERED, MODIFIED     -&gt; REGISTERED
+ *   MODIFIED, MODIFIED       -&gt; MODIFIED
+ *   MODIFIED, UNREGISTERED   -&gt; UNREGISTERED
+ *   REGISTERED, UNREGISTERED -&gt; no event
+ * </pre>
+ *
+ * Scopes which do not support batched delivery call
+ * {@link ServiceListener#serviceChanged(ServiceEvent)} for each event.
+ *
+ * @author hhildebrand
+ *
+ */
+public interface BatchServiceListener extends ServiceListener {
+    /**
+     * Receive a batch of lifecycle events
+     *
+     * @param events
+     *            - the non empty, ordered list of events
+     */
+    void serviceChanged(List<ServiceEvent> events);
+}
@@ -0,0 +1,454 @@
+/** (C) Copyright 2014 Chiral Behaviors, All Rights Reserved
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.hellblazer.slp;
+
+import java.util.Collections;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * An immutable predicate tree compiled from a {@link Filter}. The operands of
+ * each assertion are parsed once, when the filter is compiled, and the
+ * comparison is specialized per assertion, so that evaluation does not walk
+ * the comparison dispatch of the filter on every match. A compiled filter
+ * matches exactly the same Maps as the filter it was compiled from, unless it
+ * was compiled with numeric attributes, whose ordering assertions are then
+ * compared numerically.
+ *
+ * <p>
+ * Compiled filters are obtained from {@link Filter#compile()} and are safe for
+ * concurrent use.
+ *
+ * @author hhildebrand
+ *
+ */
+abstract public class CompiledFilter {
+
+    private static class And extends CompiledFilter {
+        private final CompiledFilter[] operands;
+
+        And(Filter filter, CompiledFilter[] operands) {
+            super(filter);
+            this.operands = operands;
+        }
+
+        @Override
+        protected boolean evaluate(Map<String, String> properties,
+                                   boolean ignoreCase) {
+            for (CompiledFilter operand : operands) {
+                if (!operand.evaluate(properties, ignoreCase)) {
+                    return false;
+                }
+            }
+            return true;
+        }
+    }
+
+    private static class Approx extends Assertion {
+        private final String operand;
+
+        Approx(Filter filter) {
+            super(filter);
+            operand = Filter.approxString((String) filter.value);
+        }
+
+        @Override
+        protected boolean compare(String value) {
+            return Filter.approxString(value).equalsIgnoreCase(operand);
+        }
+    }
+
+    /**
+     * An assertion on the value of an attribute
+     */
+    private static abstract class Assertion extends CompiledFilter {
+        protected final String attr;
+        protected final String name;
+
+        Assertion(Filter filter) {
+            super(filter);
+            attr = filter.attr;
+            name = attr.toLowerCase();
+        }
+
+        @Override
+        protected boolean evaluate(Map<String, String> properties,
+                                   boolean ignoreCase) {
+            if (properties == null) {
+                return false;
+            }
+            String value = ignoreCase ? ((AttributeMap) properties).getAttribute(name)
+                                     : properties.get(attr);
+            return value != null && compare(value);
+        }
+
+        protected abstract boolean compare(String value);
+    }
+
+    private static class Equal extends Ordering {
+        Equal(Filter filter) {
+            super(filter);
+        }
+
+        @Override
+        protected boolean compare(String value) {
+            return value.equals(operand);
+        }
+    }
+
+    private static class Greater extends Ordering {
+        Greater(Filter filter) {
+            super(filter);
+        }
+
+        @Override
+        protected boolean compare(String value) {
+            return value.compareTo(operand) >= 0;
+        }
+    }
+
+    private static class Less extends Ordering {
+        Less(Filter filter) {
+            super(filter);
+        }
+
+        @Override
+        protected boolean compare(String value) {
+            return value.compareTo(operand) <= 0;
+        }
+    }
+
+    private static class Not extends CompiledFilter {
+        private final CompiledFilter operand;
+
+        Not(Filter filter, CompiledFilter operand) {
+            super(filter);
+            this.operand = operand;
+        }
+
+        @Override
+        protected boolean evaluate(Map<String, String> properties,
+                                   boolean ignoreCase) {
+            return !operand.evaluate(properties, ignoreCase);
+        }
+    }
+
+    /**
+     * A numeric ordering assertion
+     */
+    private static abstract class NumericOrdering extends Assertion {
+        protected final double operand;
+
+        NumericOrdering(Filter filter) {
+            super(filter);
+            operand = Double.parseDouble((String) filter.value);
+        }
+
+        @Override
+        protected boolean compare(String value) {
+            double number;
+            try {
+                number = Double.parseDouble(value);
+            } catch (NumberFormatException e) {
+                return false;
+            }
+            return compare(number);
+        }
+
+        protected abstract boolean compare(double value);
+    }
+
+    private static class NumericGreater extends NumericOrdering {
+        NumericGreater(Filter filter) {
+            super(filter);
+        }
+
+        @Override
+        protected boolean compare(double value) {
+            return value >= operand;
+        }
+    }
+
+    private static class NumericLess extends NumericOrdering {
+        NumericLess(Filter filter) {
+            super(filter);
+        }
+
+        @Override
+        protected boolean compare(double value) {
+            return value <= operand;
+        }
+    }
+
+    private static class Or extends CompiledFilter {
+        private final CompiledFilter[] operands;
+
+        Or(Filter filter, CompiledFilter[] operands) {
+            super(filter);
+            this.operands = operands;
+        }
+
+        @Override
+        protected boolean evaluate(Map<String, String> properties,
+                                   boolean ignoreCase) {
+            for (CompiledFilter operand : operands) {
+                if (operand.evaluate(properties, ignoreCase)) {
+                    return true;
+                }
+            }
+            return false;
+        }
+    }
+
+    /**
+     * The equality and ordering assertions
+     */
+    private static abstract class Ordering extends Assertion {
+        protected final String operand;
+
+        Ordering(Filter filter) {
+            super(filter);
+            operand = (String) filter.value;
+        }
+    }
+
+    private static class Present extends CompiledFilter {
+        private final String attr;
+        private final String name;
+
+        Present(Filter filter) {
+            super(filter);
+            attr = filter.attr;
+            name = attr.toLowerCase();
+        }
+
+        @Override
+        protected boolean evaluate(Map<String, String> properties,
+                                   boolean ignoreCase) {
+            if (properties == null) {
+                return false;
+            }
+            return (ignoreCase ? ((AttributeMap) properties).getAttribute(name)
+                              : properties.get(attr)) != null;
+        }
+    }
+
+    private static class Substring extends Assertion {
+        private final String[] substrings;
+
+        Substring(Filter filter) {
+            super(filter);
+            substrings = (String[]) filter.value;
+        }
+
+        @Override
+        protected boolean compare(String string) {
+            int pos = 0;
+            int size = substrings.length;
+
+            for (int i = 0; i < size; i++) {
+                String substr = substrings[i];
+
+                if (i + 1 < size) /* if this is not that last substr */{
+                    if (substr == null) /* * */{
+                        String substr2 = substrings[i + 1];
+
+                        if (substr2 == null) {
+                            continue; /* ignore first star */
+                        }
+                        /* *xxx */
+                        int index = string.indexOf(substr2, pos);
+                        if (index == -1) {
+                            return false;
+                        }
+
+                        pos = index + substr2.length();
+                        if (i + 2 < size) {
+                            i++;
+                        }
+                    } else /* xxx */{
+                        int len = substr.length();
+
+                        if (string.regionMatches(pos, substr, 0, len)) {
+                            pos += len;
+                        } else {
+                            return false;
+                        }
+                    }
+                } else /* last substr */{
+                    if (substr == null) /* * */{
+                        return true;
+                    }
+                    return string.endsWith(substr);
+                }
+            }
+
+            return true;
+        }
+    }
+
+    /**
+     * Compile the filter into its predicate tree
+     */
+    static CompiledFilter compile(Filter filter) {
+        return compile(filter, Collections.<String> emptySet());
+    }
+
+    /**
+     * Compile the filter into its predicate tree, comparing the ordering
+     * assertions on the numeric attributes numerically
+     */
+    static CompiledFilter compile(Filter filter, Set<String> numericAttributes) {
+        switch (filter.operation) {
+            case Filter.AND: {
+                return new And(filter, compile((Filter[]) filter.value,
+                                               numericAttributes));
+            }
+            case Filter.OR: {
+                return new Or(filter, compile((Filter[]) filter.value,
+                                              numericAttributes));
+            }
+            case Filter.NOT: {
+                return new Not(filter, compile((Filter) filter.value,
+                                               numericAttributes));
+            }
+            case Filter.EQUAL: {
+                return new Equal(filter);
+            }
+            case Filter.GREATER: {
+                if (isNumeric(filter, numericAttributes)) {
+                    return new NumericGreater(filter);
+                }
+                return new Greater(filter);
+            }
+            case Filter.LESS: {
+                if (isNumeric(filter, numericAttributes)) {
+                    return new NumericLess(filter);
+                }
+                return new Less(filter);
+            }
+            case Filter.APPROX: {
+                return new Approx(filter);
+            }
+            case Filter.SUBSTRING: {
+                return new Substring(filter);
+            }
+            case Filter.PRESENT: {
+                return new Present(filter);
+            }
+            default:
+                throw new IllegalStateException(
+                                                String.format("Unknown filter operation %s in %s",
+                                                              filter.operation,
+                                                              filter));
+        }
+    }
+
+    private static CompiledFilter[] compile(Filter[] filters,
+                                            Set<String> numericAttributes) {
+        CompiledFilter[] compiled = new CompiledFilter[filters.length];
+        for (int i = 0; i < filters.length; i++) {
+            compiled[i] = compile(filters[i], numericAttributes);
+        }
+        return compiled;
+    }
+
+    /**
+     * Answer true if the ordering assertion compares a numeric attribute with
+     * a numeric operand
+     */
+    private static boolean isNumeric(Filter filter,
+                                     Set<String> numericAttributes) {
+        if (numericAttributes.isEmpty()
+            || !numericAttributes.contains(filter.attr.toLowerCase())) {
+            return false;
+        }
+        try {
+            Double.parseDouble((String) filter.value);
+            return true;
+        } catch (NumberFormatException e) {
+            return false;
+        }
+    }
+
+    protected final Filter filter;
+
+    protected CompiledFilter(Filter filter) {
+        this.filter = filter;
+    }
+
+    /**
+     * Answer the filter this predicate was compiled from
+     */
+    public Filter getFilter() {
+        return filter;
+    }
+
+    /**
+     * Match using a Map. The attribute names of the filter are matched case
+     * insensitively against the keys of the Map. An {@link AttributeMap} is
+     * matched directly, any other Map is first copied into a case insensitive
+     * Map.
+     *
+     * @param properties
+     *            the map whose keys are used in the match.
+     * @return <code>true</code> if the Map matches this filter;
+     *         <code>false</code> otherwise.
+     */
+    public boolean match(Map<String, String> properties) {
+        if (properties != null && !(properties instanceof AttributeMap)) {
+            properties = new HeaderMap(properties);
+        }
+        return evaluate(properties, true);
+    }
+
+    /**
+     * Match the current properties of the service reference, matching the
+     * attribute names of the filter case insensitively.
+     */
+    public boolean match(ServiceReference reference) {
+        return evaluate(reference.properties, true);
+    }
+
+    /**
+     * Match using a Map, matching the attribute names of the filter case
+     * sensitively against the keys of the Map.
+     *
+     * @param properties
+     *            the map whose keys are used in the match.
+     * @return <code>true</code> if the Map matches this filter;
+     *         <code>false</code> otherwise.
+     */
+    public boolean matchCase(Map<String, String> properties) {
+        return evaluate(properties, false);
+    }
+
+    @Override
+    public String toString() {
+        return filter.toString();
+    }
+
+    /**
+     * Evaluate the predicate.
+     *
+     * @param properties
+     *            - the properties, which must be an {@link AttributeMap} when
+     *            ignoring case
+     * @param ignoreCase
+     *            - true if attribute names are matched case insensitively
+     */
+    protected abstract boolean evaluate(Map<String, String> properties,
+                                        boolean ignoreCase);
+}
@@ -20,6 +20,7 @@ import java.security.AccessController;
 import java.security.PrivilegedAction;
 import java.util.ArrayList;
 import java.util.Collection;
+import java.util.HashMap;
 import java.util.HashSet;
 import java.util.Iterator;
 import java.util.Map;
@@ -596,17 +597,20 @@ public class Filter implements Comparable<Filter> {
     }
 
     /** filter attribute or null if operation AND, OR or NOT */
-    protected String  attr;
+    protected String                attr;
     /* normalized filter string for topLevel Filter object */
-    protected String  filter;
+    protected String                filter;
     /** filter operation */
-    protected int     operation;
+    protected int                   operation;
 
     /* true if root Filter object */
-    protected boolean topLevel;
+    protected boolean               topLevel;
 
     /** filter operands */
-    protected Object  value;
+    protected Object                value;
+
+    /* the compiled predicate tree, created on demand */
+    private volatile CompiledFilter compiled;
 
     /**
      * Constructs a {@link Filter} object. This filter object may be used to
@@ -632,6 +636,40 @@ public class Filter implements Comparable<Filter> {
         topLevel = false;
     }
 
+    /**
+     * Compile this filter into an immutable predicate tree, which matches the
+     * same Maps as this filter. The operands of the filter are parsed once and
+     * the comparisons are specialized per assertion, making the compiled form
+     * suitable for filters which are evaluated repeatedly.
+     * 
+     * @return the compiled form of this filter
+     */
+    public CompiledFilter compile() {
+        CompiledFilter result = compiled;
+        if (result == null) {
+            result = CompiledFilter.compile(this);
+            compiled = result;
+        }
+        return result;
+    }
+
+    /**
+     * Compile this filter into an immutable predicate tree in which the
+     * ordering assertions on the supplied attributes compare their values
+     * numerically, rather than as strings. A value or operand which cannot be
+     * parsed as a number never satisfies a numeric comparison.
+     * 
+     * @param numericAttributes
+     *            - the lower case names of the numeric attributes
+     * @return the compiled form of this filter
+     */
+    public CompiledFilter compile(Set<String> numericAttributes) {
+        if (numericAttributes.isEmpty()) {
+            return compile();
+        }
+        return CompiledFilter.compile(this, numericAttributes);
+    }
+
     /**
      * Compares this Filter object to another object.
      * 
@@ -684,15 +722,20 @@ public class Filter implements Comparable<Filter> {
      *         <code>false</code> otherwise.
      */
     public boolean match(Map<String, String> properties) {
-        if (properties != null) {
-            properties = new HeaderMap(properties);
-        }
-
-        return match0(properties);
+        return compile().match(properties);
     }
 
+    /**
+     * Filter using the current properties of the service reference. Attribute
+     * names are matched case insensitively.
+     * 
+     * @param reference
+     *            the service reference whose properties are used in the match.
+     * @return <code>true</code> if the properties match this filter;
+     *         <code>false</code> otherwise.
+     */
     public boolean match(ServiceReference reference) {
-        return match0(reference.properties);
+        return compile().match(reference);
     }
 
     /**
@@ -1715,6 +1758,208 @@ public class Filter implements Comparable<Filter> {
         return assertions;
     }
 
+    /**
+     * Answer the equality assertions that every Map matching this filter must
+     * satisfy. The answer maps the lower case attribute name to the set of
+     * values, one of which the attribute must equal in order for the filter to
+     * match. Unlike {@link #findAssertions(String)}, the answer is conservative:
+     * assertions under a NOT, ordering and substring assertions, and any
+     * attribute not constrained by every branch of an OR are omitted. This
+     * makes the result suitable for narrowing the candidates of a query before
+     * performing the full match.
+     * 
+     * @return the map of required equality assertions, empty if the filter
+     *         cannot be narrowed by equality
+     */
+    public Map<String, Set<String>> findRequiredAssertions() {
+        Map<String, Set<String>> required = new HashMap<String, Set<String>>();
+        switch (operation) {
+            case AND: {
+                Filter[] filters = (Filter[]) value;
+                int size = filters.length;
+
+                for (int i = 0; i < size; i++) {
+                    for (Map.Entry<String, Set<String>> entry : filters[i].findRequiredAssertions().entrySet()) {
+                        Set<String> values = required.get(entry.getKey());
+                        if (values == null) {
+                            required.put(entry.getKey(), entry.getValue());
+                        } else {
+                            values.retainAll(entry.getValue());
+                        }
+                    }
+                }
+
+                break;
+            }
+
+            case OR: {
+                Filter[] filters = (Filter[]) value;
+                int size = filters.length;
+
+                for (int i = 0; i < size; i++) {
+                    Map<String, Set<String>> branch = filters[i].findRequiredAssertions();
+                    if (i == 0) {
+                        required.putAll(branch);
+                        continue;
+                    }
+                    required.keySet().retainAll(branch.keySet());
+                    for (Map.Entry<String, Set<String>> entry : required.entrySet()) {
+                        entry.getValue().addAll(branch.get(entry.getKey()));
+                    }
+                }
+
+                break;
+            }
+
+            case EQUAL: {
+                Set<String> values = new HashSet<String>();
+                values.add((String) value);
+                required.put(attr.toLowerCase(), values);
+                break;
+            }
+            default:
+        }
+
+        return required;
+    }
+
+    /**
+     * Answer the numeric ranges that every Map matching this filter must
+     * satisfy, when the ordering assertions of the filter are compared
+     * numerically. The answer maps the lower case attribute name to the closed
+     * range {lower bound, upper bound} its value must lie in; unbounded ends
+     * are infinite. Equality assertions with numeric operands contribute the
+     * range of their operand. Like {@link #findRequiredAssertions()}, the
+     * answer is conservative: assertions under a NOT, assertions with non
+     * numeric operands and any attribute not constrained by every branch of
+     * an OR are omitted.
+     * 
+     * @return the map of required ranges, empty if the filter cannot be
+     *         narrowed by range
+     */
+    public Map<String, double[]> findRequiredRanges() {
+        Map<String, double[]> required = new HashMap<String, double[]>();
+        switch (operation) {
+            case AND: {
+                Filter[] filters = (Filter[]) value;
+                int size = filters.length;
+
+                for (int i = 0; i < size; i++) {
+                    for (Map.Entry<String, double[]> entry : filters[i].findRequiredRanges().entrySet()) {
+                        double[] range = required.get(entry.getKey());
+                        if (range == null) {
+                            required.put(entry.getKey(), entry.getValue());
+                        } else {
+                            range[0] = Math.max(range[0], entry.getValue()[0]);
+                            range[1] = Math.min(range[1], entry.getValue()[1]);
+                        }
+                    }
+                }
+
+                break;
+            }
+
+            case OR: {
+                Filter[] filters = (Filter[]) value;
+                int size = filters.length;
+
+                for (int i = 0; i < size; i++) {
+                    Map<String, double[]> branch = filters[i].findRequiredRanges();
+                    if (i == 0) {
+                        required.putAll(branch);
+                        continue;
+                    }
+                    required.keySet().retainAll(branch.keySet());
+                    for (Map.Entry<String, double[]> entry : required.entrySet()) {
+                        double[] range = entry.getValue();
+                        range[0] = Math.min(range[0],
+                                            branch.get(entry.getKey())[0]);
+                        range[1] = Math.max(range[1],
+                                            branch.get(entry.getKey())[1]);
+                    }
+                }
+
+                break;
+            }
+
+            case EQUAL:
+            case GREATER:
+            case LESS: {
+                double operand;
+                try {
+                    operand = Double.parseDouble((String) value);
+                } catch (NumberFormatException e) {
+                    break;
+                }
+                if (Double.isNaN(operand)) {
+                    break;
+                }
+                required.put(attr.toLowerCase(),
+                             new double[] {
+                                     operation == LESS ? Double.NEGATIVE_INFINITY
+                                                      : operand,
+                                     operation == GREATER ? Double.POSITIVE_INFINITY
+                                                         : operand });
+                break;
+            }
+            default:
+        }
+
+        return required;
+    }
+
+    /**
+     * Answer the lower case names of the attributes which must be present in
+     * every Map matching this filter. Assertions under a NOT, and attributes
+     * not required by every branch of an OR, are omitted.
+     * 
+     * @return the set of required attribute names, empty if the filter does
+     *         not require any attribute to be present
+     */
+    public Set<String> findRequiredAttributes() {
+        Set<String> required = new HashSet<String>();
+        switch (operation) {
+            case AND: {
+                Filter[] filters = (Filter[]) value;
+                int size = filters.length;
+
+                for (int i = 0; i < size; i++) {
+                    required.addAll(filters[i].findRequiredAttributes());
+                }
+
+                break;
+            }
+
+            case OR: {
+                Filter[] filters = (Filter[]) value;
+                int size = filters.length;
+
+                for (int i = 0; i < size; i++) {
+                    if (i == 0) {
+                        required.addAll(filters[i].findRequiredAttributes());
+                    } else {
+                        required.retainAll(filters[i].findRequiredAttributes());
+                    }
+                }
+
+                break;
+            }
+
+            case SUBSTRING:
+            case EQUAL:
+            case GREATER:
+            case LESS:
+            case APPROX:
+            case PRESENT: {
+                required.add(attr.toLowerCase());
+                break;
+            }
+            default:
+        }
+
+        return required;
+    }
+
     /* (non-Javadoc)
      * @see java.lang.Comparable#compareTo(java.lang.Object)
      */
@@ -0,0 +1,276 @@
+/** (C) Copyright 2014 Chiral Behaviors, All Rights Reserved
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.hellblazer.slp;
+
+import static com.hellblazer.slp.ServiceScope.SERVICE_TYPE;
+
+import java.util.Collections;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * A bounded, concurrent cache of parsed filters, keyed by the service type and
+ * query of a lookup. Filters are immutable once parsed, so a cached filter -
+ * and its compiled predicate tree - is shared by all the lookups with the same
+ * service type and query.
+ *
+ * <p>
+ * When the cache grows beyond its capacity, entries are evicted using the
+ * CLOCK approximation of LRU: a hit marks the entry as referenced, and the
+ * eviction sweep removes the unreferenced entries while clearing the mark of
+ * the others. The sweep resumes where the previous sweep stopped, so every
+ * entry is given the same chance to be referenced again before it is
+ * considered. Lookups never block on the sweep.
+ *
+ * <p>
+ * The cache also retains the compiled form of its filters, compiled with the
+ * numeric attributes of the cache.
+ *
+ * @author hhildebrand
+ *
+ */
+public class FilterCache {
+    private static class Entry {
+        volatile CompiledFilter compiled;
+        final Filter            filter;
+        volatile boolean        referenced;
+
+        Entry(Filter filter) {
+            this.filter = filter;
+        }
+    }
+
+    private static class Key {
+        private final String query;
+        private final String serviceType;
+
+        Key(String serviceType, String query) {
+            this.serviceType = serviceType;
+            this.query = query;
+        }
+
+        @Override
+        public boolean equals(Object obj) {
+            if (this == obj) {
+                return true;
+            }
+            if (!(obj instanceof Key)) {
+                return false;
+            }
+            Key other = (Key) obj;
+            return (serviceType == null ? other.serviceType == null
+                                       : serviceType.equals(other.serviceType))
+                   && (query == null ? other.query == null
+                                    : query.equals(other.query));
+        }
+
+        @Override
+        public int hashCode() {
+            final int prime = 31;
+            int result = 1;
+            result = prime * result
+                     + (serviceType == null ? 0 : serviceType.hashCode());
+            result = prime * result + (query == null ? 0 : query.hashCode());
+            return result;
+        }
+    }
+
+    public static final int                 DEFAULT_CAPACITY = 1024;
+
+    private final int                       capacity;
+    private final ConcurrentMap<Key, Entry> entries          = new ConcurrentHashMap<Key, Entry>();
+    private final AtomicLong                evictions        = new AtomicLong();
+    private Iterator<Map.Entry<Key, Entry>> hand; // guarded by sweep
+    private final AtomicLong                hits             = new AtomicLong();
+    private final AtomicLong                misses           = new AtomicLong();
+    private final Set<String>               numericAttributes;
+    private final ReentrantLock             sweep            = new ReentrantLock();
+
+    public FilterCache() {
+        this(DEFAULT_CAPACITY);
+    }
+
+    /**
+     * @param capacity
+     *            - the maximum number of filters retained by the cache
+     */
+    public FilterCache(int capacity) {
+        this(capacity, Collections.<String> emptySet());
+    }
+
+    /**
+     * @param capacity
+     *            - the maximum number of filters retained by the cache
+     * @param numericAttributes
+     *            - the lower case names of the attributes whose ordering
+     *            assertions are compiled as numeric comparisons
+     */
+    public FilterCache(int capacity, Set<String> numericAttributes) {
+        if (capacity < 1) {
+            throw new IllegalArgumentException(
+                                               "Capacity must be greater than zero");
+        }
+        this.capacity = capacity;
+        this.numericAttributes = numericAttributes;
+    }
+
+    /**
+     * Remove all the filters from the cache
+     */
+    public void clear() {
+        entries.clear();
+    }
+
+    /**
+     * Answer the filter of a lookup. If the service type is null, the filter is
+     * the query. Otherwise the filter is the conjunction of the service type
+     * assertion and the query, if any.
+     *
+     * @param serviceType
+     *            - the service type, or null
+     * @param query
+     *            - the query, which may only be null if the service type is
+     *            not
+     * @return the parsed filter
+     * @throws InvalidSyntaxException
+     *             - if the filter cannot be parsed. Invalid filters are not
+     *             cached.
+     */
+    public Filter get(String serviceType, String query)
+                                                       throws InvalidSyntaxException {
+        return entry(serviceType, query).filter;
+    }
+
+    /**
+     * Answer the compiled filter of a lookup, compiled with the numeric
+     * attributes of this cache.
+     *
+     * @see #get(String, String)
+     */
+    public CompiledFilter compile(String serviceType, String query)
+                                                                   throws InvalidSyntaxException {
+        Entry entry = entry(serviceType, query);
+        CompiledFilter compiled = entry.compiled;
+        if (compiled == null) {
+            compiled = entry.filter.compile(numericAttributes);
+            entry.compiled = compiled;
+        }
+        return compiled;
+    }
+
+
+    /**
+     * Answer the number of filters evicted from the cache
+     */
+    public long getEvictions() {
+        return evictions.get();
+    }
+
+    /**
+     * Answer the number of lookups answered from the cache
+     */
+    public long getHits() {
+        return hits.get();
+    }
+
+    /**
+     * Answer the number of lookups which parsed their filter
+     */
+    public long getMisses() {
+        return misses.get();
+    }
+
+    /**
+     * Answer the number of filters in the cache
+     */
+    public int size() {
+        return entries.size();
+    }
+
+    @Override
+    public String toString() {
+        return String.format("FilterCache [size=%s, capacity=%s, hits=%s, misses=%s, evictions=%s]",
+                             size(), capacity, getHits(), getMisses(),
+                             getEvictions());
+    }
+
+    private Entry entry(String serviceType, String query)
+                                                         throws InvalidSyntaxException {
+        Key key = new Key(serviceType, query);
+        Entry entry = entries.get(key);
+        if (entry != null) {
+            hits.incrementAndGet();
+            if (!entry.referenced) {
+                entry.referenced = true;
+            }
+            return entry;
+        }
+        misses.incrementAndGet();
+        entry = new Entry(parse(serviceType, query));
+        Entry existing = entries.putIfAbsent(key, entry);
+        if (existing != null) {
+            return existing;
+        }
+        if (entries.size() > capacity) {
+            evict();
+        }
+        return entry;
+    }
+
+    private void evict() {
+        if (!sweep.tryLock()) {
+            return; // another thread is sweeping
+        }
+        try {
+            while (entries.size() > capacity) {
+                if (hand == null || !hand.hasNext()) {
+                    // the hand wraps around to the head of the entries
+                    hand = entries.entrySet().iterator();
+                    if (!hand.hasNext()) {
+                        return;
+                    }
+                }
+                Entry entry = hand.next().getValue();
+                if (entry.referenced) {
+                    entry.referenced = false;
+                } else {
+                    hand.remove();
+                    evictions.incrementAndGet();
+                }
+            }
+        } finally {
+            sweep.unlock();
+        }
+    }
+
+    private Filter parse(String serviceType, String query)
+                                                          throws InvalidSyntaxException {
+        if (serviceType == null) {
+            return new Filter(query);
+        }
+        StringBuilder filter = new StringBuilder();
+        if (query == null) {
+            filter.append('(').append(SERVICE_TYPE).append('=').append(serviceType).append(')');
+        } else {
+            filter.append("(&(").append(SERVICE_TYPE).append('=').append(serviceType).append(") ").append(query).append(')');
+        }
+        return new Filter(filter.toString());
+    }
+}
@@ -18,11 +18,14 @@ import java.util.HashMap;
 import java.util.Map;
 
 /**
+ * A case insensitive copy of a Map, used to match properties which are not
+ * already held in an {@link AttributeMap}.
  * 
  * @author <a href="mailto:hal.hildebrand@gmail.com">Hal Hildebrand</a>
  * 
  */
-public class HeaderMap extends HashMap<String, String> {
+public class HeaderMap extends HashMap<String, String> implements
+        AttributeMap {
     private static final long serialVersionUID = 1L;
 
     /**
@@ -40,6 +43,11 @@ public class HeaderMap extends HashMap<String, String> {
         return super.containsKey(((String) key).toLowerCase());
     }
 
+    @Override
+    public String getAttribute(String name) {
+        return super.get(name);
+    }
+
     @Override
     public String get(Object key) {
         return super.get(((String) key).toLowerCase());
@@ -0,0 +1,162 @@
+/** (C) Copyright 2014 Chiral Behaviors, All Rights Reserved
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.hellblazer.slp;
+
+import java.util.concurrent.atomic.LongAccumulator;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.LongBinaryOperator;
+
+/**
+ * A concurrent histogram of non negative values, such as latencies in
+ * nanoseconds. Values are counted in log-linear buckets: four buckets per
+ * power of two, so a percentile is answered to within a quarter of its value.
+ * Every bucket is a striped counter, so recording a value is a few
+ * uncontended additions and never allocates once the counters have grown
+ * their stripes.
+ *
+ * @author hhildebrand
+ *
+ */
+public class Histogram {
+    private static final int                BUCKETS     = 248;
+    private static final int                SUB_BUCKETS = 4;
+    private static final LongBinaryOperator MAX         = new LongBinaryOperator() {
+                                                            @Override
+                                                            public long applyAsLong(long left,
+                                                                                    long right) {
+                                                                return Math.max(left,
+                                                                                right);
+                                                            }
+                                                        };
+
+    /**
+     * Answer the bucket of the value
+     */
+    static int bucketOf(long value) {
+        if (value < SUB_BUCKETS) {
+            return (int) value;
+        }
+        int exponent = 63 - Long.numberOfLeadingZeros(value);
+        int sub = (int) (value >>> (exponent - 2)) & (SUB_BUCKETS - 1);
+        return (exponent - 1) * SUB_BUCKETS + sub;
+    }
+
+    /**
+     * Answer the largest value counted in the bucket
+     */
+    static long upperBoundOf(int bucket) {
+        if (bucket < SUB_BUCKETS) {
+            return bucket;
+        }
+        int exponent = bucket / SUB_BUCKETS + 1;
+        long width = 1L << (exponent - 2);
+        long lower = (SUB_BUCKETS + bucket % SUB_BUCKETS) * width;
+        return lower + width - 1;
+    }
+
+    private final LongAdder[]     buckets = new LongAdder[BUCKETS];
+    private final LongAccumulator max     = new LongAccumulator(MAX, 0);
+    private final LongAdder       total   = new LongAdder();
+
+    public Histogram() {
+        for (int i = 0; i < BUCKETS; i++) {
+            buckets[i] = new LongAdder();
+        }
+    }
+
+    /**
+     * Answer the number of values recorded
+     */
+    public long getCount() {
+        long count = 0;
+        for (LongAdder bucket : buckets) {
+            count += bucket.sum();
+        }
+        return count;
+    }
+
+    /**
+     * Answer the largest value recorded
+     */
+    public long getMax() {
+        return max.get();
+    }
+
+    /**
+     * Answer the mean of the values recorded, or zero if none have been
+     */
+    public double getMean() {
+        long count = getCount();
+        return count == 0 ? 0.0 : (double) getTotal() / count;
+    }
+
+    /**
+     * Answer an upper bound of the percentile of the values recorded, within a
+     * quarter of its value, or zero if none have been
+     *
+     * @param percentile
+     *            - the percentile, between 0 and 100
+     */
+    public long getPercentile(double percentile) {
+        if (percentile < 0.0 || percentile > 100.0) {
+            throw new IllegalArgumentException(
+                                               "Percentile must be between 0 and 100");
+        }
+        long[] counts = new long[BUCKETS];
+        long count = 0;
+        for (int i = 0; i < BUCKETS; i++) {
+            counts[i] = buckets[i].sum();
+            count += counts[i];
+        }
+        if (count == 0) {
+            return 0;
+        }
+        long rank = Math.max(1, (long) Math.ceil(count * percentile / 100.0));
+        long seen = 0;
+        for (int i = 0; i < BUCKETS; i++) {
+            seen += counts[i];
+            if (seen >= rank) {
+                return Math.min(upperBoundOf(i), getMax());
+            }
+        }
+        return getMax();
+    }
+
+    /**
+     * Answer the sum of the values recorded
+     */
+    public long getTotal() {
+        return total.sum();
+    }
+
+    /**
+     * Record the value. Negative values are recorded as zero.
+     */
+    public void record(long value) {
+        if (value < 0) {
+            value = 0;
+        }
+        buckets[bucketOf(value)].increment();
+        total.add(value);
+        max.accumulate(value);
+    }
+
+    @Override
+    public String toString() {
+        return String.format("Histogram [count=%s, mean=%.1f, p50=%s, p99=%s, max=%s]",
+                             getCount(), getMean(), getPercentile(50),
+                             getPercentile(99), getMax());
+    }
+}
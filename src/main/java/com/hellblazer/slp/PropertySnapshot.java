@@ -0,0 +1,223 @@
+/** (C) Copyright 2014 Chiral Behaviors, All Rights Reserved
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.hellblazer.slp;
+
+import java.util.AbstractMap;
+import java.util.AbstractSet;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.NoSuchElementException;
+import java.util.Set;
+
+/**
+ * An immutable, versioned snapshot of the properties of a service. The
+ * properties are held in a pair of arrays sorted by property name, which is
+ * considerably more compact than a HashMap for the small maps typical of
+ * service properties. The names are also normalized to lower case once, when
+ * the snapshot is created, so that filters may look up attributes case
+ * insensitively without allocation. As the snapshot is immutable, it may be
+ * shared freely between threads once safely published.
+ *
+ * @author hhildebrand
+ *
+ */
+final public class PropertySnapshot extends AbstractMap<String, String>
+        implements AttributeMap {
+    private static final Comparator<Map.Entry<String, String>> BY_KEY = new Comparator<Map.Entry<String, String>>() {
+                                                                          @Override
+                                                                          public int compare(Map.Entry<String, String> a,
+                                                                                             Map.Entry<String, String> b) {
+                                                                              return a.getKey().compareTo(b.getKey());
+                                                                          }
+                                                                      };
+
+    private final String[]                                     attributes;
+    private final String[]                                     attributeValues;
+    private final String[]                                     keys;
+    private final String[]                                     values;
+    private final long                                         version;
+
+    /**
+     * Construct a snapshot of the properties
+     *
+     * @param properties
+     *            - the properties, may be null
+     * @param version
+     *            - the version of the snapshot
+     * @param overrides
+     *            - name, value pairs which are added to the snapshot,
+     *            replacing the properties of the same name
+     */
+    @SuppressWarnings({ "rawtypes", "unchecked" })
+    public PropertySnapshot(Map<String, String> properties, long version,
+                            String... overrides) {
+        if (overrides.length % 2 != 0) {
+            throw new IllegalArgumentException(
+                                               "Overrides must be name, value pairs");
+        }
+        this.version = version;
+        int size = overrides.length / 2
+                   + (properties == null ? 0 : properties.size());
+        Map.Entry<String, String>[] entries = new Map.Entry[size];
+        int count = 0;
+        if (properties != null) {
+            for (Map.Entry<String, String> entry : properties.entrySet()) {
+                if (entry.getKey() == null) {
+                    throw new IllegalArgumentException(
+                                                       "Property names cannot be null");
+                }
+                if (!overridden(entry.getKey(), overrides)) {
+                    entries[count++] = entry;
+                }
+            }
+        }
+        for (int i = 0; i < overrides.length; i += 2) {
+            if (overrides[i] == null) {
+                throw new IllegalArgumentException(
+                                                   "Property names cannot be null");
+            }
+            entries[count++] = new SimpleImmutableEntry<String, String>(
+                                                                        overrides[i],
+                                                                        overrides[i + 1]);
+        }
+        Arrays.sort(entries, 0, count, BY_KEY);
+        keys = new String[count];
+        values = new String[count];
+        for (int i = 0; i < count; i++) {
+            keys[i] = entries[i].getKey();
+            values[i] = entries[i].getValue();
+        }
+        if (isNormalized(keys)) {
+            attributes = keys;
+            attributeValues = values;
+        } else {
+            for (int i = 0; i < count; i++) {
+                entries[i] = new SimpleImmutableEntry<String, String>(
+                                                                      keys[i].toLowerCase(),
+                                                                      values[i]);
+            }
+            // stable, so the first of the names differing only in case wins
+            Arrays.sort(entries, 0, count, BY_KEY);
+            String[] names = new String[count];
+            String[] nameValues = new String[count];
+            int unique = 0;
+            for (int i = 0; i < count; i++) {
+                if (unique > 0
+                    && names[unique - 1].equals(entries[i].getKey())) {
+                    continue;
+                }
+                names[unique] = entries[i].getKey();
+                nameValues[unique++] = entries[i].getValue();
+            }
+            attributes = Arrays.copyOf(names, unique);
+            attributeValues = Arrays.copyOf(nameValues, unique);
+        }
+    }
+
+    private static boolean isNormalized(String[] keys) {
+        for (String key : keys) {
+            if (!key.equals(key.toLowerCase())) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    private static boolean overridden(String key, String[] overrides) {
+        for (int i = 0; i < overrides.length; i += 2) {
+            if (key.equals(overrides[i])) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    @Override
+    public boolean containsKey(Object key) {
+        return indexOf(key) >= 0;
+    }
+
+    @Override
+    public Set<Map.Entry<String, String>> entrySet() {
+        return new AbstractSet<Map.Entry<String, String>>() {
+            @Override
+            public Iterator<Map.Entry<String, String>> iterator() {
+                return new Iterator<Map.Entry<String, String>>() {
+                    private int next = 0;
+
+                    @Override
+                    public boolean hasNext() {
+                        return next < keys.length;
+                    }
+
+                    @Override
+                    public Map.Entry<String, String> next() {
+                        if (next >= keys.length) {
+                            throw new NoSuchElementException();
+                        }
+                        Map.Entry<String, String> entry = new SimpleImmutableEntry<String, String>(
+                                                                                                   keys[next],
+                                                                                                   values[next]);
+                        next++;
+                        return entry;
+                    }
+
+                    @Override
+                    public void remove() {
+                        throw new UnsupportedOperationException();
+                    }
+                };
+            }
+
+            @Override
+            public int size() {
+                return keys.length;
+            }
+        };
+    }
+
+    @Override
+    public String getAttribute(String name) {
+        int index = Arrays.binarySearch(attributes, name);
+        return index < 0 ? null : attributeValues[index];
+    }
+
+    @Override
+    public String get(Object key) {
+        int index = indexOf(key);
+        return index < 0 ? null : values[index];
+    }
+
+    /**
+     * Answer the version of this snapshot
+     */
+    public long getVersion() {
+        return version;
+    }
+
+    @Override
+    public int size() {
+        return keys.length;
+    }
+
+    private int indexOf(Object key) {
+        if (!(key instanceof String)) {
+            return -1;
+        }
+        return Arrays.binarySearch(keys, key);
+    }
+}
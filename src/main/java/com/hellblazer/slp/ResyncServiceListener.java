@@ -0,0 +1,31 @@
+/** (C) Copyright 2014 Chiral Behaviors, All Rights Reserved
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.hellblazer.slp;
+
+/**
+ * A service listener which is told when the events dispatched to it have been
+ * discarded, and its view of the services must be rebuilt. Following the
+ * notification, the listener receives the current services matching its
+ * queries as registration events.
+ * 
+ * @author hhildebrand
+ * 
+ */
+public interface ResyncServiceListener extends ServiceListener {
+    /**
+     * Discard the view of the services built from the events received so far
+     */
+    void serviceResync();
+}
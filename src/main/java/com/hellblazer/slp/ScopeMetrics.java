@@ -0,0 +1,88 @@
+/** (C) Copyright 2014 Chiral Behaviors, All Rights Reserved
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.hellblazer.slp;
+
+/**
+ * The metrics a scope reports its operations and notifications to. A scope
+ * reports from the threads performing its operations and delivering its
+ * notifications, so implementations must be thread safe, and should be cheap
+ * enough to remain enabled in production.
+ *
+ * @author hhildebrand
+ *
+ */
+public interface ScopeMetrics {
+    /**
+     * The operations of a scope
+     */
+    enum Operation {
+        ADD_SERVICE_LISTENER, GET_SERVICE_REFERENCE, GET_SERVICE_REFERENCE_SPLITERATOR,
+        GET_SERVICE_REFERENCES, ITERATE_SERVICE_REFERENCES, REGISTER, REGISTER_ALL,
+        SET_PROPERTIES, STREAM_SERVICE_REFERENCES, UNREGISTER, UNREGISTER_ALL;
+    }
+
+    /**
+     * Metrics which record nothing
+     */
+    ScopeMetrics NONE = new ScopeMetrics() {
+                          @Override
+                          public void delivered(ServiceEvent event, long latency) {
+                          }
+
+                          @Override
+                          public void evaluated(ServiceEvent event, int filters) {
+                          }
+
+                          @Override
+                          public void operation(Operation operation, long latency) {
+                          }
+
+                          @Override
+                          public void queued(int events) {
+                          }
+                      };
+
+    /**
+     * An event has been delivered to a listener
+     * 
+     * @param latency
+     *            - the nanoseconds from the creation of the event to the
+     *            return of the listener's notification
+     */
+    void delivered(ServiceEvent event, long latency);
+
+    /**
+     * The listener filters have been evaluated against the service of an event
+     * 
+     * @param filters
+     *            - the number of filters evaluated for the event
+     */
+    void evaluated(ServiceEvent event, int filters);
+
+    /**
+     * An operation of the scope has completed. The lazy
+     * queries report the time taken to plan the query, not to consume its
+     * results.
+     * 
+     * @param latency
+     *            - the duration of the operation, in nanoseconds
+     */
+    void operation(Operation operation, long latency);
+
+    /**
+     * Events have been queued for delivery to a listener
+     */
+    void queued(int events);
+}
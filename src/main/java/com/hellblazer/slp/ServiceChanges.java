@@ -0,0 +1,99 @@
+/** (C) Copyright 2014 Chiral Behaviors, All Rights Reserved
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.hellblazer.slp;
+
+import java.util.List;
+
+/**
+ * The changes of the services of a scope since a version of the scope.
+ * Applying the changes to the services known at that version yields the
+ * services of the scope at the new version of the changes.
+ * 
+ * <p>
+ * Changes made while the changes are gathered may also be included, and
+ * reported again by the next query, so clients should apply the added and
+ * modified references as updates of the references they hold. If the scope no
+ * longer remembers the removals since the requested version, the changes are a
+ * reset: the added references are all the services of the scope, and the
+ * client should replace, rather than update, the references it holds.
+ * 
+ * @author hhildebrand
+ * 
+ */
+public class ServiceChanges {
+    private final List<ServiceReference> added;
+    private final List<ServiceReference> modified;
+    private final List<ServiceReference> removed;
+    private final boolean                reset;
+    private final long                   version;
+
+    public ServiceChanges(long version, boolean reset,
+                          List<ServiceReference> added,
+                          List<ServiceReference> modified,
+                          List<ServiceReference> removed) {
+        this.version = version;
+        this.reset = reset;
+        this.added = added;
+        this.modified = modified;
+        this.removed = removed;
+    }
+
+    /**
+     * Answer the services registered since the version, or all the services
+     * of the scope if the changes are a reset
+     */
+    public List<ServiceReference> getAdded() {
+        return added;
+    }
+
+    /**
+     * Answer the services whose properties have been modified since the
+     * version
+     */
+    public List<ServiceReference> getModified() {
+        return modified;
+    }
+
+    /**
+     * Answer the last known references of the services unregistered since the
+     * version
+     */
+    public List<ServiceReference> getRemoved() {
+        return removed;
+    }
+
+    /**
+     * Answer the version of the scope the changes bring the client up to,
+     * which is the version of the next query for changes
+     */
+    public long getVersion() {
+        return version;
+    }
+
+    /**
+     * Answer true if the changes are the complete set of services of the
+     * scope, rather than the difference from the requested version
+     */
+    public boolean isReset() {
+        return reset;
+    }
+
+    @Override
+    public String toString() {
+        return "ServiceChanges [version=" + version + ", reset=" + reset
+               + ", added=" + added.size() + ", modified=" + modified.size()
+               + ", removed=" + removed.size() + "]";
+    }
+}
@@ -0,0 +1,64 @@
+/** (C) Copyright 2014 Chiral Behaviors, All Rights Reserved
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.hellblazer.slp;
+
+import java.util.Map;
+
+/**
+ * A service to register with a scope in a batch: the ServiceURL defining the
+ * service, and its properties. The same ServiceURL may describe any number of
+ * services.
+ * 
+ * @author hhildebrand
+ * 
+ */
+public class ServiceDescription {
+    private final Map<String, String> properties;
+    private final ServiceURL          url;
+
+    /**
+     * @param url
+     *            - the ServiceURL defining the service
+     * @param properties
+     *            - the map of properties, which may be null
+     */
+    public ServiceDescription(ServiceURL url, Map<String, String> properties) {
+        if (url == null) {
+            throw new IllegalArgumentException("Service URL cannot be null");
+        }
+        this.url = url;
+        this.properties = properties;
+    }
+
+    /**
+     * Answer the properties of the service, or null
+     */
+    public Map<String, String> getProperties() {
+        return properties;
+    }
+
+    /**
+     * Answer the ServiceURL defining the service
+     */
+    public ServiceURL getUrl() {
+        return url;
+    }
+
+    @Override
+    public String toString() {
+        return "ServiceDescription [url=" + url + ", properties=" + properties
+               + "]";
+    }
+}
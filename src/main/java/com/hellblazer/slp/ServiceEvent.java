@@ -29,23 +29,56 @@ public class ServiceEvent implements Serializable {
 
     private static final long      serialVersionUID = 1L;
     private final ServiceReference reference;
+    private final long             sequence;
+    private final transient long   timestamp        = System.nanoTime();
     private final EventType        type;
 
     public ServiceEvent(EventType type, ServiceReference reference) {
+        this(type, reference, 0);
+    }
+
+    /**
+     * @param type
+     * @param reference
+     * @param sequence
+     *            - the sequence number of the event in the journal of its
+     *            scope
+     */
+    public ServiceEvent(EventType type, ServiceReference reference,
+                        long sequence) {
         this.type = type;
         this.reference = reference;
+        this.sequence = sequence;
     }
 
     public ServiceReference getReference() {
         return reference;
     }
 
+    /**
+     * Answer the sequence number of the event in the journal of its scope, or
+     * zero if the event is not sequenced. A listener may resume from the
+     * sequence of the last event it received.
+     */
+    public long getSequence() {
+        return sequence;
+    }
+
+    /**
+     * Answer the {@link System#nanoTime()} at which the event was created. The
+     * timestamp is only meaningful in the JVM which created the event.
+     */
+    public long getTimestamp() {
+        return timestamp;
+    }
+
     public EventType getType() {
         return type;
     }
 
     @Override
     public String toString() {
-        return "ServiceEvent [type=" + type + ", reference=" + reference + "]";
+        return "ServiceEvent [type=" + type + ", sequence=" + sequence
+               + ", reference=" + reference + "]";
     }
 }
\ No newline at end of file
@@ -14,7 +14,6 @@
  */
 package com.hellblazer.slp;
 
-import java.util.Collections;
 import java.util.Map;
 import java.util.UUID;
 
@@ -23,16 +22,19 @@ import java.util.UUID;
  * <link>ServiceScope</link>.
  * 
  * A service is represented by a <link>ServiceURL</link> and a <link>Map</link>
- * of the attributes of the service.
+ * of the attributes of the service. The attributes are held in an immutable,
+ * versioned {@link PropertySnapshot}, which is replaced - never modified - when
+ * the attributes of the service change, so readers never observe a partial
+ * update.
  * 
  * @author <a href="mailto:hal.hildebrand@gmail.com">Hal Hildebrand</a>
  * 
  */
 abstract public class ServiceReference implements Comparable<ServiceReference> {
 
-    protected Map<String, String> properties;
-    protected final UUID          registration;
-    protected ServiceURL          url;
+    protected volatile PropertySnapshot properties;
+    protected final UUID                registration;
+    protected ServiceURL                url;
 
     /**
      * @param url
@@ -41,7 +43,10 @@ abstract public class ServiceReference implements Comparable<ServiceReference> {
     public ServiceReference(ServiceURL url, Map<String, String> properties,
                             UUID registration) {
         this.url = url;
-        this.properties = properties;
+        this.properties = properties instanceof PropertySnapshot ? (PropertySnapshot) properties
+                                                                : new PropertySnapshot(
+                                                                                       properties,
+                                                                                       0);
         this.registration = registration;
     }
 
@@ -61,8 +66,11 @@ abstract public class ServiceReference implements Comparable<ServiceReference> {
         return false;
     }
 
+    /**
+     * Answer the immutable snapshot of the current properties of the service
+     */
     public Map<String, String> getProperties() {
-        return Collections.unmodifiableMap(properties);
+        return properties;
     }
 
     public UUID getRegistration() {
@@ -73,6 +81,15 @@ abstract public class ServiceReference implements Comparable<ServiceReference> {
         return url;
     }
 
+    /**
+     * Answer the version of the current properties of the service. The version
+     * is the version of the scope at which the service was registered or its
+     * properties last updated.
+     */
+    public long getVersion() {
+        return properties.getVersion();
+    }
+
     @Override
     public int hashCode() {
         return registration.hashCode();
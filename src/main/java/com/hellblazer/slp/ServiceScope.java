@@ -14,9 +14,16 @@
  */
 package com.hellblazer.slp;
 
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Iterator;
 import java.util.List;
 import java.util.Map;
+import java.util.Spliterator;
 import java.util.UUID;
+import java.util.concurrent.TimeUnit;
+import java.util.stream.Stream;
+import java.util.stream.StreamSupport;
 
 /**
  * The ServiceScope is the context within services are provided and discovered.
@@ -114,6 +121,61 @@ public interface ServiceScope {
     void addServiceListener(ServiceListener listener, String query)
                                                                    throws InvalidSyntaxException;
 
+    /**
+     * Add a service listener, resuming from the sequence of the last event it
+     * received. The events of the scope carry sequence numbers, and the scope
+     * retains a bounded journal of its most recent events. If the journal
+     * still holds the events after the sequence, those matching the query are
+     * replayed to the listener, followed by the events as they occur, without
+     * gaps or duplicates. Otherwise the listener is attached as by
+     * {@link #addServiceListener(ServiceListener, String)}, receiving the
+     * current matching services as registration events, and must resynchronize
+     * its view of the services. If the listener is already registered for the
+     * query, the call has no effect, and answers false.
+     * 
+     * <p>
+     * The default implementation, for a scope without a journal, always
+     * attaches the listener as by
+     * {@link #addServiceListener(ServiceListener, String)}.
+     * 
+     * @param listener
+     *            - the ServiceListener to add.
+     * @param query
+     *            - the String representation of the LDAP query (can be null)
+     * @param sequence
+     *            - the sequence of the last event received by the listener
+     * @return true if the listener resumed from the sequence, false if it was
+     *         sent the current services instead, or was already registered
+     *         for the query
+     * @throws InvalidSyntaxException
+     *             - if the supplied query contains invalid syntax.
+     * @see ServiceEvent#getSequence()
+     */
+    default boolean addServiceListener(ServiceListener listener, String query,
+                                       long sequence)
+                                                     throws InvalidSyntaxException {
+        addServiceListener(listener, query);
+        return false;
+    }
+
+    /**
+     * Answer the changes of the services of the scope since the version. Each
+     * mutation of the scope advances its version, and stamps the version on
+     * the properties of the service it changes; a client polling for changes
+     * passes the version of the previous changes - or zero, initially - and
+     * only receives the services registered, modified or unregistered since.
+     * 
+     * @param version
+     *            - the version of the scope known to the client
+     * @return the changes since the version, and the new version
+     * @throws UnsupportedOperationException
+     *             - if the scope does not version its changes, as by default
+     */
+    default ServiceChanges getChangesSince(long version) {
+        throw new UnsupportedOperationException(
+                                                "This scope does not version its changes");
+    }
+
     /**
      * Answer the ServiceReference registered under the service registration id
      * 
@@ -123,8 +185,10 @@ public interface ServiceScope {
     ServiceReference getReference(UUID serviceRegistration);
 
     /**
-     * Answer the first service that matches the supplied service type. A
-     * service type is one of three different types:
+     * Answer a service that matches the supplied service type. Where several
+     * services match, implementations may select among them using the
+     * priority and weight of their service URLs, as in RFC 2782. A service
+     * type is one of three different types:
      * 
      * <pre>
      *  simple type    : 'service:simpletype' 
@@ -134,14 +198,44 @@ public interface ServiceScope {
      *  any URL scheme : 'http:' for example.
      * </pre>
      * 
+     * The name of an abstract type alone, e.g. 'service:login', also matches
+     * every concrete type of the abstract type, and the type '*' matches all
+     * services.
+     * 
      * @param serviceType
      *            - a service type.
-     * @return the first ServiceReference that matches this service type
+     * @return a ServiceReference that matches this service type, or null
      * @throws InvalidSyntaxException
      */
     ServiceReference getServiceReference(String serviceType)
                                                             throws InvalidSyntaxException;
 
+    /**
+     * Answer the lazily evaluated service references which match the service
+     * type and query. The spliterator splits cleanly, so the matching
+     * references may be processed in parallel. The results are weakly
+     * consistent: a service registered or unregistered while the spliterator
+     * is traversed may or may not be answered.
+     * 
+     * <p>
+     * The default implementation answers the spliterator of
+     * {@link #getServiceReferences(String, String)}, which evaluates the query
+     * eagerly.
+     * 
+     * @param serviceType
+     *            - the service type to match
+     * @param query
+     *            - the filter string to match
+     * @return the spliterator of the matching service references
+     * @throws InvalidSyntaxException
+     * @see #getServiceReferences(String, String)
+     */
+    default Spliterator<ServiceReference> getServiceReferenceSpliterator(String serviceType,
+                                                                         String query)
+                                                                                      throws InvalidSyntaxException {
+        return getServiceReferences(serviceType, query).spliterator();
+    }
+
     /**
      * Answer the list of all service refences that match the service type and
      * supplied query filter.
@@ -156,6 +250,10 @@ public interface ServiceScope {
      *  any URL scheme : 'http:' for example.
      * </pre>
      * 
+     * The name of an abstract type alone, e.g. 'service:login', also matches
+     * every concrete type of the abstract type, and the type '*' matches all
+     * services.
+     * 
      * <p>
      * The syntax of a filter string is the string representation of LDAP search
      * filters as defined in RFC 1960: <i>A String Representation of LDAP Search
@@ -224,6 +322,41 @@ public interface ServiceScope {
     List<ServiceReference> getServiceReferences(String serviceType, String query)
                                                                                  throws InvalidSyntaxException;
 
+    /**
+     * Answer the lazily evaluated service references which match the service
+     * type and query, skipping the first offset matches and answering no more
+     * than limit references. References are only matched as the iterator
+     * advances, so a small page of a broad query does not evaluate the query
+     * over every service in the scope.
+     * 
+     * <p>
+     * The default implementation pages the stream of
+     * {@link #streamServiceReferences(String, String)}.
+     * 
+     * @param serviceType
+     *            - the service type to match
+     * @param query
+     *            - the filter string to match
+     * @param offset
+     *            - the number of matching references to skip
+     * @param limit
+     *            - the maximum number of references to answer
+     * @return the iterator of the matching service references
+     * @throws InvalidSyntaxException
+     * @see #getServiceReferences(String, String)
+     */
+    default Iterator<ServiceReference> iterateServiceReferences(String serviceType,
+                                                                String query,
+                                                                long offset,
+                                                                long limit)
+                                                                           throws InvalidSyntaxException {
+        if (offset < 0 || limit < 0) {
+            throw new IllegalArgumentException(
+                                               "Offset and limit cannot be negative");
+        }
+        return streamServiceReferences(serviceType, query).skip(offset).limit(limit).iterator();
+    }
+
     /**
      * Register a service with the scope.
      * 
@@ -235,6 +368,50 @@ public interface ServiceScope {
      */
     UUID register(ServiceURL url, Map<String, String> properties);
 
+    /**
+     * Register a service with the scope under a lease. Unless the lease is
+     * renewed, the service is unregistered when the lease expires, and the
+     * UNREGISTERED event is delivered to the listeners as usual.
+     * 
+     * @param url
+     *            - the ServiceURL defining the service
+     * @param properties
+     *            - the map of properties
+     * @param ttl
+     *            - the duration of the lease
+     * @param unit
+     *            - the unit of the duration
+     * @return the UUID representing the service registration.
+     * @throws UnsupportedOperationException
+     *             - if the scope does not lease its registrations, as by
+     *             default
+     */
+    default UUID register(ServiceURL url, Map<String, String> properties,
+                          long ttl, TimeUnit unit) {
+        throw new UnsupportedOperationException(
+                                                "This scope does not lease its registrations");
+    }
+
+    /**
+     * Register a batch of services with the scope. The effect is the same as
+     * registering each service in turn, but the scope may process the batch as
+     * a whole. The default implementation registers each service in turn.
+     * 
+     * @param services
+     *            - the services to register. Each description is registered
+     *            as a distinct service, even if its ServiceURL repeats another
+     * @return the UUIDs representing the service registrations, one per
+     *         description, in the order of the supplied list
+     */
+    default List<UUID> registerAll(List<ServiceDescription> services) {
+        List<UUID> registrations = new ArrayList<UUID>(services.size());
+        for (ServiceDescription service : services) {
+            registrations.add(register(service.getUrl(),
+                                       service.getProperties()));
+        }
+        return registrations;
+    }
+
     /**
      * Remove a listener from the scope. All queries the listener is registered
      * for in this scope are removed.
@@ -254,6 +431,25 @@ public interface ServiceScope {
     void removeServiceListener(ServiceListener listener, String query)
                                                                       throws InvalidSyntaxException;
 
+    /**
+     * Renew the lease of a service registration, which then expires after the
+     * supplied duration from now.
+     * 
+     * @param serviceRegistration
+     *            - the UUID identifying the service instance
+     * @param ttl
+     *            - the duration of the renewed lease
+     * @param unit
+     *            - the unit of the duration
+     * @return true if the lease was renewed, false if the service is not
+     *         registered with a lease, or its lease has already expired. A
+     *         scope which does not lease its registrations, as by default,
+     *         answers false
+     */
+    default boolean renew(UUID serviceRegistration, long ttl, TimeUnit unit) {
+        return false;
+    }
+
     /**
      * Update the service properties for an existing service. If this scope is
      * not responsible for this service registration, no effect will occur.
@@ -279,6 +475,29 @@ public interface ServiceScope {
      */
     ServiceScope stop();
 
+    /**
+     * Answer the lazily evaluated stream of the service references which match
+     * the service type and query. Limits and offsets may be applied with
+     * {@link Stream#limit(long)} and {@link Stream#skip(long)}, and the stream
+     * may be made parallel. The default implementation streams the
+     * spliterator of {@link #getServiceReferenceSpliterator(String, String)}.
+     * 
+     * @param serviceType
+     *            - the service type to match
+     * @param query
+     *            - the filter string to match
+     * @return the stream of the matching service references
+     * @throws InvalidSyntaxException
+     * @see #getServiceReferenceSpliterator(String, String)
+     */
+    default Stream<ServiceReference> streamServiceReferences(String serviceType,
+                                                             String query)
+                                                                          throws InvalidSyntaxException {
+        return StreamSupport.stream(getServiceReferenceSpliterator(serviceType,
+                                                                   query),
+                                    false);
+    }
+
     /**
      * Unregister the service from the scope. If this scope is not responsible
      * for this service registration, no effect will occur.
@@ -287,4 +506,18 @@ public interface ServiceScope {
      *            - the UUID service registration that identifies the service
      */
     void unregister(UUID serviceRegistration);
+
+    /**
+     * Unregister a batch of services from the scope. The effect is the same as
+     * unregistering each service in turn, but the scope may process the batch
+     * as a whole. The default implementation unregisters each service in turn.
+     * 
+     * @param serviceRegistrations
+     *            - the UUID service registrations that identify the services
+     */
+    default void unregisterAll(Collection<UUID> serviceRegistrations) {
+        for (UUID serviceRegistration : serviceRegistrations) {
+            unregister(serviceRegistration);
+        }
+    }
 }
\ No newline at end of file
@@ -0,0 +1,107 @@
+/** (C) Copyright 2014 Chiral Behaviors, All Rights Reserved
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.hellblazer.slp;
+
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * The default metrics of a scope, recording counts in striped counters and
+ * latencies in {@link Histogram}s. Recording never blocks and never allocates,
+ * so contended recording threads do not serialize on a shared counter.
+ *
+ * @author hhildebrand
+ *
+ */
+public class StripedScopeMetrics implements ScopeMetrics {
+    private final Histogram   evaluations         = new Histogram();
+    private final Histogram   notificationLatency = new Histogram();
+    private final Histogram[] operations          = new Histogram[Operation.values().length];
+    private final LongAdder   queued              = new LongAdder();
+
+    public StripedScopeMetrics() {
+        for (int i = 0; i < operations.length; i++) {
+            operations[i] = new Histogram();
+        }
+    }
+
+    @Override
+    public void delivered(ServiceEvent event, long latency) {
+        notificationLatency.record(latency);
+    }
+
+    @Override
+    public void evaluated(ServiceEvent event, int filters) {
+        evaluations.record(filters);
+    }
+
+    /**
+     * Answer the number of events delivered to listeners
+     */
+    public long getDelivered() {
+        return notificationLatency.getCount();
+    }
+
+    /**
+     * Answer the histogram of the number of listener filters evaluated per
+     * event
+     */
+    public Histogram getFilterEvaluations() {
+        return evaluations;
+    }
+
+    /**
+     * Answer the histogram of the nanoseconds from the creation of an event to
+     * its delivery to a listener
+     */
+    public Histogram getNotificationLatency() {
+        return notificationLatency;
+    }
+
+    /**
+     * Answer the histogram of the nanoseconds taken by the operation
+     */
+    public Histogram getOperation(Operation operation) {
+        return operations[operation.ordinal()];
+    }
+
+    /**
+     * Answer the number of events queued for delivery to listeners
+     */
+    public long getQueued() {
+        return queued.sum();
+    }
+
+    @Override
+    public void operation(Operation operation, long latency) {
+        operations[operation.ordinal()].record(latency);
+    }
+
+    @Override
+    public void queued(int events) {
+        queued.add(events);
+    }
+
+    @Override
+    public String toString() {
+        StringBuilder builder = new StringBuilder("StripedScopeMetrics [");
+        for (Operation operation : Operation.values()) {
+            builder.append(operation).append('=').append(getOperation(operation)).append(", ");
+        }
+        builder.append("evaluations=").append(evaluations);
+        builder.append(", queued=").append(getQueued());
+        builder.append(", notificationLatency=").append(notificationLatency);
+        return builder.append(']').toString();
+    }
+}
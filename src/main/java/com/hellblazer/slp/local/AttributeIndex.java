@@ -0,0 +1,332 @@
+/** (C) Copyright 2014 Chiral Behaviors, All Rights Reserved
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.hellblazer.slp.local;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.ConcurrentNavigableMap;
+import java.util.concurrent.ConcurrentSkipListMap;
+
+import com.hellblazer.slp.Filter;
+
+/**
+ * An inverted index of the service registrations in a scope, mapping attribute
+ * -> value -> registrations. Attribute names are indexed in lower case, as
+ * attribute names are not case sensitive in filters.
+ *
+ * <p>
+ * The values of the declared numeric attributes are also indexed in sorted
+ * maps from the numeric value to the registrations, so that the ordering
+ * assertions on these attributes are answered by a range scan.
+ *
+ * <p>
+ * Readers are lock free and see a weakly consistent view of the index.
+ * Mutations of the index are serialized.
+ *
+ * @author hhildebrand
+ *
+ */
+class AttributeIndex {
+    private final ConcurrentMap<String, ConcurrentMap<String, Set<ServiceReferenceImpl>>> index = new ConcurrentHashMap<String, ConcurrentMap<String, Set<ServiceReferenceImpl>>>();
+    private final Map<String, ConcurrentNavigableMap<Double, Set<ServiceReferenceImpl>>>  ranges;
+
+    AttributeIndex() {
+        this(Collections.<String> emptySet());
+    }
+
+    /**
+     * @param numericAttributes
+     *            - the lower case names of the attributes to index by numeric
+     *            value
+     */
+    AttributeIndex(Set<String> numericAttributes) {
+        Map<String, ConcurrentNavigableMap<Double, Set<ServiceReferenceImpl>>> ranges = new HashMap<String, ConcurrentNavigableMap<Double, Set<ServiceReferenceImpl>>>();
+        for (String attribute : numericAttributes) {
+            ranges.put(attribute,
+                       new ConcurrentSkipListMap<Double, Set<ServiceReferenceImpl>>());
+        }
+        this.ranges = ranges;
+    }
+
+    /**
+     * Index the reference under the supplied properties
+     */
+    synchronized void add(ServiceReferenceImpl reference,
+                          Map<String, String> properties) {
+        add0(reference, properties);
+    }
+
+    /**
+     * Index the references under their current properties
+     */
+    synchronized void addAll(Collection<ServiceReferenceImpl> references) {
+        for (ServiceReferenceImpl reference : references) {
+            add0(reference, reference.currentProperties());
+        }
+    }
+
+    /**
+     * Answer the candidate references which may match the filter, or null if
+     * the filter cannot be narrowed by the index and all references must be
+     * considered.
+     */
+    Collection<ServiceReferenceImpl> candidates(Filter filter) {
+        Collection<ServiceReferenceImpl> best = null;
+        int bestSize = Integer.MAX_VALUE;
+        for (Map.Entry<String, Set<String>> assertion : filter.findRequiredAssertions().entrySet()) {
+            ConcurrentMap<String, Set<ServiceReferenceImpl>> values = index.get(assertion.getKey());
+            if (values == null) {
+                return Collections.emptyList();
+            }
+            int size = 0;
+            List<Set<ServiceReferenceImpl>> matches = new ArrayList<Set<ServiceReferenceImpl>>(
+                                                                                                  assertion.getValue().size());
+            for (String value : assertion.getValue()) {
+                Set<ServiceReferenceImpl> references = values.get(value);
+                if (references != null) {
+                    size += references.size();
+                    matches.add(references);
+                }
+            }
+            if (size < bestSize) {
+                bestSize = size;
+                best = union(matches);
+            }
+            if (bestSize == 0) {
+                return best;
+            }
+        }
+        if (ranges.isEmpty()) {
+            return best;
+        }
+        for (Map.Entry<String, double[]> range : filter.findRequiredRanges().entrySet()) {
+            ConcurrentNavigableMap<Double, Set<ServiceReferenceImpl>> values = ranges.get(range.getKey());
+            if (values == null) {
+                continue;
+            }
+            // adding zero normalizes -0.0, which sorts below 0.0
+            double low = range.getValue()[0] + 0.0;
+            double high = range.getValue()[1] + 0.0;
+            if (low > high) {
+                return Collections.emptyList();
+            }
+            int size = 0;
+            List<Set<ServiceReferenceImpl>> matches = new ArrayList<Set<ServiceReferenceImpl>>();
+            for (Set<ServiceReferenceImpl> references : values.subMap(low, true,
+                                                                      high,
+                                                                      true).values()) {
+                size += references.size();
+                if (size >= bestSize) {
+                    break;
+                }
+                matches.add(references);
+            }
+            if (size < bestSize) {
+                bestSize = size;
+                best = union(matches);
+            }
+            if (bestSize == 0) {
+                break;
+            }
+        }
+        return best;
+    }
+
+    /**
+     * Remove the reference indexed under the supplied properties
+     */
+    synchronized void remove(ServiceReferenceImpl reference,
+                             Map<String, String> properties) {
+        remove0(reference, properties, null);
+    }
+
+    /**
+     * Remove the references indexed under the supplied properties
+     */
+    synchronized void removeAll(Map<ServiceReferenceImpl, Map<String, String>> references) {
+        for (Map.Entry<ServiceReferenceImpl, Map<String, String>> entry : references.entrySet()) {
+            remove0(entry.getKey(), entry.getValue(), null);
+        }
+    }
+
+    /**
+     * Reindex the reference, replacing the previous properties with the
+     * current properties
+     */
+    synchronized void update(ServiceReferenceImpl reference,
+                             Map<String, String> previous,
+                             Map<String, String> current) {
+        // insert before removing, so a concurrent query finds the reference
+        // under the attributes it keeps
+        add0(reference, current);
+        remove0(reference, previous, indexed(current));
+    }
+
+    private void add0(ServiceReferenceImpl reference,
+                      Map<String, String> properties) {
+        for (Map.Entry<String, String> entry : properties.entrySet()) {
+            if (entry.getValue() == null) {
+                continue;
+            }
+            String attribute = entry.getKey().toLowerCase();
+            ConcurrentMap<String, Set<ServiceReferenceImpl>> values = index.get(attribute);
+            if (values == null) {
+                values = new ConcurrentHashMap<String, Set<ServiceReferenceImpl>>();
+                index.put(attribute, values);
+            }
+            Set<ServiceReferenceImpl> references = values.get(entry.getValue());
+            if (references == null) {
+                references = Collections.newSetFromMap(new ConcurrentHashMap<ServiceReferenceImpl, Boolean>());
+                values.put(entry.getValue(), references);
+            }
+            references.add(reference);
+            ConcurrentNavigableMap<Double, Set<ServiceReferenceImpl>> range = ranges.get(attribute);
+            if (range != null) {
+                Double number = parse(entry.getValue());
+                if (number != null) {
+                    references = range.get(number);
+                    if (references == null) {
+                        references = Collections.newSetFromMap(new ConcurrentHashMap<ServiceReferenceImpl, Boolean>());
+                        range.put(number, references);
+                    }
+                    references.add(reference);
+                }
+            }
+        }
+    }
+
+    /**
+     * Answer the values of the properties, by lower case attribute name
+     */
+    private Map<String, Set<String>> indexed(Map<String, String> properties) {
+        Map<String, Set<String>> indexed = new HashMap<String, Set<String>>();
+        for (Map.Entry<String, String> entry : properties.entrySet()) {
+            if (entry.getValue() == null) {
+                continue;
+            }
+            String attribute = entry.getKey().toLowerCase();
+            Set<String> values = indexed.get(attribute);
+            if (values == null) {
+                values = new HashSet<String>();
+                indexed.put(attribute, values);
+            }
+            values.add(entry.getValue());
+        }
+        return indexed;
+    }
+
+    /**
+     * Remove the reference indexed under the properties, except under the
+     * attribute values which are retained
+     * 
+     * @param retained
+     *            - the values by lower case attribute name under which the
+     *            reference stays indexed, or null
+     */
+    private void remove0(ServiceReferenceImpl reference,
+                         Map<String, String> properties,
+                         Map<String, Set<String>> retained) {
+        for (Map.Entry<String, String> entry : properties.entrySet()) {
+            if (entry.getValue() == null) {
+                continue;
+            }
+            String attribute = entry.getKey().toLowerCase();
+            Set<String> kept = retained == null ? null
+                                               : retained.get(attribute);
+            ConcurrentNavigableMap<Double, Set<ServiceReferenceImpl>> range = ranges.get(attribute);
+            if (range != null) {
+                Double number = parse(entry.getValue());
+                if (number != null && !retains(kept, number)) {
+                    Set<ServiceReferenceImpl> references = range.get(number);
+                    if (references != null) {
+                        references.remove(reference);
+                        if (references.isEmpty()) {
+                            range.remove(number);
+                        }
+                    }
+                }
+            }
+            if (kept != null && kept.contains(entry.getValue())) {
+                continue;
+            }
+            ConcurrentMap<String, Set<ServiceReferenceImpl>> values = index.get(attribute);
+            if (values == null) {
+                continue;
+            }
+            Set<ServiceReferenceImpl> references = values.get(entry.getValue());
+            if (references == null) {
+                continue;
+            }
+            references.remove(reference);
+            if (references.isEmpty()) {
+                values.remove(entry.getValue());
+                if (values.isEmpty()) {
+                    index.remove(attribute);
+                }
+            }
+        }
+    }
+
+    /**
+     * Answer the numeric value, or null if the value is not a number
+     */
+    private Double parse(String value) {
+        double number;
+        try {
+            number = Double.parseDouble(value);
+        } catch (NumberFormatException e) {
+            return null;
+        }
+        return Double.isNaN(number) ? null : number + 0.0;
+    }
+
+    /**
+     * Answer true if one of the retained values is the number
+     */
+    private boolean retains(Set<String> kept, Double number) {
+        if (kept == null) {
+            return false;
+        }
+        for (String value : kept) {
+            if (number.equals(parse(value))) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    private Collection<ServiceReferenceImpl> union(List<Set<ServiceReferenceImpl>> matches) {
+        switch (matches.size()) {
+            case 0:
+                return Collections.emptyList();
+            case 1:
+                return matches.get(0);
+            default:
+                List<ServiceReferenceImpl> union = new ArrayList<ServiceReferenceImpl>();
+                for (Set<ServiceReferenceImpl> references : matches) {
+                    union.addAll(references);
+                }
+                return union;
+        }
+    }
+}
@@ -0,0 +1,254 @@
+/** (C) Copyright 2014 Chiral Behaviors, All Rights Reserved
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.hellblazer.slp.local;
+
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Queue;
+import java.util.Set;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ConcurrentNavigableMap;
+import java.util.concurrent.ConcurrentSkipListMap;
+
+import com.hellblazer.slp.ServiceChanges;
+import com.hellblazer.slp.ServiceEvent;
+import com.hellblazer.slp.ServiceEvent.EventType;
+import com.hellblazer.slp.ServiceReference;
+
+/**
+ * The log of the changes of the services of a scope, ordered by the scope
+ * version of each change. Every mutation of the scope takes the next version,
+ * which is stamped on the properties of the service it changes. The log holds
+ * one entry per service, keyed by the version of its last change; when a
+ * service changes again, its entry is moved to the new version. Removed
+ * services are remembered by tombstones, of which only a bounded number are
+ * kept. The answer to a query for the changes since a version is then the tail
+ * of the log after that version.
+ * 
+ * <p>
+ * Each change is also published as a {@link ServiceEvent}, sequenced by its
+ * version, and the most recent events are retained in an
+ * {@link EventJournal}. The published events are queued for dispatch to the
+ * listeners in sequence order, and taken by {@link #undispatched()}. A
+ * listener may then attach at a version, receiving the services of the scope
+ * at that version followed by the events after it, or resume from a version
+ * by replaying the events after it from the journal.
+ * 
+ * <p>
+ * Mutations are made holding the monitor of the log, which must also be held
+ * while taking the next version with {@link #next()} and stamping it on the
+ * service. Queries are lock free.
+ * 
+ * @author hhildebrand
+ * 
+ */
+class ChangeLog {
+    private static class Change {
+        final ServiceReferenceImpl reference;
+        final boolean              removed;
+
+        Change(ServiceReferenceImpl reference, boolean removed) {
+            this.reference = reference;
+            this.removed = removed;
+        }
+    }
+
+    private final ConcurrentNavigableMap<Long, Change> changes      = new ConcurrentSkipListMap<Long, Change>();
+    private volatile long                              horizon;
+    private final EventJournal                         journal;
+    private final int                                  maxTombstones;
+    private final Queue<Long>                          tombstones   = new ArrayDeque<Long>();
+    private final Queue<ServiceEvent>                  undispatched = new ConcurrentLinkedQueue<ServiceEvent>();
+    private volatile long                              version;
+
+    /**
+     * @param maxTombstones
+     *            - the number of removals remembered by the log
+     * @param journalCapacity
+     *            - the number of events retained by the journal, a power of
+     *            two
+     */
+    ChangeLog(int maxTombstones, int journalCapacity) {
+        if (maxTombstones < 1) {
+            throw new IllegalArgumentException(
+                                               "Tombstones must be greater than zero");
+        }
+        this.maxTombstones = maxTombstones;
+        journal = new EventJournal(journalCapacity);
+    }
+
+    /**
+     * Record the registration of the service, whose properties are stamped
+     * with the next version
+     * 
+     * @return the event of the registration
+     */
+    synchronized ServiceEvent added(ServiceReferenceImpl reference) {
+        long stamp = reference.getVersion();
+        changes.put(stamp, new Change(reference, false));
+        return publish(new ServiceEvent(EventType.REGISTERED, reference, stamp));
+    }
+
+    /**
+     * Answer the events after the version, if the journal still holds them.
+     * The caller must hold the monitor of the log.
+     * 
+     * @return the events after the version, or null if they have been lost
+     */
+    List<ServiceEvent> eventsSince(long since) {
+        assert Thread.holdsLock(this);
+        return journal.since(since);
+    }
+
+    /**
+     * Answer the current version of the scope
+     */
+    long getVersion() {
+        return version;
+    }
+
+    /**
+     * Answer true if there are published events not yet taken for dispatch
+     */
+    boolean hasUndispatched() {
+        return !undispatched.isEmpty();
+    }
+
+    /**
+     * Record the modification of the service, whose properties are now stamped
+     * with the next version
+     * 
+     * @param previous
+     *            - the version of the previous properties of the service
+     * @return the event of the modification
+     */
+    synchronized ServiceEvent modified(ServiceReferenceImpl reference,
+                                       long previous) {
+        long stamp = reference.getVersion();
+        // insert before removing, so a concurrent query finds the service at
+        // one version or the other
+        changes.put(stamp, new Change(reference, false));
+        changes.remove(previous);
+        return publish(new ServiceEvent(EventType.MODIFIED, reference, stamp));
+    }
+
+    /**
+     * Answer the next version of the scope. The caller must hold the monitor
+     * of the log until the change of this version is recorded.
+     */
+    long next() {
+        assert Thread.holdsLock(this);
+        return version + 1;
+    }
+
+    /**
+     * Record the removal of the service
+     * 
+     * @return the event of the removal
+     */
+    synchronized ServiceEvent removed(ServiceReferenceImpl reference) {
+        long stamp = version + 1;
+        changes.put(stamp, new Change(reference, true));
+        changes.remove(reference.getVersion());
+        tombstones.add(stamp);
+        while (tombstones.size() > maxTombstones) {
+            Long oldest = tombstones.poll();
+            changes.remove(oldest);
+            horizon = oldest;
+        }
+        return publish(new ServiceEvent(EventType.UNREGISTERED, reference,
+                                        stamp));
+    }
+
+    /**
+     * Answer the services of the scope at the version. Services modified since
+     * the version are answered with their current properties, and services
+     * removed since the version with their last properties.
+     */
+    Collection<ServiceReferenceImpl> snapshot(long at) {
+        // a service moved while the log is read may be seen twice
+        Set<ServiceReferenceImpl> snapshot = new LinkedHashSet<ServiceReferenceImpl>();
+        for (Map.Entry<Long, Change> entry : changes.entrySet()) {
+            Change change = entry.getValue();
+            if (change.reference.getRegisteredVersion() > at) {
+                continue;
+            }
+            if (!change.removed || entry.getKey() > at) {
+                snapshot.add(change.reference);
+            }
+        }
+        return snapshot;
+    }
+
+    /**
+     * Answer the changes since the version
+     */
+    ServiceChanges since(long since) {
+        long current = version;
+        List<ServiceReference> added = new ArrayList<ServiceReference>();
+        List<ServiceReference> modified = new ArrayList<ServiceReference>();
+        List<ServiceReference> removed = new ArrayList<ServiceReference>();
+        // the tail is not bounded by the current version, so the services
+        // moved past it while the tail is read are not missed
+        for (Change change : changes.tailMap(since, false).values()) {
+            boolean fresh = change.reference.getRegisteredVersion() > since;
+            if (change.removed) {
+                if (!fresh) {
+                    removed.add(change.reference);
+                }
+            } else if (fresh) {
+                added.add(change.reference);
+            } else {
+                modified.add(change.reference);
+            }
+        }
+        if (since >= horizon) {
+            return new ServiceChanges(current, false, added, modified, removed);
+        }
+        // removals since the version have been forgotten
+        added.clear();
+        for (Change change : changes.values()) {
+            if (!change.removed) {
+                added.add(change.reference);
+            }
+        }
+        return new ServiceChanges(current, true, added,
+                                  new ArrayList<ServiceReference>(),
+                                  new ArrayList<ServiceReference>());
+    }
+
+    /**
+     * Take the published events not yet taken for dispatch, in sequence order
+     */
+    List<ServiceEvent> undispatched() {
+        List<ServiceEvent> events = new ArrayList<ServiceEvent>();
+        ServiceEvent event;
+        while ((event = undispatched.poll()) != null) {
+            events.add(event);
+        }
+        return events;
+    }
+
+    private ServiceEvent publish(ServiceEvent event) {
+        journal.append(event);
+        undispatched.add(event);
+        version = event.getSequence();
+        return event;
+    }
+}
@@ -0,0 +1,687 @@
+/** (C) Copyright 2014 Chiral Behaviors, All Rights Reserved
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.hellblazer.slp.local;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.UUID;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.Executor;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import com.hellblazer.slp.BatchServiceListener;
+import com.hellblazer.slp.ResyncServiceListener;
+import com.hellblazer.slp.ScopeMetrics;
+import com.hellblazer.slp.ServiceEvent;
+import com.hellblazer.slp.ServiceEvent.EventType;
+import com.hellblazer.slp.ServiceListener;
+
+/**
+ * The notification engine of a scope. Each listener has a serial mailbox of
+ * pending events, and the mailboxes are drained by the shared executor. A
+ * mailbox is scheduled on the executor at most once at any time, so events are
+ * delivered to a listener one at a time, in the order they were dispatched,
+ * and a single task delivers as many as the batch size of events per wakeup.
+ * 
+ * <p>
+ * A {@link BatchServiceListener} receives the events drained in a wakeup - up
+ * to the maximum batch size - as a single list, in which the events of each
+ * service registration have been coalesced.
+ * 
+ * <p>
+ * Mailboxes are bounded. When an event is dispatched to a full mailbox, the
+ * {@link OverflowPolicy} of the dispatcher decides whether the dispatching
+ * thread blocks, or which events are dropped.
+ *
+ * @author hhildebrand
+ *
+ */
+class Dispatcher {
+    /**
+     * The scope's resynchronization of a listener whose events have been
+     * discarded
+     */
+    static interface Resync {
+        /**
+         * Resynchronize the listener, dispatching the current services
+         * matching its queries
+         */
+        void resync(ServiceListener listener);
+    }
+
+    /**
+     * The serial mailbox of a listener
+     */
+    static class Mailbox implements Runnable {
+        /**
+         * The mailbox delivering events on the current thread, if any
+         */
+        private final static ThreadLocal<Mailbox> delivering = new ThreadLocal<Mailbox>();
+
+        private long                      coalesced;
+        private long                      delivered;
+        private volatile Thread           deliverer;
+        private final Dispatcher          dispatcher;
+        private long                      dropped;
+        private final List<String>        filters   = new CopyOnWriteArrayList<String>();
+        private long                      invocations;
+        private long                      invocationTime;
+        private final ServiceListener     listener;
+        private long                      maxInvocationTime;
+        private final EventQueue          pending;
+        private boolean                   resync;
+        private long                      resyncs;
+        private boolean                   retired;
+        private final AtomicBoolean       scheduled = new AtomicBoolean();
+        private boolean                   slow;
+        private long                      slowInvocations;
+        private int                       waiting;
+
+        Mailbox(Dispatcher dispatcher, ServiceListener listener) {
+            this.dispatcher = dispatcher;
+            this.listener = listener;
+            pending = new EventQueue(
+                                     dispatcher.policy == OverflowPolicy.COALESCE);
+        }
+
+        @Override
+        public void run() {
+            Mailbox outer = delivering.get();
+            delivering.set(this);
+            deliverer = Thread.currentThread();
+            try {
+                if (isResyncing()) {
+                    resync();
+                } else if (listener instanceof BatchServiceListener) {
+                    deliverBatch();
+                } else {
+                    for (ServiceEvent event : drain(dispatcher.batchSize)) {
+                        deliver(event);
+                    }
+                }
+            } finally {
+                deliverer = null;
+                delivering.set(outer);
+                scheduled.set(false);
+            }
+            if (hasPending()) {
+                schedule();
+            } else if (filters.isEmpty()) {
+                dispatcher.retire(this);
+            }
+        }
+
+        synchronized int depth() {
+            return pending.size();
+        }
+
+        void enqueue(List<ServiceEvent> events, boolean bounded) {
+            int queued = 0;
+            synchronized (this) {
+                for (ServiceEvent event : events) {
+                    if (offer(event, bounded)) {
+                        queued++;
+                    }
+                }
+            }
+            dispatcher.metrics.queued(queued);
+            schedule();
+        }
+
+        void enqueue(ServiceEvent event) {
+            boolean queued;
+            synchronized (this) {
+                queued = offer(event, true);
+            }
+            if (queued) {
+                dispatcher.metrics.queued(1);
+            }
+            schedule();
+        }
+
+        /**
+         * Mark the listener as resynchronized, accepting events again
+         */
+        synchronized void resynced() {
+            resync = false;
+        }
+
+        /**
+         * Retire the mailbox if it is idle, so it no longer accepts events
+         * 
+         * @return true if the mailbox was retired
+         */
+        synchronized boolean retire() {
+            if (scheduled.get() || resync || !pending.isEmpty()) {
+                return false;
+            }
+            retired = true;
+            return true;
+        }
+
+        synchronized ListenerStatistics statistics() {
+            return new ListenerStatistics(listener,
+                                          new ArrayList<String>(filters),
+                                          dispatcher.policy,
+                                          dispatcher.capacity, pending.size(),
+                                          delivered, dropped, coalesced,
+                                          resyncs, invocations, invocationTime,
+                                          maxInvocationTime, slowInvocations,
+                                          slow);
+        }
+
+        private void deliver(ServiceEvent event) {
+            long start = System.nanoTime();
+            try {
+                listener.serviceChanged(event);
+            } catch (Throwable e) {
+                log.error(String.format("Error when notifying listener %s on reference %s type %s",
+                                        listener, event.getReference(),
+                                        event.getType()), e);
+            }
+            long now = System.nanoTime();
+            timed(now - start, 1);
+            dispatcher.metrics.delivered(event, now - event.getTimestamp());
+        }
+
+        private void deliverBatch() {
+            List<ServiceEvent> batch = Dispatcher.coalesce(drain(dispatcher.maxBatchSize));
+            if (batch.isEmpty()) {
+                return;
+            }
+            long start = System.nanoTime();
+            try {
+                ((BatchServiceListener) listener).serviceChanged(batch);
+            } catch (Throwable e) {
+                log.error(String.format("Error when notifying listener %s of %s events",
+                                        listener, batch.size()), e);
+            }
+            ScopeMetrics metrics = dispatcher.metrics;
+            long now = System.nanoTime();
+            timed(now - start, batch.size());
+            for (ServiceEvent event : batch) {
+                metrics.delivered(event, now - event.getTimestamp());
+            }
+        }
+
+        /**
+         * Drain up to the limit of events, releasing any blocked dispatchers
+         */
+        private synchronized List<ServiceEvent> drain(int limit) {
+            List<ServiceEvent> drained = new ArrayList<ServiceEvent>(
+                                                                     Math.min(limit,
+                                                                              pending.size()));
+            ServiceEvent event;
+            while (drained.size() < limit && (event = pending.poll()) != null) {
+                drained.add(event);
+            }
+            delivered += drained.size();
+            if (waiting > 0) {
+                notifyAll();
+            }
+            return drained;
+        }
+
+        private synchronized boolean hasPending() {
+            return resync || !pending.isEmpty();
+        }
+
+        private synchronized boolean isResyncing() {
+            return resync;
+        }
+
+        /**
+         * Queue the event, applying the overflow policy if the mailbox is full
+         * and bounded. Called holding the monitor of the mailbox.
+         * 
+         * @return true if the event was queued
+         */
+        private boolean offer(ServiceEvent event, boolean bounded) {
+            if (retired) {
+                return false;
+            }
+            if (resync) {
+                dropped++;
+                return false;
+            }
+            if (bounded && pending.size() >= dispatcher.capacity) {
+                switch (dispatcher.policy) {
+                    case BLOCK: {
+                        block();
+                        break;
+                    }
+                    case COALESCE: {
+                        int eliminated = pending.coalesce(event);
+                        if (eliminated > 0) {
+                            coalesced += eliminated;
+                            return false;
+                        }
+                        // dropping an event of another service would lose
+                        // its change
+                        return overflow();
+                    }
+                    case DROP_OLDEST: {
+                        pending.poll();
+                        dropped++;
+                        break;
+                    }
+                    case RESYNC: {
+                        return overflow();
+                    }
+                }
+                if (resync) {
+                    dropped++;
+                    return false;
+                }
+            }
+            pending.add(event);
+            return true;
+        }
+
+        /**
+         * Wait until the mailbox has room. A notification thread is never
+         * blocked - a listener dispatching from its notification may wait on
+         * itself, or on a listener waiting on it - and its event is queued
+         * beyond the capacity of the mailbox instead.
+         */
+        private void block() {
+            if (delivering.get() != null) {
+                return;
+            }
+            // make sure the events already queued are being drained
+            schedule();
+            waiting++;
+            try {
+                while (pending.size() >= dispatcher.capacity) {
+                    wait();
+                }
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            } finally {
+                waiting--;
+            }
+        }
+
+        /**
+         * Discard the queued events and the event offered, and mark the
+         * listener for resynchronization. Called holding the monitor of the
+         * mailbox.
+         * 
+         * @return false, as the event is not queued
+         */
+        private boolean overflow() {
+            dropped += pending.size() + 1;
+            pending.clear();
+            resync = true;
+            resyncs++;
+            if (waiting > 0) {
+                notifyAll();
+            }
+            return false;
+        }
+
+        private void resync() {
+            if (listener instanceof ResyncServiceListener) {
+                try {
+                    ((ResyncServiceListener) listener).serviceResync();
+                } catch (Throwable e) {
+                    log.error(String.format("Error when resynchronizing listener %s",
+                                            listener), e);
+                }
+            }
+            dispatcher.resync.resync(listener);
+        }
+
+        private void schedule() {
+            if (scheduled.compareAndSet(false, true)) {
+                try {
+                    dispatcher.executor.execute(this);
+                } catch (RejectedExecutionException e) {
+                    scheduled.set(false);
+                    log.warn(String.format("Notification of listener %s rejected",
+                                           listener), e);
+                }
+            }
+        }
+
+        /**
+         * Account for an invocation of the listener, flagging the listener as
+         * slow while its invocations take longer than the threshold of the
+         * dispatcher. The listener is logged when it becomes slow.
+         */
+        private void timed(long duration, int events) {
+            long threshold = dispatcher.slowListenerThreshold;
+            boolean became;
+            int depth;
+            synchronized (this) {
+                invocations++;
+                invocationTime += duration;
+                if (duration > maxInvocationTime) {
+                    maxInvocationTime = duration;
+                }
+                boolean over = duration > threshold;
+                if (over) {
+                    slowInvocations++;
+                }
+                became = over && !slow;
+                slow = over;
+                depth = pending.size();
+            }
+            if (became) {
+                log.warn(String.format("Slow listener %s on %s took %s ms to process %s events, threshold %s ms, backlog %s events",
+                                       listener, filters,
+                                       TimeUnit.NANOSECONDS.toMillis(duration),
+                                       events,
+                                       TimeUnit.NANOSECONDS.toMillis(threshold),
+                                       depth));
+            }
+        }
+    }
+
+    private final static Logger                           log       = LoggerFactory.getLogger(Dispatcher.class);
+
+    /**
+     * Coalesce the events of each service registration in the ordered batch
+     * of events. The coalesced event of a registration takes the position of
+     * its first event in the batch.
+     */
+    static List<ServiceEvent> coalesce(List<ServiceEvent> events) {
+        if (events.size() < 2) {
+            return events;
+        }
+        List<ServiceEvent> coalesced = new ArrayList<ServiceEvent>(
+                                                                   events.size());
+        Map<UUID, Integer> slots = new HashMap<UUID, Integer>();
+        boolean removed = false;
+        for (ServiceEvent event : events) {
+            UUID registration = event.getReference().getRegistration();
+            Integer slot = slots.get(registration);
+            ServiceEvent previous = slot == null ? null
+                                                : coalesced.get(slot);
+            if (previous == null
+                || previous.getType() == EventType.UNREGISTERED) {
+                slots.put(registration, coalesced.size());
+                coalesced.add(event);
+                continue;
+            }
+            switch (event.getType()) {
+                case REGISTERED:
+                case MODIFIED: {
+                    if (previous.getType() == EventType.MODIFIED) {
+                        coalesced.set(slot, event);
+                    }
+                    break;
+                }
+                case UNREGISTERED: {
+                    if (previous.getType() == EventType.REGISTERED) {
+                        coalesced.set(slot, null);
+                        slots.remove(registration);
+                        removed = true;
+                    } else {
+                        coalesced.set(slot, event);
+                    }
+                    break;
+                }
+            }
+        }
+        if (removed) {
+            List<ServiceEvent> compacted = new ArrayList<ServiceEvent>(
+                                                                       coalesced.size());
+            for (ServiceEvent event : coalesced) {
+                if (event != null) {
+                    compacted.add(event);
+                }
+            }
+            return compacted;
+        }
+        return coalesced;
+    }
+
+    private final int                                     batchSize;
+    private final int                                     capacity;
+    private final Executor                                executor;
+    private final ConcurrentMap<ServiceListener, Mailbox> mailboxes = new ConcurrentHashMap<ServiceListener, Mailbox>();
+    private final int                                     maxBatchSize;
+    private volatile ScopeMetrics                         metrics   = ScopeMetrics.NONE;
+    private final OverflowPolicy                          policy;
+    private final Resync                                  resync;
+    private volatile long                                 slowListenerThreshold;
+
+    /**
+     * @param executor
+     *            - the executor draining the mailboxes
+     * @param batchSize
+     *            - the maximum number of events delivered to a listener per
+     *            wakeup
+     * @param maxBatchSize
+     *            - the maximum number of events drained into a single batch for
+     *            a batch listener
+     * @param capacity
+     *            - the maximum number of events queued for a listener
+     * @param policy
+     *            - the policy applied when an event is dispatched to a full
+     *            mailbox
+     * @param resync
+     *            - the resynchronization of the listeners marked for resync
+     * @param slowListenerThreshold
+     *            - the nanoseconds an invocation of a listener may take
+     *            before the listener is flagged as slow
+     */
+    Dispatcher(Executor executor, int batchSize, int maxBatchSize,
+               int capacity, OverflowPolicy policy, Resync resync,
+               long slowListenerThreshold) {
+        if (batchSize < 1 || maxBatchSize < 1) {
+            throw new IllegalArgumentException(
+                                               "Batch size must be greater than zero");
+        }
+        if (capacity < 1) {
+            throw new IllegalArgumentException(
+                                               "Capacity must be greater than zero");
+        }
+        this.executor = executor;
+        this.batchSize = batchSize;
+        this.maxBatchSize = maxBatchSize;
+        this.capacity = capacity;
+        this.policy = policy;
+        this.resync = resync;
+        setSlowListenerThreshold(slowListenerThreshold);
+    }
+
+    /**
+     * Answer the number of listeners being notified at this moment
+     */
+    int active() {
+        int active = 0;
+        for (Mailbox mailbox : mailboxes.values()) {
+            if (mailbox.deliverer != null) {
+                active++;
+            }
+        }
+        return active;
+    }
+
+    /**
+     * Answer true if the calling thread is delivering events to a listener
+     */
+    static boolean isDelivering() {
+        return Mailbox.delivering.get() != null;
+    }
+
+    /**
+     * Answer the number of tasks queued by the executor, or -1 if the
+     * executor's queue is not observable
+     */
+    int executorQueueDepth() {
+        if (executor instanceof ThreadPoolExecutor) {
+            return ((ThreadPoolExecutor) executor).getQueue().size();
+        }
+        return -1;
+    }
+
+    /**
+     * Answer the nanoseconds an invocation of a listener may take before the
+     * listener is flagged as slow
+     */
+    long getSlowListenerThreshold() {
+        return slowListenerThreshold;
+    }
+
+    /**
+     * Dispatch the event to the listener
+     */
+    void dispatch(ServiceListener listener, ServiceEvent event) {
+        Mailbox mailbox = mailboxes.get(listener);
+        if (mailbox == null) {
+            if (log.isTraceEnabled()) {
+                log.trace(String.format("Listener %s is not registered, dropping %s",
+                                        listener, event));
+            }
+            return;
+        }
+        mailbox.enqueue(event);
+    }
+
+    /**
+     * Dispatch the ordered events to the listener, scheduling the listener's
+     * mailbox once for the whole list
+     */
+    void dispatch(ServiceListener listener, List<ServiceEvent> events) {
+        Mailbox mailbox = mailboxes.get(listener);
+        if (mailbox == null) {
+            if (log.isTraceEnabled()) {
+                log.trace(String.format("Listener %s is not registered, dropping %s events",
+                                        listener, events.size()));
+            }
+            return;
+        }
+        mailbox.enqueue(events, true);
+    }
+
+    /**
+     * Dispatch the ordered events to the listener regardless of the capacity
+     * of its mailbox. Used for the services a listener is attached with, which
+     * the listener must receive whole.
+     */
+    void dispatchUnbounded(ServiceListener listener, List<ServiceEvent> events) {
+        Mailbox mailbox = mailboxes.get(listener);
+        if (mailbox == null) {
+            return;
+        }
+        mailbox.enqueue(events, false);
+    }
+
+    /**
+     * Answer the number of events queued in the mailboxes
+     */
+    long pending() {
+        long pending = 0;
+        for (Mailbox mailbox : mailboxes.values()) {
+            pending += mailbox.depth();
+        }
+        return pending;
+    }
+
+    /**
+     * Register a listener registration, creating the mailbox of the listener
+     * on its first registration
+     * 
+     * @param filter
+     *            - the filter of the registration
+     */
+    synchronized void register(ServiceListener listener, String filter) {
+        Mailbox mailbox = mailboxes.get(listener);
+        if (mailbox == null) {
+            mailbox = new Mailbox(this, listener);
+            mailboxes.put(listener, mailbox);
+        }
+        mailbox.filters.add(filter);
+    }
+
+    /**
+     * Mark the listener as resynchronized, so its mailbox accepts events again
+     */
+    void resynced(ServiceListener listener) {
+        Mailbox mailbox = mailboxes.get(listener);
+        if (mailbox != null) {
+            mailbox.resynced();
+        }
+    }
+
+    /**
+     * Set the metrics the queueing and delivery of events are reported to
+     */
+    void setMetrics(ScopeMetrics metrics) {
+        this.metrics = metrics;
+    }
+
+    /**
+     * Set the nanoseconds an invocation of a listener may take before the
+     * listener is flagged as slow
+     */
+    void setSlowListenerThreshold(long slowListenerThreshold) {
+        if (slowListenerThreshold < 1) {
+            throw new IllegalArgumentException(
+                                               "Slow listener threshold must be greater than zero");
+        }
+        this.slowListenerThreshold = slowListenerThreshold;
+    }
+
+    /**
+     * Answer the statistics of the mailboxes of the listeners
+     */
+    List<ListenerStatistics> statistics() {
+        List<ListenerStatistics> statistics = new ArrayList<ListenerStatistics>(
+                                                                                mailboxes.size());
+        for (Mailbox mailbox : mailboxes.values()) {
+            statistics.add(mailbox.statistics());
+        }
+        return statistics;
+    }
+
+    /**
+     * Unregister a listener registration, retiring the mailbox of the listener
+     * when its last registration is removed. Events already in the mailbox are
+     * still delivered.
+     */
+    synchronized void unregister(ServiceListener listener, String filter) {
+        Mailbox mailbox = mailboxes.get(listener);
+        if (mailbox != null && mailbox.filters.remove(filter)) {
+            retire(mailbox);
+        }
+    }
+
+    /**
+     * Remove the mailbox of a listener without registrations, once the mailbox
+     * is idle. A mailbox still delivering events is retired by its last run,
+     * so a listener registered again meanwhile reuses it, and is never
+     * notified by two mailboxes at once.
+     */
+    private synchronized void retire(Mailbox mailbox) {
+        if (mailbox.filters.isEmpty()
+            && mailboxes.get(mailbox.listener) == mailbox && mailbox.retire()) {
+            mailboxes.remove(mailbox.listener);
+        }
+    }
+}
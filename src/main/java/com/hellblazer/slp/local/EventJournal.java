@@ -0,0 +1,82 @@
+/** (C) Copyright 2014 Chiral Behaviors, All Rights Reserved
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.hellblazer.slp.local;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import com.hellblazer.slp.ServiceEvent;
+
+/**
+ * A bounded journal of the most recent events of a scope, held in a ring
+ * buffer indexed by the sequence number of the event. The sequence numbers of
+ * the events appended to the journal must be consecutive; the journal then
+ * answers the events after a sequence for as long as they have not been
+ * overwritten.
+ * 
+ * @author hhildebrand
+ * 
+ */
+class EventJournal {
+    private final ServiceEvent[] events;
+    private long                 last;
+    private final int            mask;
+
+    /**
+     * @param capacity
+     *            - the number of events retained, a power of two
+     */
+    EventJournal(int capacity) {
+        if (capacity < 1 || Integer.bitCount(capacity) != 1) {
+            throw new IllegalArgumentException(
+                                               "Journal capacity must be a power of two");
+        }
+        events = new ServiceEvent[capacity];
+        mask = capacity - 1;
+    }
+
+    /**
+     * Append the event, whose sequence must follow the last event appended
+     */
+    synchronized void append(ServiceEvent event) {
+        assert last == 0 || event.getSequence() == last + 1 : String.format("Expected sequence %s, was %s",
+                                                                             last + 1,
+                                                                             event.getSequence());
+        events[(int) (event.getSequence() & mask)] = event;
+        last = event.getSequence();
+    }
+
+    /**
+     * Answer the events after the sequence, in order
+     * 
+     * @return the events, or null if the journal no longer holds all the
+     *         events after the sequence
+     */
+    synchronized List<ServiceEvent> since(long sequence) {
+        if (sequence < 0 || sequence > last || last - sequence > events.length) {
+            return null;
+        }
+        List<ServiceEvent> since = new ArrayList<ServiceEvent>(
+                                                               (int) (last - sequence));
+        for (long next = sequence + 1; next <= last; next++) {
+            ServiceEvent event = events[(int) (next & mask)];
+            if (event == null || event.getSequence() != next) {
+                return null;
+            }
+            since.add(event);
+        }
+        return since;
+    }
+}
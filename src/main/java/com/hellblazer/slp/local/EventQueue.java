@@ -0,0 +1,155 @@
+/** (C) Copyright 2014 Chiral Behaviors, All Rights Reserved
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.hellblazer.slp.local;
+
+import java.util.HashMap;
+import java.util.Map;
+import java.util.UUID;
+
+import com.hellblazer.slp.ServiceEvent;
+import com.hellblazer.slp.ServiceEvent.EventType;
+
+/**
+ * The FIFO queue of the pending events of a listener, held in a growable ring
+ * buffer. An indexed queue also tracks the position of the latest pending
+ * event of each service registration, so an event can be coalesced with the
+ * pending events of its registration in constant time. Coalescing may leave
+ * empty slots in the ring, which are skipped when the queue is polled. Not
+ * thread safe.
+ * 
+ * @author hhildebrand
+ * 
+ */
+class EventQueue {
+    private static final int      INITIAL_CAPACITY = 16;
+
+    private long                  head;
+    private final Map<UUID, Long> index;
+    private int                   size;
+    private ServiceEvent[]        slots            = new ServiceEvent[INITIAL_CAPACITY];
+    private long                  tail;
+
+    /**
+     * @param indexed
+     *            - true if the queue coalesces events
+     */
+    EventQueue(boolean indexed) {
+        index = indexed ? new HashMap<UUID, Long>() : null;
+    }
+
+    void add(ServiceEvent event) {
+        if (tail - head == slots.length) {
+            grow();
+        }
+        slots[slot(tail)] = event;
+        if (index != null) {
+            index.put(event.getReference().getRegistration(), tail);
+        }
+        tail++;
+        size++;
+    }
+
+    void clear() {
+        while (head < tail) {
+            slots[slot(head++)] = null;
+        }
+        size = 0;
+        if (index != null) {
+            index.clear();
+        }
+    }
+
+    /**
+     * Coalesce the event with the latest pending event of its registration,
+     * following {@link Dispatcher#coalesce(java.util.List)}: a modification
+     * replaces a pending modification in place, a pending registration
+     * absorbs a modification, and an unregistration cancels a pending
+     * registration. The queue must be indexed.
+     * 
+     * @return the number of events eliminated, or 0 if the event could not be
+     *         coalesced and must be added
+     */
+    int coalesce(ServiceEvent event) {
+        UUID registration = event.getReference().getRegistration();
+        Long position = index.get(registration);
+        if (position == null) {
+            return 0;
+        }
+        int slot = slot(position);
+        switch (slots[slot].getType()) {
+            case MODIFIED: {
+                slots[slot] = event;
+                return 1;
+            }
+            case REGISTERED: {
+                if (event.getType() != EventType.UNREGISTERED) {
+                    return 1;
+                }
+                slots[slot] = null;
+                size--;
+                index.remove(registration);
+                return 2;
+            }
+            default: {
+                return 0;
+            }
+        }
+    }
+
+    boolean isEmpty() {
+        return size == 0;
+    }
+
+    /**
+     * Answer the oldest pending event, or null if the queue is empty
+     */
+    ServiceEvent poll() {
+        while (head < tail) {
+            long position = head++;
+            int slot = slot(position);
+            ServiceEvent event = slots[slot];
+            if (event != null) {
+                slots[slot] = null;
+                size--;
+                if (index != null) {
+                    UUID registration = event.getReference().getRegistration();
+                    Long latest = index.get(registration);
+                    if (latest != null && latest == position) {
+                        index.remove(registration);
+                    }
+                }
+                return event;
+            }
+        }
+        return null;
+    }
+
+    int size() {
+        return size;
+    }
+
+    private void grow() {
+        ServiceEvent[] grown = new ServiceEvent[slots.length * 2];
+        int mask = grown.length - 1;
+        for (long position = head; position < tail; position++) {
+            grown[(int) (position & mask)] = slots[slot(position)];
+        }
+        slots = grown;
+    }
+
+    private int slot(long position) {
+        return (int) (position & (slots.length - 1));
+    }
+}
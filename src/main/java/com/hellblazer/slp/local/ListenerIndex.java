@@ -0,0 +1,175 @@
+/** (C) Copyright 2014 Chiral Behaviors, All Rights Reserved
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.hellblazer.slp.local;
+
+import java.util.Collections;
+import java.util.IdentityHashMap;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeMap;
+import java.util.TreeSet;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+
+import com.hellblazer.slp.Filter;
+import com.hellblazer.slp.local.LocalScope.ListenerRegistration;
+
+/**
+ * A reverse index over the filters of the listener registrations of a scope.
+ * Each registration is keyed by one of the assertions its filter requires:
+ * preferably an equality assertion, otherwise the presence of an attribute.
+ * Registrations whose filters require neither are evaluated for every event.
+ * The candidates for an event are then the registrations keyed by the
+ * attributes and values of the service's properties, which is generally a
+ * small fraction of all the registrations.
+ *
+ * <p>
+ * Readers are lock free and see a weakly consistent view of the index.
+ * Mutations of the index are serialized.
+ *
+ * @author hhildebrand
+ *
+ */
+class ListenerIndex {
+    private final ConcurrentMap<String, ConcurrentMap<String, Set<ListenerRegistration>>> equality  = new ConcurrentHashMap<String, ConcurrentMap<String, Set<ListenerRegistration>>>();
+    private final ConcurrentMap<String, Set<ListenerRegistration>>                        presence  = new ConcurrentHashMap<String, Set<ListenerRegistration>>();
+    private final Set<ListenerRegistration>                                               unindexed = newSet();
+
+    private static Set<ListenerRegistration> newSet() {
+        return Collections.newSetFromMap(new ConcurrentHashMap<ListenerRegistration, Boolean>());
+    }
+
+    synchronized void add(ListenerRegistration registration) {
+        Filter filter = registration.query;
+        Map<String, Set<String>> assertions = new TreeMap<String, Set<String>>(
+                                                                               filter.findRequiredAssertions());
+        String attribute = selectAssertion(assertions);
+        if (attribute != null) {
+            if (assertions.get(attribute).isEmpty()) {
+                return; // the filter can never match
+            }
+            ConcurrentMap<String, Set<ListenerRegistration>> values = equality.get(attribute);
+            if (values == null) {
+                values = new ConcurrentHashMap<String, Set<ListenerRegistration>>();
+                equality.put(attribute, values);
+            }
+            for (String value : assertions.get(attribute)) {
+                Set<ListenerRegistration> registrations = values.get(value);
+                if (registrations == null) {
+                    registrations = newSet();
+                    values.put(value, registrations);
+                }
+                registrations.add(registration);
+            }
+            return;
+        }
+        Set<String> attributes = new TreeSet<String>(
+                                                     filter.findRequiredAttributes());
+        if (!attributes.isEmpty()) {
+            attribute = attributes.iterator().next();
+            Set<ListenerRegistration> registrations = presence.get(attribute);
+            if (registrations == null) {
+                registrations = newSet();
+                presence.put(attribute, registrations);
+            }
+            registrations.add(registration);
+            return;
+        }
+        unindexed.add(registration);
+    }
+
+    /**
+     * Answer the registrations whose filters may match the supplied
+     * properties
+     */
+    Set<ListenerRegistration> candidates(Map<String, String> properties) {
+        Set<ListenerRegistration> candidates = Collections.newSetFromMap(new IdentityHashMap<ListenerRegistration, Boolean>());
+        candidates.addAll(unindexed);
+        for (Map.Entry<String, String> entry : properties.entrySet()) {
+            String attribute = entry.getKey().toLowerCase();
+            Set<ListenerRegistration> present = presence.get(attribute);
+            if (present != null) {
+                candidates.addAll(present);
+            }
+            if (entry.getValue() == null) {
+                continue;
+            }
+            ConcurrentMap<String, Set<ListenerRegistration>> values = equality.get(attribute);
+            if (values != null) {
+                Set<ListenerRegistration> registrations = values.get(entry.getValue());
+                if (registrations != null) {
+                    candidates.addAll(registrations);
+                }
+            }
+        }
+        return candidates;
+    }
+
+    synchronized void remove(ListenerRegistration registration) {
+        Filter filter = registration.query;
+        Map<String, Set<String>> assertions = new TreeMap<String, Set<String>>(
+                                                                               filter.findRequiredAssertions());
+        String attribute = selectAssertion(assertions);
+        if (attribute != null) {
+            ConcurrentMap<String, Set<ListenerRegistration>> values = equality.get(attribute);
+            if (values == null) {
+                return;
+            }
+            for (String value : assertions.get(attribute)) {
+                Set<ListenerRegistration> registrations = values.get(value);
+                if (registrations != null) {
+                    registrations.remove(registration);
+                    if (registrations.isEmpty()) {
+                        values.remove(value);
+                    }
+                }
+            }
+            if (values.isEmpty()) {
+                equality.remove(attribute);
+            }
+            return;
+        }
+        Set<String> attributes = new TreeSet<String>(
+                                                     filter.findRequiredAttributes());
+        if (!attributes.isEmpty()) {
+            attribute = attributes.iterator().next();
+            Set<ListenerRegistration> registrations = presence.get(attribute);
+            if (registrations != null) {
+                registrations.remove(registration);
+                if (registrations.isEmpty()) {
+                    presence.remove(attribute);
+                }
+            }
+            return;
+        }
+        unindexed.remove(registration);
+    }
+
+    /**
+     * Select the equality assertion asserting the fewest values, as it is the
+     * most selective
+     */
+    private String selectAssertion(Map<String, Set<String>> assertions) {
+        String selected = null;
+        int size = Integer.MAX_VALUE;
+        for (Map.Entry<String, Set<String>> entry : assertions.entrySet()) {
+            if (entry.getValue().size() < size) {
+                selected = entry.getKey();
+                size = entry.getValue().size();
+            }
+        }
+        return selected;
+    }
+}
@@ -0,0 +1,187 @@
+/** (C) Copyright 2014 Chiral Behaviors, All Rights Reserved
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.hellblazer.slp.local;
+
+import java.util.Comparator;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+import com.hellblazer.slp.ServiceListener;
+
+/**
+ * A snapshot of the notification queue of a listener, and of the time taken
+ * by the invocations of the listener
+ * 
+ * @author hhildebrand
+ * 
+ */
+public class ListenerStatistics {
+    /**
+     * Orders the statistics by the longest invocation of their listeners, the
+     * slowest first
+     */
+    static final Comparator<ListenerStatistics> SLOWEST_FIRST = new Comparator<ListenerStatistics>() {
+                                                                  @Override
+                                                                  public int compare(ListenerStatistics a,
+                                                                                     ListenerStatistics b) {
+                                                                      return Long.compare(b.getMaxInvocationTime(),
+                                                                                          a.getMaxInvocationTime());
+                                                                  }
+                                                              };
+
+    private final int             capacity;
+    private final long            coalesced;
+    private final long            delivered;
+    private final int             depth;
+    private final long            dropped;
+    private final List<String>    filters;
+    private final long            invocations;
+    private final long            invocationTime;
+    private final ServiceListener listener;
+    private final long            maxInvocationTime;
+    private final OverflowPolicy  policy;
+    private final long            resyncs;
+    private final boolean         slow;
+    private final long            slowInvocations;
+
+    public ListenerStatistics(ServiceListener listener, List<String> filters,
+                              OverflowPolicy policy, int capacity, int depth,
+                              long delivered, long dropped, long coalesced,
+                              long resyncs, long invocations,
+                              long invocationTime, long maxInvocationTime,
+                              long slowInvocations, boolean slow) {
+        this.listener = listener;
+        this.filters = filters;
+        this.policy = policy;
+        this.capacity = capacity;
+        this.depth = depth;
+        this.delivered = delivered;
+        this.dropped = dropped;
+        this.coalesced = coalesced;
+        this.resyncs = resyncs;
+        this.invocations = invocations;
+        this.invocationTime = invocationTime;
+        this.maxInvocationTime = maxInvocationTime;
+        this.slowInvocations = slowInvocations;
+        this.slow = slow;
+    }
+
+    /**
+     * Answer the capacity of the queue
+     */
+    public int getCapacity() {
+        return capacity;
+    }
+
+    /**
+     * Answer the number of queued events removed by coalescing
+     */
+    public long getCoalesced() {
+        return coalesced;
+    }
+
+    /**
+     * Answer the number of events delivered to the listener
+     */
+    public long getDelivered() {
+        return delivered;
+    }
+
+    /**
+     * Answer the number of events waiting in the queue
+     */
+    public int getDepth() {
+        return depth;
+    }
+
+    /**
+     * Answer the number of events dropped by the overflow policy
+     */
+    public long getDropped() {
+        return dropped;
+    }
+
+    /**
+     * Answer the filters the listener is registered with
+     */
+    public List<String> getFilters() {
+        return filters;
+    }
+
+    /**
+     * Answer the number of invocations of the listener. A batch listener is
+     * invoked once per batch.
+     */
+    public long getInvocations() {
+        return invocations;
+    }
+
+    public ServiceListener getListener() {
+        return listener;
+    }
+
+    /**
+     * Answer the longest invocation of the listener, in nanoseconds
+     */
+    public long getMaxInvocationTime() {
+        return maxInvocationTime;
+    }
+
+    /**
+     * Answer the mean invocation time of the listener, in nanoseconds
+     */
+    public long getMeanInvocationTime() {
+        return invocations == 0 ? 0 : invocationTime / invocations;
+    }
+
+    public OverflowPolicy getPolicy() {
+        return policy;
+    }
+
+    /**
+     * Answer the number of times the listener has been marked for
+     * resynchronization
+     */
+    public long getResyncs() {
+        return resyncs;
+    }
+
+    /**
+     * Answer the number of invocations of the listener which took longer than
+     * the slow listener threshold
+     */
+    public long getSlowInvocations() {
+        return slowInvocations;
+    }
+
+    /**
+     * Answer true if the last invocation of the listener took longer than the
+     * slow listener threshold
+     */
+    public boolean isSlow() {
+        return slow;
+    }
+
+    @Override
+    public String toString() {
+        return String.format("ListenerStatistics [listener=%s, filters=%s, policy=%s, depth=%s/%s, delivered=%s, dropped=%s, coalesced=%s, resyncs=%s, invocations=%s, mean=%sus, max=%sus, slow=%s/%s]",
+                             listener, filters, policy, depth, capacity,
+                             delivered, dropped, coalesced, resyncs,
+                             invocations,
+                             TimeUnit.NANOSECONDS.toMicros(getMeanInvocationTime()),
+                             TimeUnit.NANOSECONDS.toMicros(maxInvocationTime),
+                             slow, slowInvocations);
+    }
+}
@@ -14,30 +14,59 @@
  */
 package com.hellblazer.slp.local;
 
+import java.lang.management.ManagementFactory;
 import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.Comparator;
 import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
 import java.util.List;
 import java.util.Map;
 import java.util.Set;
+import java.util.Spliterator;
 import java.util.UUID;
 import java.util.concurrent.ConcurrentHashMap;
-import java.util.concurrent.ConcurrentSkipListSet;
 import java.util.concurrent.Executor;
 import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.stream.Collectors;
+import java.util.stream.Stream;
+import java.util.stream.StreamSupport;
+
+import javax.management.JMException;
+import javax.management.ObjectName;
 
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
 import com.fasterxml.uuid.Generators;
 import com.fasterxml.uuid.NoArgGenerator;
+import com.hellblazer.slp.CompiledFilter;
 import com.hellblazer.slp.Filter;
+import com.hellblazer.slp.FilterCache;
 import com.hellblazer.slp.InvalidSyntaxException;
+import com.hellblazer.slp.PropertySnapshot;
+import com.hellblazer.slp.ScopeMetrics;
+import com.hellblazer.slp.ScopeMetrics.Operation;
+import com.hellblazer.slp.ServiceChanges;
+import com.hellblazer.slp.ServiceDescription;
 import com.hellblazer.slp.ServiceEvent;
 import com.hellblazer.slp.ServiceEvent.EventType;
 import com.hellblazer.slp.ServiceListener;
 import com.hellblazer.slp.ServiceReference;
 import com.hellblazer.slp.ServiceScope;
 import com.hellblazer.slp.ServiceURL;
+import com.hellblazer.slp.StripedScopeMetrics;
+import com.hellblazer.slp.local.QueryPlan.AccessPath;
 
 /**
  * A local service discovery scope that provides only local, in process service
@@ -53,33 +82,100 @@ import com.hellblazer.slp.ServiceURL;
  * 
  */
 public class LocalScope implements ServiceScope {
-    private static class ListenerRegistration implements
-            Comparable<ListenerRegistration> {
-        final ServiceListener listener;
-        final Filter          query;
+    static class ListenerRegistration {
+        private static final Comparator<ServiceEvent> BY_SEQUENCE = new Comparator<ServiceEvent>() {
+                                                                      @Override
+                                                                      public int compare(ServiceEvent a,
+                                                                                         ServiceEvent b) {
+                                                                          return Long.compare(a.getSequence(),
+                                                                                              b.getSequence());
+                                                                      }
+                                                                  };
+
+        private volatile List<ServiceEvent>           deferred    = new ArrayList<ServiceEvent>();
+        final LongAdder                               evaluations = new LongAdder();
+        final ServiceListener                         listener;
+        final LongAdder                               matched     = new LongAdder();
+        final CompiledFilter                          matcher;
+        final Filter                                  query;
+        final LongAdder                               sampled     = new LongAdder();
+        final LongAdder                               sampledTime = new LongAdder();
+        volatile long                                 since;
 
         /**
          * @param listener
-         * @param fileter
+         * @param matcher
          */
-        public ListenerRegistration(ServiceListener listener, Filter filter) {
+        public ListenerRegistration(ServiceListener listener,
+                                    CompiledFilter matcher) {
             this.listener = listener;
-            query = filter;
+            this.matcher = matcher;
+            query = matcher.getFilter();
         }
 
-        /* (non-Javadoc)
-         * @see java.lang.Comparable#compareTo(java.lang.Object)
+        /**
+         * Complete the attachment of the registration, dispatching the events
+         * of the attachment followed by the events deferred while the
+         * attachment was prepared
          */
-        @Override
-        public int compareTo(ListenerRegistration reg) {
-            if (listener.equals(reg.listener)) {
-                return query.compareTo(reg.query);
-            } else {
-                return new Integer(listener.hashCode()).compareTo(new Integer(
-                                                                              listener.hashCode()));
+        void attached(List<ServiceEvent> events, Dispatcher dispatcher) {
+            synchronized (this) {
+                Collections.sort(deferred, BY_SEQUENCE);
+                for (ServiceEvent event : deferred) {
+                    // events sequenced before a reattachment may be deferred
+                    if (event.getSequence() > since) {
+                        events.add(event);
+                    }
+                }
+                if (!events.isEmpty()) {
+                    dispatcher.dispatchUnbounded(listener, events);
+                }
+                // only released once dispatched, so no event overtakes them
+                deferred = null;
             }
         }
 
+        /**
+         * Begin attaching the registration at the version, deferring the
+         * events after it until attached. Called holding the change log.
+         */
+        synchronized void attaching(long version) {
+            if (deferred == null) {
+                deferred = new ArrayList<ServiceEvent>();
+            }
+            since = version;
+        }
+
+        /**
+         * Defer the event if the registration is still being attached
+         * 
+         * @return true if the event was deferred
+         */
+        boolean defer(ServiceEvent event) {
+            if (deferred == null) {
+                return false;
+            }
+            synchronized (this) {
+                if (deferred == null) {
+                    return false;
+                }
+                deferred.add(event);
+                return true;
+            }
+        }
+
+        /**
+         * Answer the estimated total nanoseconds spent evaluating the filter
+         * of the registration
+         */
+        double cost() {
+            long samples = sampled.sum();
+            if (samples == 0) {
+                return 0.0;
+            }
+            return (double) sampledTime.sum() / samples * evaluations.sum();
+        }
+
         @Override
         public boolean equals(Object obj) {
             if (this == obj) {
@@ -118,54 +214,377 @@ public class LocalScope implements ServiceScope {
             result = prime * result + (query == null ? 0 : query.hashCode());
             return result;
         }
+
+        /**
+         * Evaluate the filter of the registration against the reference. One
+         * evaluation in COST_SAMPLE_RATE is timed, to estimate the cost of the
+         * filter.
+         */
+        boolean match(ServiceReference reference) {
+            boolean matches;
+            if (ThreadLocalRandom.current().nextInt(COST_SAMPLE_RATE) == 0) {
+                long start = System.nanoTime();
+                matches = matcher.match(reference);
+                sampledTime.add(System.nanoTime() - start);
+                sampled.increment();
+            } else {
+                matches = matcher.match(reference);
+            }
+            evaluations.increment();
+            if (matches) {
+                matched.increment();
+            }
+            return matches;
+        }
+
+        @Override
+        public String toString() {
+            return String.format("%s on %s", listener, query);
+        }
+    }
+
+    /**
+     * The management interface of the scope
+     */
+    private class Monitor implements LocalScopeMXBean {
+
+        @Override
+        public List<String> dumpMostExpensiveFilters(int limit) {
+            final Map<Filter, double[]> costs = new HashMap<Filter, double[]>();
+            for (ListenerRegistration registration : listeners) {
+                double[] cost = costs.get(registration.query);
+                if (cost == null) {
+                    cost = new double[3];
+                    costs.put(registration.query, cost);
+                }
+                cost[0] += registration.cost();
+                cost[1] += registration.evaluations.sum();
+                cost[2] += registration.matched.sum();
+            }
+            List<Filter> filters = new ArrayList<Filter>(costs.keySet());
+            Collections.sort(filters, new Comparator<Filter>() {
+                @Override
+                public int compare(Filter a, Filter b) {
+                    return Double.compare(costs.get(b)[0], costs.get(a)[0]);
+                }
+            });
+            List<String> dump = new ArrayList<String>();
+            for (Filter filter : filters.subList(0,
+                                                 Math.min(limit, filters.size()))) {
+                double[] cost = costs.get(filter);
+                dump.add(String.format("%s: estimated %.3f ms over %.0f evaluations, %.0f matched",
+                                       filter, cost[0] / 1.0e6, cost[1],
+                                       cost[2]));
+            }
+            return dump;
+        }
+
+        @Override
+        public List<String> dumpSlowestListeners(int limit) {
+            List<ListenerStatistics> statistics = dispatcher.statistics();
+            Collections.sort(statistics, ListenerStatistics.SLOWEST_FIRST);
+            List<String> dump = new ArrayList<String>();
+            for (ListenerStatistics listener : statistics.subList(0,
+                                                                  Math.min(limit,
+                                                                           statistics.size()))) {
+                dump.add(listener.toString());
+            }
+            return dump;
+        }
+
+        @Override
+        public int getActiveDispatchThreads() {
+            return dispatcher.active();
+        }
+
+        @Override
+        public int getDistinctFilterCount() {
+            Set<Filter> filters = new HashSet<Filter>();
+            for (ListenerRegistration registration : listeners) {
+                filters.add(registration.query);
+            }
+            return filters.size();
+        }
+
+        @Override
+        public Map<String, Long> getEventCounts() {
+            Map<String, Long> counts = new LinkedHashMap<String, Long>();
+            for (EventType type : EventType.values()) {
+                counts.put(type.name(), eventRates[type.ordinal()].getCount());
+            }
+            return counts;
+        }
+
+        @Override
+        public Map<String, Double> getEventRates() {
+            long now = System.nanoTime();
+            Map<String, Double> rates = new LinkedHashMap<String, Double>();
+            for (EventType type : EventType.values()) {
+                rates.put(type.name(), eventRates[type.ordinal()].getRate(now));
+            }
+            return rates;
+        }
+
+        @Override
+        public int getListenerCount() {
+            return listeners.size();
+        }
+
+        @Override
+        public int getNotificationQueueDepth() {
+            return dispatcher.executorQueueDepth();
+        }
+
+        @Override
+        public long getPendingNotifications() {
+            return dispatcher.pending();
+        }
+
+        @Override
+        public int getRegistrationCount() {
+            return services.size();
+        }
     }
 
-    private final static Logger                   log       = LoggerFactory.getLogger(LocalScope.class);
+    /**
+     * The default number of candidates above which a query is evaluated in
+     * parallel
+     */
+    public final static int                       DEFAULT_PARALLEL_SCAN_THRESHOLD = 8192;
+
+    /**
+     * The default maximum number of events queued for a listener
+     */
+    public final static int                       DEFAULT_NOTIFICATION_CAPACITY   = 65536;
+
+    /**
+     * The default policy applied when an event is dispatched to a listener
+     * whose queue is full
+     */
+    public final static OverflowPolicy            DEFAULT_OVERFLOW_POLICY         = OverflowPolicy.COALESCE;
+
+    /**
+     * The default milliseconds an invocation of a listener may take before the
+     * listener is flagged as slow
+     */
+    public final static long                      DEFAULT_SLOW_LISTENER_THRESHOLD = 100;
 
-    private final Executor                        executor;
-    private final Set<ListenerRegistration>       listeners = new ConcurrentSkipListSet<LocalScope.ListenerRegistration>();
-    private final Map<UUID, ServiceReferenceImpl> services  = new ConcurrentHashMap<UUID, ServiceReferenceImpl>();
+    private final static int                      COST_SAMPLE_RATE        = 64;
+    private final static AtomicInteger            instances               = new AtomicInteger();
+    private final static Logger                   log                     = LoggerFactory.getLogger(LocalScope.class);
+    private final static int                      JOURNAL_CAPACITY        = 4096;
+    private final static int                      LEASE_TICK_MILLIS       = 100;
+    private final static int                      LEASE_WHEEL_SIZE        = 512;
+    private final static int                      MAX_BATCH_SIZE          = 1024;
+    private final static int                      MAX_TOMBSTONES          = 4096;
+    private final static int                      NOTIFICATION_BATCH_SIZE = 32;
+
+    private final boolean                         blocking;
+    private final ChangeLog                       changes                 = new ChangeLog(
+                                                                                          MAX_TOMBSTONES,
+                                                                                          JOURNAL_CAPACITY);
+    private volatile long                         dispatched;
+    private final Dispatcher                      dispatcher;
+    private final AtomicBoolean                   dispatching             = new AtomicBoolean();
+    private final FilterCache                     filters;
+    private final AttributeIndex                  index;
+    private final TimingWheel                     leases                  = new TimingWheel(
+                                                                                            TimeUnit.MILLISECONDS.toNanos(LEASE_TICK_MILLIS),
+                                                                                            LEASE_WHEEL_SIZE,
+                                                                                            System.nanoTime());
+    private ScheduledExecutorService              leaseTimer;
+    private final Rate[]                          eventRates              = new Rate[EventType.values().length];
+    private final ListenerIndex                   listenerIndex           = new ListenerIndex();
+    private final Set<ListenerRegistration>       listeners               = Collections.newSetFromMap(new ConcurrentHashMap<ListenerRegistration, Boolean>());
+    private volatile ScopeMetrics                 metrics                 = new StripedScopeMetrics();
+    private ObjectName                            objectName;
+    private volatile int                          parallelScanThreshold   = DEFAULT_PARALLEL_SCAN_THRESHOLD;
+    private final ServiceSelector                 selector                = new ServiceSelector();
+    private final Map<UUID, ServiceReferenceImpl> services                = new ConcurrentHashMap<UUID, ServiceReferenceImpl>();
+    private final ServiceTypeIndex                types                   = new ServiceTypeIndex();
     private final NoArgGenerator                  uuidGenerator;
 
     public LocalScope(Executor execService, NoArgGenerator generator) {
+        this(execService, generator, Collections.<String> emptySet());
+    }
+
+    /**
+     * @param execService
+     *            - the executor delivering notifications to listeners
+     * @param generator
+     *            - the generator of service registrations
+     * @param numericAttributes
+     *            - the names of the attributes whose values are numbers. The
+     *            ordering assertions on these attributes compare numerically,
+     *            in both queries and listener filters, and are answered from a
+     *            sorted index of the attribute's values.
+     */
+    public LocalScope(Executor execService, NoArgGenerator generator,
+                      Set<String> numericAttributes) {
+        this(execService, generator, numericAttributes,
+             DEFAULT_NOTIFICATION_CAPACITY, DEFAULT_OVERFLOW_POLICY);
+    }
+
+    /**
+     * @param execService
+     *            - the executor delivering notifications to listeners
+     * @param generator
+     *            - the generator of service registrations
+     * @param numericAttributes
+     *            - the names of the attributes whose values are numbers
+     * @param notificationCapacity
+     *            - the maximum number of events queued for a listener
+     * @param overflowPolicy
+     *            - the policy applied when an event is dispatched to a
+     *            listener whose queue is full
+     */
+    public LocalScope(Executor execService, NoArgGenerator generator,
+                      Set<String> numericAttributes, int notificationCapacity,
+                      OverflowPolicy overflowPolicy) {
         uuidGenerator = generator;
-        executor = execService;
+        blocking = overflowPolicy == OverflowPolicy.BLOCK;
+        dispatcher = new Dispatcher(execService, NOTIFICATION_BATCH_SIZE,
+                                    MAX_BATCH_SIZE, notificationCapacity,
+                                    overflowPolicy, new Dispatcher.Resync() {
+                                        @Override
+                                        public void resync(ServiceListener listener) {
+                                            LocalScope.this.resync(listener);
+                                        }
+                                    },
+                                    TimeUnit.MILLISECONDS.toNanos(DEFAULT_SLOW_LISTENER_THRESHOLD));
+        dispatcher.setMetrics(metrics);
+        Set<String> numeric = new HashSet<String>();
+        for (String attribute : numericAttributes) {
+            numeric.add(attribute.toLowerCase());
+        }
+        numeric = Collections.unmodifiableSet(numeric);
+        filters = new FilterCache(FilterCache.DEFAULT_CAPACITY, numeric);
+        index = new AttributeIndex(numeric);
+        long now = System.nanoTime();
+        for (int i = 0; i < eventRates.length; i++) {
+            eventRates[i] = new Rate(now);
+        }
     }
 
     public LocalScope(int notificationThreads) {
+        this(notificationThreads, Collections.<String> emptySet());
+    }
+
+    public LocalScope(int notificationThreads, Set<String> numericAttributes) {
         this(Executors.newFixedThreadPool(notificationThreads),
-             Generators.timeBasedGenerator());
+             Generators.timeBasedGenerator(), numericAttributes);
     }
 
     /* (non-Javadoc)
      * @see com.hellblazer.slp.ServiceScope#addServiceListener(com.hellblazer.slp.ServiceListener, java.lang.String)
      */
     @Override
-    public void addServiceListener(final ServiceListener listener, String query)
-                                                                                throws InvalidSyntaxException {
-        if (log.isTraceEnabled()) {
-            log.trace("adding listener: " + listener + " on query: " + query);
+    public void addServiceListener(ServiceListener listener, String query)
+                                                                          throws InvalidSyntaxException {
+        long start = System.nanoTime();
+        try {
+            attach(listener, query, -1);
+        } finally {
+            metrics.operation(Operation.ADD_SERVICE_LISTENER,
+                              System.nanoTime() - start);
         }
-        List<ServiceReference> references;
-        listeners.add(new ListenerRegistration(listener, new Filter(query)));
-        references = getServiceReferences(null, query);
-        for (ServiceReference reference : references) {
-            final ServiceReference ref = reference;
-            executor.execute(new Runnable() {
-                @Override
-                public void run() {
-                    try {
-                        listener.serviceChanged(new ServiceEvent(
-                                                                 EventType.REGISTERED,
-                                                                 ref));
-                    } catch (Throwable e) {
-                        log.error("Error when notifying listener on reference "
-                                  + EventType.REGISTERED, e);
-                    }
-                }
-            });
+    }
+
+    /* (non-Javadoc)
+     * @see com.hellblazer.slp.ServiceScope#addServiceListener(com.hellblazer.slp.ServiceListener, java.lang.String, long)
+     */
+    @Override
+    public boolean addServiceListener(ServiceListener listener, String query,
+                                      long sequence)
+                                                    throws InvalidSyntaxException {
+        long start = System.nanoTime();
+        try {
+            return attach(listener, query, sequence);
+        } finally {
+            metrics.operation(Operation.ADD_SERVICE_LISTENER,
+                              System.nanoTime() - start);
+        }
+    }
+
+    /* (non-Javadoc)
+     * @see com.hellblazer.slp.ServiceScope#getChangesSince(long)
+     */
+    @Override
+    public ServiceChanges getChangesSince(long version) {
+        return changes.since(version);
+    }
+
+    /**
+     * Explain a lookup of the service references of the type which match the
+     * query, as answered by {@link #getServiceReferences(String, String)}. The
+     * query is run, sequentially, to count the candidates it examines and the
+     * services it matches.
+     */
+    public QueryPlan explain(String serviceType, String query)
+                                                              throws InvalidSyntaxException {
+        long start = System.nanoTime();
+        String type = normalizeType(serviceType);
+        String normalized = normalizeQuery(query);
+        boolean anyType = ServiceTypeIndex.ANY_TYPE.equals(type);
+        CompiledFilter matcher = compile(type, normalized);
+        Filter filter = anyType && normalized == null ? null
+                                                     : filters.get(anyType ? null
+                                                                          : type,
+                                                                   normalized);
+        long parsed = System.nanoTime();
+        QuerySpliterator results = plan(type, matcher);
+        long candidates = results.estimateSize();
+        long planned = System.nanoTime();
+        long matched = 0;
+        while (results.next() != null) {
+            matched++;
         }
+        long executed = System.nanoTime();
+        return new QueryPlan(serviceType, query, filter,
+                             results.getAccessPath(), results.isTypeChecked(),
+                             results.isFiltered()
+                                     && candidates >= parallelScanThreshold,
+                             candidates, results.getExamined(), matched,
+                             parsed - start, planned - parsed,
+                             executed - planned);
+    }
+
+    /**
+     * Answer the cache of the parsed filters of the lookups and listener
+     * registrations of this scope, with its hit and miss counts
+     */
+    public FilterCache getFilterCache() {
+        return filters;
+    }
 
+    /**
+     * Answer the statistics of the notification queues of the listeners
+     */
+    public List<ListenerStatistics> getListenerStatistics() {
+        return dispatcher.statistics();
+    }
+
+    /**
+     * Answer the metrics this scope reports to
+     */
+    public ScopeMetrics getMetrics() {
+        return metrics;
+    }
+
+    /**
+     * Answer the name this scope's {@link LocalScopeMXBean} is registered
+     * under, or null if the scope is not started
+     */
+    public synchronized ObjectName getObjectName() {
+        return objectName;
+    }
+
+    /**
+     * Answer the number of candidates above which a query is evaluated in
+     * parallel
+     */
+    public int getParallelScanThreshold() {
+        return parallelScanThreshold;
     }
 
     /* (non-Javadoc)
@@ -182,16 +601,21 @@ public class LocalScope implements ServiceScope {
     @Override
     public ServiceReference getServiceReference(String serviceType)
                                                                    throws InvalidSyntaxException {
-        if (serviceType == null) {
-            serviceType = "*";
-        }
-        Filter filter = new Filter("(" + SERVICE_TYPE + "=" + serviceType + ")");
-        for (ServiceReference ref : services.values()) {
-            if (filter.match(ref)) {
-                return ref;
+        long start = System.nanoTime();
+        try {
+            if (serviceType == null) {
+                serviceType = ServiceTypeIndex.ANY_TYPE;
             }
+            if (!ServiceTypeIndex.ANY_TYPE.equals(serviceType)
+                && !ServiceTypeIndex.isPattern(serviceType)) {
+                return selector.select(serviceType);
+            }
+            List<ServiceReference> references = lookup(serviceType, null, 1);
+            return references.isEmpty() ? null : references.get(0);
+        } finally {
+            metrics.operation(Operation.GET_SERVICE_REFERENCE,
+                              System.nanoTime() - start);
         }
-        return null;
     }
 
     /* (non-Javadoc)
@@ -201,24 +625,75 @@ public class LocalScope implements ServiceScope {
     public List<ServiceReference> getServiceReferences(String serviceType,
                                                        String query)
                                                                     throws InvalidSyntaxException {
-        if (serviceType == null) {
-            serviceType = "*";
+        long start = System.nanoTime();
+        try {
+            return lookup(serviceType, query, Integer.MAX_VALUE);
+        } finally {
+            metrics.operation(Operation.GET_SERVICE_REFERENCES,
+                              System.nanoTime() - start);
         }
-        Filter filter;
-        if (query == null) {
-            filter = new Filter(String.format("(%s=%s)", SERVICE_TYPE,
-                                              serviceType));
-        } else {
-            filter = new Filter(String.format("(&(%s=%s) %s)", SERVICE_TYPE,
-                                              serviceType, query));
+    }
+
+    /* (non-Javadoc)
+     * @see com.hellblazer.slp.ServiceScope#getServiceReferenceSpliterator(java.lang.String, java.lang.String)
+     */
+    @Override
+    public Spliterator<ServiceReference> getServiceReferenceSpliterator(String serviceType,
+                                                                        String query)
+                                                                                     throws InvalidSyntaxException {
+        long start = System.nanoTime();
+        try {
+            return query(serviceType, query);
+        } finally {
+            metrics.operation(Operation.GET_SERVICE_REFERENCE_SPLITERATOR,
+                              System.nanoTime() - start);
         }
-        ArrayList<ServiceReference> references = new ArrayList<ServiceReference>();
-        for (Map.Entry<UUID, ServiceReferenceImpl> entry : services.entrySet()) {
-            if (filter.match(entry.getValue())) {
-                references.add(entry.getValue());
+    }
+
+    /* (non-Javadoc)
+     * @see com.hellblazer.slp.ServiceScope#iterateServiceReferences(java.lang.String, java.lang.String, long, long)
+     */
+    @Override
+    public Iterator<ServiceReference> iterateServiceReferences(String serviceType,
+                                                               String query,
+                                                               long offset,
+                                                               long limit)
+                                                                          throws InvalidSyntaxException {
+        if (offset < 0 || limit < 0) {
+            throw new IllegalArgumentException(
+                                               "Offset and limit cannot be negative");
+        }
+        long start = System.nanoTime();
+        try {
+            return StreamSupport.stream(query(serviceType, query), false).skip(offset).limit(limit).iterator();
+        } finally {
+            metrics.operation(Operation.ITERATE_SERVICE_REFERENCES,
+                              System.nanoTime() - start);
+        }
+    }
+
+    /**
+     * Answer the statistics of the listeners which have taken longer than the
+     * slow listener threshold to process their events, the slowest first
+     */
+    public List<ListenerStatistics> getSlowListeners() {
+        List<ListenerStatistics> slow = new ArrayList<ListenerStatistics>();
+        for (ListenerStatistics statistics : dispatcher.statistics()) {
+            if (statistics.getSlowInvocations() > 0) {
+                slow.add(statistics);
             }
         }
-        return references;
+        Collections.sort(slow, ListenerStatistics.SLOWEST_FIRST);
+        return slow;
+    }
+
+    /**
+     * Answer the duration an invocation of a listener may take before the
+     * listener is flagged as slow
+     */
+    public long getSlowListenerThreshold(TimeUnit unit) {
+        return unit.convert(dispatcher.getSlowListenerThreshold(),
+                            TimeUnit.NANOSECONDS);
     }
 
     /* (non-Javadoc)
@@ -229,19 +704,75 @@ public class LocalScope implements ServiceScope {
         if (url == null) {
             throw new IllegalArgumentException("Service URL cannot be null");
         }
-        UUID registration = uuidGenerator.generate();
-        if (properties == null) {
-            properties = new HashMap<String, String>();
-        }
-        properties = new HashMap<String, String>(properties);
-        properties.put(SERVICE_TYPE, url.getServiceType().toString());
-        properties.put(SERVICE_REGISTRATION, registration.toString());
-        ServiceReferenceImpl ref = new ServiceReferenceImpl(url, properties,
-                                                            registration);
-        services.put(registration, ref);
-        serviceChanged(ref, EventType.REGISTERED);
+        long start = System.nanoTime();
+        ServiceReferenceImpl ref;
+        synchronized (changes) {
+            ref = newReference(url, properties, changes.next());
+            changes.added(ref);
+        }
+        synchronized (ref) {
+            services.put(ref.getRegistration(), ref);
+            types.add(ref);
+            selector.add(ref);
+            index.add(ref, ref.currentProperties());
+        }
+        dispatchChanges();
+        metrics.operation(Operation.REGISTER, System.nanoTime() - start);
+        return ref.getRegistration();
+    }
+
+    /* (non-Javadoc)
+     * @see com.hellblazer.slp.ServiceScope#register(com.hellblazer.slp.ServiceURL, java.util.Map, long, java.util.concurrent.TimeUnit)
+     */
+    @Override
+    public UUID register(ServiceURL url, Map<String, String> properties,
+                         long ttl, TimeUnit unit) {
+        if (ttl <= 0) {
+            throw new IllegalArgumentException(
+                                               "Lease duration must be greater than zero");
+        }
+        UUID registration = register(url, properties);
+        leases.schedule(registration, System.nanoTime() + unit.toNanos(ttl));
+        startLeaseTimer();
         return registration;
+    }
 
+    /* (non-Javadoc)
+     * @see com.hellblazer.slp.ServiceScope#registerAll(java.util.List)
+     */
+    @Override
+    public List<UUID> registerAll(List<ServiceDescription> batch) {
+        for (ServiceDescription service : batch) {
+            if (service == null) {
+                throw new IllegalArgumentException(
+                                                   "Service description cannot be null");
+            }
+        }
+        long start = System.nanoTime();
+        List<ServiceReferenceImpl> refs = new ArrayList<ServiceReferenceImpl>(
+                                                                              batch.size());
+        List<UUID> registrations = new ArrayList<UUID>(batch.size());
+        synchronized (changes) {
+            for (ServiceDescription service : batch) {
+                ServiceReferenceImpl ref = newReference(service.getUrl(),
+                                                        service.getProperties(),
+                                                        changes.next());
+                changes.added(ref);
+                refs.add(ref);
+            }
+        }
+        // indexed before they are published, so an unregistration finding
+        // them follows their indexing
+        types.addAll(refs);
+        selector.addAll(refs);
+        index.addAll(refs);
+        for (ServiceReferenceImpl ref : refs) {
+            registrations.add(ref.getRegistration());
+            services.put(ref.getRegistration(), ref);
+        }
+        dispatchChanges();
+        metrics.operation(Operation.REGISTER_ALL, System.nanoTime() - start);
+        return registrations;
     }
 
     /* (non-Javadoc)
@@ -255,7 +786,12 @@ public class LocalScope implements ServiceScope {
                 registrations.add(reg);
             }
         }
-        listeners.removeAll(registrations);
+        for (ListenerRegistration reg : registrations) {
+            if (listeners.remove(reg)) {
+                listenerIndex.remove(reg);
+                dispatcher.unregister(listener, reg.query.toString());
+            }
+        }
     }
 
     /* (non-Javadoc)
@@ -264,7 +800,61 @@ public class LocalScope implements ServiceScope {
     @Override
     public void removeServiceListener(ServiceListener listener, String query)
                                                                              throws InvalidSyntaxException {
-        listeners.remove(new ListenerRegistration(listener, new Filter(query)));
+        ListenerRegistration registration = new ListenerRegistration(
+                                                                     listener,
+                                                                     filters.compile(null,
+                                                                                     query));
+        if (listeners.remove(registration)) {
+            listenerIndex.remove(registration);
+            dispatcher.unregister(listener, registration.query.toString());
+        }
+    }
+
+    /* (non-Javadoc)
+     * @see com.hellblazer.slp.ServiceScope#renew(java.util.UUID, long, java.util.concurrent.TimeUnit)
+     */
+    @Override
+    public boolean renew(UUID serviceRegistration, long ttl, TimeUnit unit) {
+        if (ttl <= 0) {
+            throw new IllegalArgumentException(
+                                               "Lease duration must be greater than zero");
+        }
+        return leases.renew(serviceRegistration,
+                            System.nanoTime() + unit.toNanos(ttl));
+    }
+
+    /**
+     * Set the metrics this scope reports to
+     */
+    public void setMetrics(ScopeMetrics metrics) {
+        if (metrics == null) {
+            throw new IllegalArgumentException("Metrics cannot be null");
+        }
+        this.metrics = metrics;
+        dispatcher.setMetrics(metrics);
+    }
+
+    /**
+     * Set the number of candidates above which a query is evaluated in
+     * parallel. Queries which no index can narrow below the threshold are
+     * split across the common fork/join pool, each worker collecting its own
+     * results, which are merged when the workers join.
+     */
+    public void setParallelScanThreshold(int parallelScanThreshold) {
+        if (parallelScanThreshold < 1) {
+            throw new IllegalArgumentException(
+                                               "Parallel scan threshold must be greater than zero");
+        }
+        this.parallelScanThreshold = parallelScanThreshold;
+    }
+
+    /**
+     * Set the duration an invocation of a listener may take before the
+     * listener is flagged as slow. A listener taking longer is logged, and
+     * answered by {@link #getSlowListeners()}.
+     */
+    public void setSlowListenerThreshold(long threshold, TimeUnit unit) {
+        dispatcher.setSlowListenerThreshold(unit.toNanos(threshold));
     }
 
     /* (non-Javadoc)
@@ -273,6 +863,7 @@ public class LocalScope implements ServiceScope {
     @Override
     public void setProperties(UUID serviceRegistration,
                               Map<String, String> properties) {
+        long start = System.nanoTime();
         ServiceReferenceImpl ref = services.get(serviceRegistration);
         if (ref == null) {
             if (log.isTraceEnabled()) {
@@ -281,30 +872,111 @@ public class LocalScope implements ServiceScope {
             }
             return;
         }
-        properties = new HashMap<String, String>(properties);
-        properties.put(SERVICE_TYPE, ref.currentProperties().get(SERVICE_TYPE));
-        ref.setProperties(properties);
-        serviceChanged(ref, EventType.MODIFIED);
+        synchronized (ref) {
+            if (services.get(serviceRegistration) != ref) {
+                return;
+            }
+            PropertySnapshot previous = ref.currentProperties();
+            PropertySnapshot current;
+            synchronized (changes) {
+                current = new PropertySnapshot(properties, changes.next(),
+                                               SERVICE_TYPE,
+                                               previous.get(SERVICE_TYPE));
+                ref.setProperties(current);
+                changes.modified(ref, previous.getVersion());
+            }
+            index.update(ref, previous, current);
+        }
+        dispatchChanges();
+        metrics.operation(Operation.SET_PROPERTIES, System.nanoTime() - start);
     }
 
+    /**
+     * Start the scope, registering its {@link LocalScopeMXBean} with the
+     * platform MBean server, and restarting the expiry of the leases
+     * outstanding when the scope was stopped
+     */
     @Override
     public ServiceScope start() {
+        synchronized (this) {
+            if (leases.size() > 0) {
+                startLeaseTimer();
+            }
+            if (objectName != null) {
+                return this;
+            }
+            try {
+                ObjectName name = new ObjectName(
+                                                 String.format("com.hellblazer.slp:type=LocalScope,id=%s",
+                                                               instances.incrementAndGet()));
+                ManagementFactory.getPlatformMBeanServer().registerMBean(new Monitor(),
+                                                                         name);
+                objectName = name;
+            } catch (JMException e) {
+                log.warn("Unable to register the management interface of the scope",
+                         e);
+            }
+        }
         return this;
     }
 
+    /**
+     * Stop the scope, unregistering its {@link LocalScopeMXBean}
+     */
     @Override
     public ServiceScope stop() {
+        synchronized (this) {
+            if (leaseTimer != null) {
+                leaseTimer.shutdownNow();
+                leaseTimer = null;
+            }
+            if (objectName != null) {
+                try {
+                    ManagementFactory.getPlatformMBeanServer().unregisterMBean(objectName);
+                } catch (JMException e) {
+                    log.warn(String.format("Unable to unregister %s",
+                                           objectName), e);
+                }
+                objectName = null;
+            }
+        }
         return this;
     }
 
+    /* (non-Javadoc)
+     * @see com.hellblazer.slp.ServiceScope#streamServiceReferences(java.lang.String, java.lang.String)
+     */
+    @Override
+    public Stream<ServiceReference> streamServiceReferences(String serviceType,
+                                                            String query)
+                                                                         throws InvalidSyntaxException {
+        long start = System.nanoTime();
+        try {
+            return StreamSupport.stream(query(serviceType, query), false);
+        } finally {
+            metrics.operation(Operation.STREAM_SERVICE_REFERENCES,
+                              System.nanoTime() - start);
+        }
+    }
+
     /* (non-Javadoc)
      * @see com.hellblazer.slp.ServiceScope#unregister(java.util.UUID)
      */
     @Override
     public void unregister(UUID serviceRegistration) {
-        ServiceReference ref = services.remove(serviceRegistration);
+        long start = System.nanoTime();
+        leases.cancel(serviceRegistration);
+        ServiceReferenceImpl ref = services.remove(serviceRegistration);
         if (ref != null) {
-            serviceChanged(ref, EventType.UNREGISTERED);
+            // after the indexing of a registration still in progress
+            synchronized (ref) {
+                types.remove(ref);
+                selector.remove(ref);
+                changes.removed(ref);
+                index.remove(ref, ref.currentProperties());
+            }
+            dispatchChanges();
+            metrics.operation(Operation.UNREGISTER, System.nanoTime() - start);
         } else {
             if (log.isTraceEnabled()) {
                 log.trace(String.format("No service registered for %s",
@@ -313,31 +985,407 @@ public class LocalScope implements ServiceScope {
         }
     }
 
-    protected void serviceChanged(final ServiceReference reference,
-                                  final EventType type) {
-        executor.execute(new Runnable() {
+    /* (non-Javadoc)
+     * @see com.hellblazer.slp.ServiceScope#unregisterAll(java.util.Collection)
+     */
+    @Override
+    public void unregisterAll(Collection<UUID> serviceRegistrations) {
+        long start = System.nanoTime();
+        Map<ServiceReferenceImpl, Map<String, String>> removed = new LinkedHashMap<ServiceReferenceImpl, Map<String, String>>();
+        for (UUID serviceRegistration : serviceRegistrations) {
+            leases.cancel(serviceRegistration);
+            ServiceReferenceImpl ref = services.remove(serviceRegistration);
+            if (ref == null) {
+                if (log.isTraceEnabled()) {
+                    log.trace(String.format("No service registered for %s",
+                                            serviceRegistration));
+                }
+                continue;
+            }
+            synchronized (ref) {
+                types.remove(ref);
+                selector.remove(ref);
+                changes.removed(ref);
+                removed.put(ref, ref.currentProperties());
+            }
+        }
+        if (removed.isEmpty()) {
+            return;
+        }
+        index.removeAll(removed);
+        dispatchChanges();
+        metrics.operation(Operation.UNREGISTER_ALL, System.nanoTime() - start);
+    }
+
+    /**
+     * Dispatch the changes published by the change log to the listeners, in
+     * sequence order. One thread at a time dispatches, taking the changes
+     * published meanwhile by the other threads, which leave their changes to
+     * it; the listeners therefore receive the changes of all the threads in
+     * the order of their versions. The changes are dispatched without holding
+     * the change log, so a dispatching thread blocked by a full listener does
+     * not block the mutations of the scope.
+     * 
+     * <p>
+     * When the overflow policy is {@link OverflowPolicy#BLOCK}, the threads
+     * leaving their changes to the dispatching thread wait until their changes
+     * are dispatched, so a blocked listener holds back every producer and the
+     * changes awaiting dispatch are bounded by the number of producers. A
+     * notification thread never waits, as the dispatching thread may be
+     * waiting on its listener.
+     */
+    void dispatchChanges() {
+        long published = changes.getVersion();
+        while (changes.hasUndispatched()) {
+            if (dispatching.compareAndSet(false, true)) {
+                try {
+                    List<ServiceEvent> events;
+                    while (!(events = changes.undispatched()).isEmpty()) {
+                        if (events.size() == 1) {
+                            serviceChanged(events.get(0));
+                        } else {
+                            serviceChanged(events);
+                        }
+                        dispatched = events.get(events.size() - 1).getSequence();
+                        signalDispatch();
+                    }
+                } finally {
+                    dispatching.set(false);
+                    signalDispatch();
+                }
+            } else if (!blocking || Dispatcher.isDelivering()
+                       || !awaitDispatch(published)) {
+                return;
+            }
+        }
+    }
+
+    /**
+     * Advance the lease wheel to the time, unregistering the services whose
+     * leases have expired
+     */
+    void expireLeases(long now) {
+        List<UUID> expired = leases.tick(now);
+        if (expired.isEmpty()) {
+            return;
+        }
+        if (log.isDebugEnabled()) {
+            log.debug(String.format("Expiring %s leased registrations",
+                                    expired.size()));
+        }
+        unregisterAll(expired);
+    }
+
+    /**
+     * Attach the listener to the scope. Holding the change log, the listener
+     * is registered as of the current version of the scope, so it receives
+     * exactly the events after that version. If the events after the sequence
+     * are still held by the journal they are replayed to the listener;
+     * otherwise the listener receives the services of the scope at the version
+     * as registration events. Events arriving while the replay or snapshot is
+     * prepared are deferred, and delivered after it in sequence order.
+     * 
+     * @return true if the listener resumed from the sequence, false if the
+     *         listener was sent the services of the scope instead, or was
+     *         already attached with the query
+     */
+    /**
+     * Wait while another thread dispatches, until the changes up to the
+     * version have been dispatched
+     * 
+     * @return true if the changes are yet to be dispatched, and no thread
+     *         dispatches them
+     */
+    private boolean awaitDispatch(long version) {
+        synchronized (dispatching) {
+            try {
+                while (dispatched < version && dispatching.get()) {
+                    dispatching.wait();
+                }
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                return false;
+            }
+        }
+        return dispatched < version;
+    }
+
+    private boolean attach(ServiceListener listener, String query,
+                           long sequence) throws InvalidSyntaxException {
+        if (log.isTraceEnabled()) {
+            log.trace("adding listener: " + listener + " on query: " + query);
+        }
+        ListenerRegistration registration = new ListenerRegistration(
+                                                                     listener,
+                                                                     filters.compile(null,
+                                                                                     query));
+        List<ServiceEvent> replay = null;
+        synchronized (changes) {
+            if (!listeners.add(registration)) {
+                return false; // already attached, nothing resumed
+            }
+            if (sequence >= 0) {
+                replay = changes.eventsSince(sequence);
+            }
+            registration.attaching(changes.getVersion());
+            dispatcher.register(listener, registration.query.toString());
+            listenerIndex.add(registration);
+        }
+        List<ServiceEvent> events = new ArrayList<ServiceEvent>();
+        if (replay != null) {
+            for (ServiceEvent event : replay) {
+                if (registration.matcher.match(event.getReference())) {
+                    events.add(event);
+                }
+            }
+        } else {
+            events = snapshot(registration);
+        }
+        registration.attached(events, dispatcher);
+        return replay != null;
+    }
+
+    /**
+     * Resynchronize the listener whose events have been discarded, attaching
+     * its registrations again with the current services matching their
+     * queries
+     */
+    private void resync(ServiceListener listener) {
+        List<ListenerRegistration> registrations = new ArrayList<ListenerRegistration>();
+        for (ListenerRegistration registration : listeners) {
+            if (registration.listener == listener) {
+                registrations.add(registration);
+            }
+        }
+        synchronized (changes) {
+            long version = changes.getVersion();
+            for (ListenerRegistration registration : registrations) {
+                registration.attaching(version);
+            }
+        }
+        // events from here on are deferred by the registrations
+        dispatcher.resynced(listener);
+        for (ListenerRegistration registration : registrations) {
+            registration.attached(snapshot(registration), dispatcher);
+        }
+    }
+
+    /**
+     * Answer the registration events of the services matching the query of
+     * the registration, at the version it is attached at
+     */
+    private List<ServiceEvent> snapshot(ListenerRegistration registration) {
+        List<ServiceEvent> events = new ArrayList<ServiceEvent>();
+        for (ServiceReferenceImpl reference : changes.snapshot(registration.since)) {
+            if (registration.matcher.match(reference)) {
+                events.add(new ServiceEvent(EventType.REGISTERED, reference,
+                                            registration.since));
+            }
+        }
+        return events;
+    }
+
+    /**
+     * Answer up to the limit of references of the service type which match the
+     * query. Unlimited queries with enough candidates are evaluated in
+     * parallel.
+     */
+    private List<ServiceReference> lookup(String serviceType, String query,
+                                          int limit)
+                                                    throws InvalidSyntaxException {
+        QuerySpliterator results = query(serviceType, query);
+        if (limit == Integer.MAX_VALUE && results.isFiltered()
+            && results.estimateSize() >= parallelScanThreshold) {
+            return StreamSupport.stream(results, true).collect(Collectors.<ServiceReference> toList());
+        }
+        List<ServiceReference> references = new ArrayList<ServiceReference>();
+        ServiceReferenceImpl reference;
+        while (references.size() < limit
+               && (reference = results.next()) != null) {
+            references.add(reference);
+        }
+        return references;
+    }
+
+    /**
+     * Answer the lazily evaluated references of the service type which match
+     * the query. Service types and families are resolved by the type index, and
+     * the query by the attribute index, whichever yields fewer candidates.
+     * Service type patterns other than the wildcard type are matched as part of
+     * the filter.
+     */
+    private QuerySpliterator query(String serviceType, String query)
+                                                                    throws InvalidSyntaxException {
+        serviceType = normalizeType(serviceType);
+        query = normalizeQuery(query);
+        return plan(serviceType, compile(serviceType, query));
+    }
+
+    /**
+     * Answer the compiled filter of a query of the normalized service type, or
+     * null if the query matches every service of the type
+     */
+    private CompiledFilter compile(String serviceType, String query)
+                                                                    throws InvalidSyntaxException {
+        if (ServiceTypeIndex.isPattern(serviceType)) {
+            return filters.compile(serviceType, query);
+        }
+        return query == null ? null : filters.compile(null, query);
+    }
+
+    private String normalizeQuery(String query) {
+        return query != null && query.trim().isEmpty() ? null : query;
+    }
+
+    private String normalizeType(String serviceType) {
+        return serviceType == null ? ServiceTypeIndex.ANY_TYPE : serviceType;
+    }
+
+    /**
+     * Answer the lazily evaluated references of the normalized service type
+     * which match the compiled filter of the query. The candidates are the
+     * services of the type index or the attribute index, whichever yields
+     * fewer.
+     */
+    private QuerySpliterator plan(String serviceType, CompiledFilter matcher) {
+        if (ServiceTypeIndex.isPattern(serviceType)) {
+            Collection<ServiceReferenceImpl> narrowed = index.candidates(matcher.getFilter());
+            if (narrowed == null) {
+                return new QuerySpliterator(services.values().spliterator(),
+                                            matcher, null, types,
+                                            AccessPath.FULL_SCAN);
+            }
+            return new QuerySpliterator(narrowed.spliterator(), matcher, null,
+                                        types, AccessPath.ATTRIBUTE_INDEX);
+        }
+        boolean anyType = ServiceTypeIndex.ANY_TYPE.equals(serviceType);
+        Collection<ServiceReferenceImpl> typed = anyType ? services.values()
+                                                        : types.lookup(serviceType);
+        if (matcher != null) {
+            Collection<ServiceReferenceImpl> narrowed = index.candidates(matcher.getFilter());
+            if (narrowed != null && (anyType || narrowed.size() < typed.size())) {
+                return new QuerySpliterator(narrowed.spliterator(), matcher,
+                                            anyType ? null : serviceType,
+                                            types, AccessPath.ATTRIBUTE_INDEX);
+            }
+        }
+        return new QuerySpliterator(typed.spliterator(), matcher, null, types,
+                                    anyType ? AccessPath.FULL_SCAN
+                                           : AccessPath.TYPE_INDEX);
+    }
+
+    /**
+     * Start the timer ticking the lease wheel, if it is not running
+     */
+    /**
+     * Wake the threads waiting for the dispatch of their changes
+     */
+    private void signalDispatch() {
+        if (blocking) {
+            synchronized (dispatching) {
+                dispatching.notifyAll();
+            }
+        }
+    }
+
+    private synchronized void startLeaseTimer() {
+        if (leaseTimer != null) {
+            return;
+        }
+        leaseTimer = Executors.newSingleThreadScheduledExecutor(new ThreadFactory() {
+            @Override
+            public Thread newThread(Runnable r) {
+                Thread thread = new Thread(r, "LocalScope lease timer");
+                thread.setDaemon(true);
+                return thread;
+            }
+        });
+        leaseTimer.scheduleAtFixedRate(new Runnable() {
             @Override
             public void run() {
-                for (ListenerRegistration reg : listeners) {
-                    if (reg.query.match(reference)) {
-                        final ServiceListener listener = reg.listener;
-                        executor.execute(new Runnable() {
-                            @Override
-                            public void run() {
-                                try {
-                                    listener.serviceChanged(new ServiceEvent(
-                                                                             type,
-                                                                             reference));
-                                } catch (Throwable e) {
-                                    log.error(String.format("Error when notifying listener %s on reference %s type %s",
-                                                            listener,
-                                                            reference, type), e);
-                                }
-                            }
-                        });
+                try {
+                    expireLeases(System.nanoTime());
+                } catch (Throwable e) {
+                    log.error("Error expiring leases", e);
+                }
+            }
+        }, LEASE_TICK_MILLIS, LEASE_TICK_MILLIS, TimeUnit.MILLISECONDS);
+    }
+
+    /**
+     * Construct a new service reference, with a fresh registration
+     */
+    private ServiceReferenceImpl newReference(ServiceURL url,
+                                              Map<String, String> properties,
+                                              long version) {
+        UUID registration = uuidGenerator.generate();
+        return new ServiceReferenceImpl(
+                                        url,
+                                        new PropertySnapshot(
+                                                             properties,
+                                                             version,
+                                                             SERVICE_TYPE,
+                                                             url.getServiceType().toString(),
+                                                             SERVICE_REGISTRATION,
+                                                             registration.toString()),
+                                        registration);
+    }
+
+    /**
+     * Dispatch the events to the listeners whose queries match their
+     * references. The events dispatched to a listener are delivered as a
+     * single batch.
+     */
+    protected void serviceChanged(List<ServiceEvent> events) {
+        Map<ServiceListener, List<ServiceEvent>> dispatch = new HashMap<ServiceListener, List<ServiceEvent>>();
+        ScopeMetrics metrics = this.metrics;
+        for (ServiceEvent event : events) {
+            ServiceReference reference = event.getReference();
+            int evaluated = 0;
+            for (ListenerRegistration reg : listenerIndex.candidates(reference.getProperties())) {
+                if (event.getSequence() <= reg.since) {
+                    continue;
+                }
+                evaluated++;
+                if (reg.match(reference) && !reg.defer(event)) {
+                    List<ServiceEvent> pending = dispatch.get(reg.listener);
+                    if (pending == null) {
+                        pending = new ArrayList<ServiceEvent>();
+                        dispatch.put(reg.listener, pending);
                     }
+                    pending.add(event);
                 }
             }
-        });
+            metrics.evaluated(event, evaluated);
+            eventRates[event.getType().ordinal()].mark();
+        }
+        for (Map.Entry<ServiceListener, List<ServiceEvent>> entry : dispatch.entrySet()) {
+            dispatcher.dispatch(entry.getKey(), entry.getValue());
+        }
+    }
+
+    /**
+     * Dispatch the event to the listeners whose queries match the reference.
+     * Events reach a listener in the order this method is called for them;
+     * the scope calls it from {@link #dispatchChanges()}, in sequence order.
+     * Delivery to the listeners is asynchronous. Listeners attached after the
+     * event was sequenced do not receive it, as the service is part of the
+     * snapshot they were attached with.
+     */
+    protected void serviceChanged(ServiceEvent event) {
+        ServiceReference reference = event.getReference();
+        int evaluated = 0;
+        for (ListenerRegistration reg : listenerIndex.candidates(reference.getProperties())) {
+            if (event.getSequence() <= reg.since) {
+                continue;
+            }
+            evaluated++;
+            if (reg.match(reference) && !reg.defer(event)) {
+                dispatcher.dispatch(reg.listener, event);
+            }
+        }
+        metrics.evaluated(event, evaluated);
+        eventRates[event.getType().ordinal()].mark();
     }
+
 }
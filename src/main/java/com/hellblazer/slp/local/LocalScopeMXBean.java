@@ -0,0 +1,90 @@
+/** (C) Copyright 2014 Chiral Behaviors, All Rights Reserved
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.hellblazer.slp.local;
+
+import java.util.List;
+import java.util.Map;
+
+/**
+ * The management interface of a {@link LocalScope}, registered with the
+ * platform MBean server while the scope is started.
+ *
+ * @author hhildebrand
+ *
+ */
+public interface LocalScopeMXBean {
+
+    /**
+     * Answer a description of the listener filters with the highest estimated
+     * total evaluation time, the most expensive first
+     *
+     * @param limit
+     *            - the maximum number of filters to answer
+     */
+    List<String> dumpMostExpensiveFilters(int limit);
+
+    /**
+     * Answer a description of the listeners with the longest invocations, the
+     * slowest first
+     *
+     * @param limit
+     *            - the maximum number of listeners to answer
+     */
+    List<String> dumpSlowestListeners(int limit);
+
+    /**
+     * Answer the number of listeners being notified at this moment, each
+     * occupying a notification thread
+     */
+    int getActiveDispatchThreads();
+
+    /**
+     * Answer the number of distinct filters of the listener registrations
+     */
+    int getDistinctFilterCount();
+
+    /**
+     * Answer the number of events of the scope, by event type
+     */
+    Map<String, Long> getEventCounts();
+
+    /**
+     * Answer the one minute moving average of the events per second of the
+     * scope, by event type
+     */
+    Map<String, Double> getEventRates();
+
+    /**
+     * Answer the number of listener registrations
+     */
+    int getListenerCount();
+
+    /**
+     * Answer the number of notification tasks waiting in the queue of the
+     * notification executor, or -1 if the executor's queue is not observable
+     */
+    int getNotificationQueueDepth();
+
+    /**
+     * Answer the number of events waiting in the notification queues of the
+     * listeners
+     */
+    long getPendingNotifications();
+
+    /**
+     * Answer the number of service registrations
+     */
+    int getRegistrationCount();
+}
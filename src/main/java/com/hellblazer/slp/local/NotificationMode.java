@@ -0,0 +1,75 @@
+/** (C) Copyright 2014 Chiral Behaviors, All Rights Reserved
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.hellblazer.slp.local;
+
+import java.lang.reflect.Method;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+/**
+ * The threads delivering notifications to the listeners of a scope. Whatever
+ * the mode, the events of a listener are delivered one at a time, in order, as
+ * each listener's mailbox is drained by at most one task at any time.
+ * 
+ * @author hhildebrand
+ * 
+ */
+public enum NotificationMode {
+    /**
+     * A fixed pool of platform threads. A listener blocking in its
+     * notification holds one of the threads of the pool, delaying the
+     * notification of the other listeners.
+     */
+    FIXED_POOL {
+        @Override
+        public ExecutorService newExecutor(int threads) {
+            return Executors.newFixedThreadPool(threads);
+        }
+    },
+    /**
+     * A virtual thread per delivery, so listeners which block in their
+     * notifications do not starve each other. Requires Java 21 or later.
+     */
+    VIRTUAL_THREADS {
+        @Override
+        public ExecutorService newExecutor(int threads) {
+            Method factory;
+            try {
+                factory = Executors.class.getMethod("newVirtualThreadPerTaskExecutor");
+            } catch (NoSuchMethodException e) {
+                throw new UnsupportedOperationException(
+                                                        "Virtual threads require Java 21 or later");
+            }
+            try {
+                return (ExecutorService) factory.invoke(null);
+            } catch (Exception e) {
+                throw new IllegalStateException(
+                                                 "Unable to create virtual thread executor",
+                                                 e);
+            }
+        }
+    };
+
+    /**
+     * Answer a new executor delivering notifications in this mode
+     * 
+     * @param threads
+     *            - the number of threads of a fixed pool, ignored by the
+     *            other modes
+     * @throws UnsupportedOperationException
+     *             - if the mode is not supported by the running JVM
+     */
+    public abstract ExecutorService newExecutor(int threads);
+}
@@ -0,0 +1,51 @@
+/** (C) Copyright 2014 Chiral Behaviors, All Rights Reserved
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.hellblazer.slp.local;
+
+/**
+ * The policy applied when an event is dispatched to a listener whose
+ * notification queue is full.
+ * 
+ * @author hhildebrand
+ * 
+ */
+public enum OverflowPolicy {
+    /**
+     * Block the thread dispatching the event until the listener has drained
+     * its queue below capacity. A notification thread - a listener changing
+     * the scope from its notification - is never blocked, as it may wait on
+     * itself; its events are queued beyond the capacity instead.
+     */
+    BLOCK,
+    /**
+     * Coalesce the event with the queued events of its service registration,
+     * as for a {@link com.hellblazer.slp.BatchServiceListener}. If the event
+     * cannot be coalesced, the listener is marked for resynchronization as
+     * for {@link #RESYNC}, so no change is lost. The default policy.
+     */
+    COALESCE,
+    /**
+     * Drop the oldest queued event
+     */
+    DROP_OLDEST,
+    /**
+     * Discard the queued events and mark the listener for resynchronization.
+     * Events are dropped until the listener is resynchronized: a
+     * {@link com.hellblazer.slp.ResyncServiceListener} is told to discard its
+     * view of the services, and the listener is then sent the current services
+     * matching its queries.
+     */
+    RESYNC;
+}
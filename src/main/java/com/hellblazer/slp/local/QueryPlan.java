@@ -0,0 +1,172 @@
+/** (C) Copyright 2014 Chiral Behaviors, All Rights Reserved
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.hellblazer.slp.local;
+
+import java.util.concurrent.TimeUnit;
+
+import com.hellblazer.slp.Filter;
+
+/**
+ * The explanation of a query of a {@link LocalScope}: the normalized filter of
+ * the query, the access path chosen to find its candidates, and the work done
+ * and time taken by each phase when the query was run.
+ *
+ * @author hhildebrand
+ *
+ */
+public class QueryPlan {
+    /**
+     * The source of the candidates of a query
+     */
+    public enum AccessPath {
+        /**
+         * The candidates are the services answered by the attribute index for
+         * the equality and range assertions of the filter
+         */
+        ATTRIBUTE_INDEX,
+        /**
+         * The candidates are all the services of the scope
+         */
+        FULL_SCAN,
+        /**
+         * The candidates are the services of the type, or of the family named
+         * by the type, answered by the type index
+         */
+        TYPE_INDEX;
+    }
+
+    private final AccessPath accessPath;
+    private final long       candidates;
+    private final long       examined;
+    private final long       executeTime;
+    private final Filter     filter;
+    private final long       matched;
+    private final boolean    parallel;
+    private final long       parseTime;
+    private final long       planTime;
+    private final String     query;
+    private final String     serviceType;
+    private final boolean    typeChecked;
+
+    public QueryPlan(String serviceType, String query, Filter filter,
+                     AccessPath accessPath, boolean typeChecked,
+                     boolean parallel, long candidates, long examined,
+                     long matched, long parseTime, long planTime,
+                     long executeTime) {
+        this.serviceType = serviceType;
+        this.query = query;
+        this.filter = filter;
+        this.accessPath = accessPath;
+        this.typeChecked = typeChecked;
+        this.parallel = parallel;
+        this.candidates = candidates;
+        this.examined = examined;
+        this.matched = matched;
+        this.parseTime = parseTime;
+        this.planTime = planTime;
+        this.executeTime = executeTime;
+    }
+
+    public AccessPath getAccessPath() {
+        return accessPath;
+    }
+
+    /**
+     * Answer the number of candidates estimated by the access path
+     */
+    public long getCandidates() {
+        return candidates;
+    }
+
+    /**
+     * Answer the number of candidates examined by the query
+     */
+    public long getExamined() {
+        return examined;
+    }
+
+    /**
+     * Answer the nanoseconds taken to examine the candidates
+     */
+    public long getExecuteTime() {
+        return executeTime;
+    }
+
+    /**
+     * Answer the normalized filter of the query, including the service type
+     * assertion, or null if the query matches every service
+     */
+    public Filter getFilter() {
+        return filter;
+    }
+
+    /**
+     * Answer the number of services matching the query
+     */
+    public long getMatched() {
+        return matched;
+    }
+
+    /**
+     * Answer the nanoseconds taken to parse and compile the filter of the
+     * query, or to find it in the filter cache
+     */
+    public long getParseTime() {
+        return parseTime;
+    }
+
+    /**
+     * Answer the nanoseconds taken to choose the access path
+     */
+    public long getPlanTime() {
+        return planTime;
+    }
+
+    public String getQuery() {
+        return query;
+    }
+
+    public String getServiceType() {
+        return serviceType;
+    }
+
+    /**
+     * Answer true if a lookup of the query would be evaluated in parallel. The
+     * query is always run sequentially when explained.
+     */
+    public boolean isParallel() {
+        return parallel;
+    }
+
+    /**
+     * Answer true if the candidates are checked against the service type, as
+     * the attribute index answered candidates of every type
+     */
+    public boolean isTypeChecked() {
+        return typeChecked;
+    }
+
+    @Override
+    public String toString() {
+        return String.format("QueryPlan [serviceType=%s, query=%s, filter=%s, access=%s%s%s, candidates=%s, examined=%s, matched=%s, parse=%sus, plan=%sus, execute=%sus]",
+                             serviceType, query, filter, accessPath,
+                             typeChecked ? " (type checked)" : "",
+                             parallel ? " (parallel)" : "", candidates,
+                             examined, matched,
+                             TimeUnit.NANOSECONDS.toMicros(parseTime),
+                             TimeUnit.NANOSECONDS.toMicros(planTime),
+                             TimeUnit.NANOSECONDS.toMicros(executeTime));
+    }
+}
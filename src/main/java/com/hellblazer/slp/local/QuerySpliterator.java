@@ -0,0 +1,154 @@
+/** (C) Copyright 2014 Chiral Behaviors, All Rights Reserved
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.hellblazer.slp.local;
+
+import java.util.Spliterator;
+import java.util.function.Consumer;
+
+import com.hellblazer.slp.CompiledFilter;
+import com.hellblazer.slp.ServiceReference;
+import com.hellblazer.slp.local.QueryPlan.AccessPath;
+
+/**
+ * The lazily evaluated results of a query. The spliterator walks the candidate
+ * references of the query, answering those which match; nothing is copied and
+ * a candidate is only matched when the spliterator advances to it. The
+ * spliterator splits along the splits of the candidates, so the results may be
+ * processed in parallel.
+ *
+ * @author hhildebrand
+ *
+ */
+class QuerySpliterator implements Spliterator<ServiceReference>,
+        Consumer<ServiceReferenceImpl> {
+    private final AccessPath                        accessPath;
+    private ServiceReferenceImpl                    current;
+    private long                                    examined;
+    private final CompiledFilter                    matcher;
+    private final String                            serviceType;
+    private final Spliterator<ServiceReferenceImpl> source;
+    private final ServiceTypeIndex                  types;
+
+    /**
+     * @param source
+     *            - the candidates of the query
+     * @param matcher
+     *            - the filter of the query, or null if every candidate of the
+     *            service type matches
+     * @param serviceType
+     *            - the service type the candidates must be checked against, or
+     *            null if the candidates are all of the service type
+     * @param types
+     *            - the type index of the scope
+     * @param accessPath
+     *            - the source of the candidates
+     */
+    QuerySpliterator(Spliterator<ServiceReferenceImpl> source,
+                     CompiledFilter matcher, String serviceType,
+                     ServiceTypeIndex types, AccessPath accessPath) {
+        this.source = source;
+        this.accessPath = accessPath;
+        this.matcher = matcher;
+        this.serviceType = serviceType;
+        this.types = types;
+    }
+
+    /**
+     * Receive the next candidate from the source
+     */
+    @Override
+    public void accept(ServiceReferenceImpl reference) {
+        current = reference;
+    }
+
+    @Override
+    public int characteristics() {
+        return NONNULL
+               | (source.characteristics() & (CONCURRENT | DISTINCT | IMMUTABLE));
+    }
+
+    /**
+     * Answer the number of candidates remaining, an upper bound of the number
+     * of results
+     */
+    @Override
+    public long estimateSize() {
+        return source.estimateSize();
+    }
+
+    AccessPath getAccessPath() {
+        return accessPath;
+    }
+
+    /**
+     * Answer the number of candidates examined by this spliterator
+     */
+    long getExamined() {
+        return examined;
+    }
+
+    /**
+     * Answer true if the candidates are matched against a filter or service
+     * type, rather than all answered
+     */
+    boolean isFiltered() {
+        return matcher != null || serviceType != null;
+    }
+
+    /**
+     * Answer true if the candidates are matched against a service type
+     */
+    boolean isTypeChecked() {
+        return serviceType != null;
+    }
+
+    /**
+     * Answer the next matching reference, or null if there are no more
+     */
+    ServiceReferenceImpl next() {
+        while (source.tryAdvance(this)) {
+            ServiceReferenceImpl reference = current;
+            current = null;
+            examined++;
+            if (serviceType != null && !types.isA(reference, serviceType)) {
+                continue;
+            }
+            if (matcher == null || matcher.match(reference)) {
+                return reference;
+            }
+        }
+        return null;
+    }
+
+    @Override
+    public boolean tryAdvance(Consumer<? super ServiceReference> action) {
+        ServiceReferenceImpl reference = next();
+        if (reference == null) {
+            return false;
+        }
+        action.accept(reference);
+        return true;
+    }
+
+    @Override
+    public Spliterator<ServiceReference> trySplit() {
+        Spliterator<ServiceReferenceImpl> prefix = source.trySplit();
+        if (prefix == null) {
+            return null;
+        }
+        return new QuerySpliterator(prefix, matcher, serviceType, types,
+                                    accessPath);
+    }
+}
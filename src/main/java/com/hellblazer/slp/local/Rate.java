@@ -0,0 +1,69 @@
+/** (C) Copyright 2014 Chiral Behaviors, All Rights Reserved
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.hellblazer.slp.local;
+
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * A count of events, with the exponentially weighted one minute moving
+ * average of its rate. Events are counted in a striped counter; the average is
+ * only brought up to date, one five second tick at a time, when it is read.
+ *
+ * @author hhildebrand
+ *
+ */
+class Rate {
+    private static final double DECAY    = Math.exp(-5.0 / 60.0);
+    private static final long   INTERVAL = TimeUnit.SECONDS.toNanos(5);
+
+    private final LongAdder     count    = new LongAdder();
+    private long                counted;
+    private long                lastTick;
+    private double              rate;
+
+    /**
+     * @param now
+     *            - the time the rate starts, in nanoseconds
+     */
+    Rate(long now) {
+        lastTick = now;
+    }
+
+    long getCount() {
+        return count.sum();
+    }
+
+    /**
+     * Answer the average events per second as of the time. The events since
+     * the last tick are spread evenly over the ticks elapsed since.
+     */
+    synchronized double getRate(long now) {
+        long ticks = (now - lastTick) / INTERVAL;
+        if (ticks > 0) {
+            long total = count.sum();
+            double instant = (total - counted)
+                             / (ticks * (double) INTERVAL / TimeUnit.SECONDS.toNanos(1));
+            rate = instant + (rate - instant) * Math.pow(DECAY, ticks);
+            counted = total;
+            lastTick += ticks * INTERVAL;
+        }
+        return rate;
+    }
+
+    void mark() {
+        count.increment();
+    }
+}
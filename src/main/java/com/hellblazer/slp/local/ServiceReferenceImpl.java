@@ -17,6 +17,7 @@ package com.hellblazer.slp.local;
 import java.util.Map;
 import java.util.UUID;
 
+import com.hellblazer.slp.PropertySnapshot;
 import com.hellblazer.slp.ServiceReference;
 import com.hellblazer.slp.ServiceURL;
 
@@ -31,17 +32,26 @@ import com.hellblazer.slp.ServiceURL;
  * 
  */
 class ServiceReferenceImpl extends ServiceReference {
+    private final long registered;
 
     public ServiceReferenceImpl(ServiceURL url, Map<String, String> properties,
                                 UUID registration) {
         super(url, properties, registration);
+        registered = this.properties.getVersion();
     }
 
-    protected Map<String, String> currentProperties() {
+    /**
+     * Answer the version of the scope at which the service was registered
+     */
+    long getRegisteredVersion() {
+        return registered;
+    }
+
+    protected PropertySnapshot currentProperties() {
         return properties;
     }
 
-    protected void setProperties(Map<String, String> properties) {
+    protected void setProperties(PropertySnapshot properties) {
         this.properties = properties;
     }
 }
\ No newline at end of file
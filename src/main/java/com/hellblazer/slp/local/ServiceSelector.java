@@ -0,0 +1,290 @@
+/** (C) Copyright 2014 Chiral Behaviors, All Rights Reserved
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.hellblazer.slp.local;
+
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.LinkedHashSet;
+import java.util.Set;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.ThreadLocalRandom;
+
+import com.hellblazer.slp.ServiceType;
+import com.hellblazer.slp.ServiceURL;
+
+/**
+ * Selects a service of a type following the rules of RFC 2782: the services
+ * with the lowest priority are preferred, and a service is chosen from these
+ * at random, in proportion to its weight.
+ *
+ * <p>
+ * The services of each service type, and of each abstract type family, are
+ * held in buckets of equal priority, and the preferred services of the lowest
+ * priority bucket in an immutable snapshot. Selection reads the current
+ * snapshot without locking, and takes a single random draw and a binary
+ * search over the running weights of the preferred services. Mutations are
+ * serialized.
+ *
+ * @author hhildebrand
+ *
+ */
+class ServiceSelector {
+
+    /**
+     * The immutable candidates of a service type. The first size elements of
+     * the arrays are the candidates; a successor appended to the candidates
+     * may share the arrays and fill the elements beyond them.
+     */
+    static class Candidates {
+        final long[]                 cumulative;
+        final ServiceReferenceImpl[] preferred;
+        final int                    size;
+
+        Candidates(ServiceReferenceImpl[] members) {
+            int priority = Integer.MAX_VALUE;
+            int count = 0;
+            for (ServiceReferenceImpl member : members) {
+                int p = member.getUrl().getPriority();
+                if (p < priority) {
+                    priority = p;
+                    count = 1;
+                } else if (p == priority) {
+                    count++;
+                }
+            }
+            // RFC 2782: the zero weight services are ordered first
+            preferred = new ServiceReferenceImpl[count];
+            int next = 0;
+            for (ServiceReferenceImpl member : members) {
+                ServiceURL url = member.getUrl();
+                if (url.getPriority() == priority && url.getWeight() == 0) {
+                    preferred[next++] = member;
+                }
+            }
+            for (ServiceReferenceImpl member : members) {
+                ServiceURL url = member.getUrl();
+                if (url.getPriority() == priority && url.getWeight() != 0) {
+                    preferred[next++] = member;
+                }
+            }
+            cumulative = new long[count];
+            long sum = 0;
+            for (int i = 0; i < count; i++) {
+                sum += preferred[i].getUrl().getWeight();
+                cumulative[i] = sum;
+            }
+            size = count;
+        }
+
+        private Candidates(ServiceReferenceImpl[] preferred, long[] cumulative,
+                           int size) {
+            this.preferred = preferred;
+            this.cumulative = cumulative;
+            this.size = size;
+        }
+
+        /**
+         * Answer the candidates with the service appended, in amortized
+         * constant time. The service must have the priority of the candidates
+         * and be appendable, and these must be the latest candidates of their
+         * group.
+         */
+        Candidates append(ServiceReferenceImpl reference) {
+            ServiceReferenceImpl[] members = preferred;
+            long[] sums = cumulative;
+            if (size == members.length) {
+                int capacity = Math.max(4, size + (size >>> 1));
+                members = Arrays.copyOf(members, capacity);
+                sums = Arrays.copyOf(sums, capacity);
+            }
+            members[size] = reference;
+            sums[size] = (size == 0 ? 0 : sums[size - 1])
+                         + reference.getUrl().getWeight();
+            return new Candidates(members, sums, size + 1);
+        }
+
+        /**
+         * Answer true if appending the service keeps the zero weight services
+         * ordered first
+         */
+        boolean appendable(ServiceReferenceImpl reference) {
+            return reference.getUrl().getWeight() != 0 || size == 0
+                   || cumulative[size - 1] == 0;
+        }
+
+        /**
+         * Answer the preferred service selected by the draw
+         *
+         * @param draw
+         *            - a number between zero and the total weight of the
+         *            preferred services, inclusive
+         */
+        ServiceReferenceImpl select(long draw) {
+            int low = 0;
+            int high = size - 1;
+            while (low < high) {
+                int mid = (low + high) >>> 1;
+                if (cumulative[mid] < draw) {
+                    low = mid + 1;
+                } else {
+                    high = mid;
+                }
+            }
+            return preferred[low];
+        }
+
+        ServiceReferenceImpl select(ThreadLocalRandom random) {
+            if (size == 1) {
+                return preferred[0];
+            }
+            long total = cumulative[size - 1];
+            if (total == 0) {
+                return preferred[random.nextInt(size)];
+            }
+            return select(random.nextLong(total + 1));
+        }
+    }
+
+    /**
+     * The services of a type, or of a family, in buckets of equal priority.
+     * A weighted service added to the lowest priority bucket is appended to
+     * the current candidates; any other change of the lowest priority bucket
+     * invalidates them, and they are rebuilt from the bucket on the first
+     * selection after the change. Neither costs a copy of the services of the
+     * type on each change.
+     */
+    static class Group {
+        private final TreeMap<Integer, Set<ServiceReferenceImpl>> buckets = new TreeMap<Integer, Set<ServiceReferenceImpl>>();
+        private volatile Candidates                               candidates;
+
+        synchronized void add(ServiceReferenceImpl reference) {
+            Integer priority = reference.getUrl().getPriority();
+            Set<ServiceReferenceImpl> bucket = buckets.get(priority);
+            if (bucket == null) {
+                bucket = new LinkedHashSet<ServiceReferenceImpl>();
+                buckets.put(priority, bucket);
+            }
+            if (!bucket.add(reference) || priority > buckets.firstKey()) {
+                return;
+            }
+            Candidates current = candidates;
+            if (current != null && bucket.size() > 1
+                && current.appendable(reference)) {
+                candidates = current.append(reference);
+            } else {
+                candidates = null;
+            }
+        }
+
+        /**
+         * @return true if the group is now empty
+         */
+        synchronized boolean remove(ServiceReferenceImpl reference) {
+            Integer priority = reference.getUrl().getPriority();
+            Set<ServiceReferenceImpl> bucket = buckets.get(priority);
+            if (bucket == null || !bucket.remove(reference)) {
+                return buckets.isEmpty();
+            }
+            if (priority <= buckets.firstKey()) {
+                candidates = null;
+            }
+            if (bucket.isEmpty()) {
+                buckets.remove(priority);
+            }
+            return buckets.isEmpty();
+        }
+
+        ServiceReferenceImpl select(ThreadLocalRandom random) {
+            Candidates current = candidates;
+            if (current == null) {
+                current = rebuild();
+                if (current == null) {
+                    return null;
+                }
+            }
+            return current.select(random);
+        }
+
+        private synchronized Candidates rebuild() {
+            if (candidates == null && !buckets.isEmpty()) {
+                Set<ServiceReferenceImpl> preferred = buckets.firstEntry().getValue();
+                candidates = new Candidates(
+                                            preferred.toArray(new ServiceReferenceImpl[preferred.size()]));
+            }
+            return candidates;
+        }
+    }
+
+    private final ConcurrentMap<String, Group> groups = new ConcurrentHashMap<String, Group>();
+
+    /**
+     * Add the reference to the candidates of its type and family
+     */
+    synchronized void add(ServiceReferenceImpl reference) {
+        for (String key : keysOf(reference)) {
+            Group group = groups.get(key);
+            if (group == null) {
+                group = new Group();
+                groups.put(key, group);
+            }
+            group.add(reference);
+        }
+    }
+
+    /**
+     * Add the references to the candidates of their types and families
+     */
+    synchronized void addAll(Collection<ServiceReferenceImpl> references) {
+        for (ServiceReferenceImpl reference : references) {
+            add(reference);
+        }
+    }
+
+    /**
+     * Remove the reference from the candidates of its type and family
+     */
+    synchronized void remove(ServiceReferenceImpl reference) {
+        for (String key : keysOf(reference)) {
+            Group group = groups.get(key);
+            if (group != null && group.remove(reference)) {
+                groups.remove(key);
+            }
+        }
+    }
+
+    /**
+     * Select a service of the type, or a member of the family named by the
+     * type. The type must not be a pattern or the wildcard type.
+     *
+     * @return the selected service, or null if there are no services of the
+     *         type
+     */
+    ServiceReferenceImpl select(String serviceType) {
+        Group group = groups.get(serviceType);
+        if (group == null) {
+            return null;
+        }
+        return group.select(ThreadLocalRandom.current());
+    }
+
+    private String[] keysOf(ServiceReferenceImpl reference) {
+        ServiceType type = reference.getUrl().getServiceType();
+        String family = ServiceTypeIndex.familyOf(type);
+        return family == null ? new String[] { type.toString() }
+                             : new String[] { type.toString(), family };
+    }
+}
@@ -0,0 +1,166 @@
+/** (C) Copyright 2014 Chiral Behaviors, All Rights Reserved
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.hellblazer.slp.local;
+
+import static com.hellblazer.slp.ServiceType.SERVICE_PREFIX;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+
+import com.hellblazer.slp.ServiceType;
+
+/**
+ * An index of the service registrations of a scope by service type. Each
+ * registration is indexed under its exact service type, and registrations of
+ * an abstract type, e.g. 'service:login:ftp', are also indexed under the
+ * family of the abstract type, 'service:login'. A lookup of a type then
+ * answers both the registrations of exactly that type and the members of the
+ * family named by the type.
+ *
+ * <p>
+ * Readers are lock free and see a weakly consistent view of the index.
+ * Mutations of the index are serialized.
+ *
+ * @author hhildebrand
+ *
+ */
+class ServiceTypeIndex {
+    /**
+     * The wildcard type, matching every service type
+     */
+    static final String ANY_TYPE = "*";
+
+    /**
+     * Answer true if the service type is a pattern which cannot be answered by
+     * the index, rather than a type or the wildcard type
+     */
+    static boolean isPattern(String serviceType) {
+        return !ANY_TYPE.equals(serviceType) && serviceType.indexOf('*') >= 0;
+    }
+
+    /**
+     * Answer the family of the service type, or null if the type is not
+     * abstract
+     */
+    static String familyOf(ServiceType type) {
+        if (!type.isServiceURL() || !type.isAbstractType()) {
+            return null;
+        }
+        return SERVICE_PREFIX + type.getAbstractTypeName();
+    }
+
+    private final ConcurrentMap<String, Set<ServiceReferenceImpl>> families = new ConcurrentHashMap<String, Set<ServiceReferenceImpl>>();
+    private final ConcurrentMap<String, Set<ServiceReferenceImpl>> types    = new ConcurrentHashMap<String, Set<ServiceReferenceImpl>>();
+
+    /**
+     * Index the reference under its service type and family
+     */
+    synchronized void add(ServiceReferenceImpl reference) {
+        ServiceType type = reference.getUrl().getServiceType();
+        add(types, type.toString(), reference);
+        String family = familyOf(type);
+        if (family != null) {
+            add(families, family, reference);
+        }
+    }
+
+    /**
+     * Index the references under their service types and families
+     */
+    synchronized void addAll(Collection<ServiceReferenceImpl> references) {
+        for (ServiceReferenceImpl reference : references) {
+            add(reference);
+        }
+    }
+
+    /**
+     * Answer true if the reference is of the service type, or a member of the
+     * family named by the service type
+     */
+    boolean isA(ServiceReferenceImpl reference, String serviceType) {
+        ServiceType type = reference.getUrl().getServiceType();
+        if (serviceType.equals(type.toString())) {
+            return true;
+        }
+        return type.isServiceURL()
+               && type.isAbstractType()
+               && serviceType.length() == SERVICE_PREFIX.length()
+                                          + type.getAbstractTypeName().length()
+               && serviceType.startsWith(SERVICE_PREFIX)
+               && serviceType.endsWith(type.getAbstractTypeName());
+    }
+
+    /**
+     * Answer the references of the service type, including the members of the
+     * family named by the type. The service type must not be a pattern or the
+     * wildcard type.
+     */
+    Collection<ServiceReferenceImpl> lookup(String serviceType) {
+        Set<ServiceReferenceImpl> exact = types.get(serviceType);
+        Set<ServiceReferenceImpl> family = families.get(serviceType);
+        if (family == null) {
+            return exact == null ? Collections.<ServiceReferenceImpl> emptySet()
+                                : exact;
+        }
+        if (exact == null) {
+            return family;
+        }
+        // a type is never a member of the family of the same name
+        List<ServiceReferenceImpl> union = new ArrayList<ServiceReferenceImpl>(
+                                                                               exact.size()
+                                                                                       + family.size());
+        union.addAll(exact);
+        union.addAll(family);
+        return union;
+    }
+
+    /**
+     * Remove the reference from the index
+     */
+    synchronized void remove(ServiceReferenceImpl reference) {
+        ServiceType type = reference.getUrl().getServiceType();
+        remove(types, type.toString(), reference);
+        String family = familyOf(type);
+        if (family != null) {
+            remove(families, family, reference);
+        }
+    }
+
+    private void add(ConcurrentMap<String, Set<ServiceReferenceImpl>> index,
+                     String key, ServiceReferenceImpl reference) {
+        Set<ServiceReferenceImpl> references = index.get(key);
+        if (references == null) {
+            references = Collections.newSetFromMap(new ConcurrentHashMap<ServiceReferenceImpl, Boolean>());
+            index.put(key, references);
+        }
+        references.add(reference);
+    }
+
+    private void remove(ConcurrentMap<String, Set<ServiceReferenceImpl>> index,
+                        String key, ServiceReferenceImpl reference) {
+        Set<ServiceReferenceImpl> references = index.get(key);
+        if (references != null) {
+            references.remove(reference);
+            if (references.isEmpty()) {
+                index.remove(key);
+            }
+        }
+    }
+}
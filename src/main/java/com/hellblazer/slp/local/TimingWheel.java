@@ -0,0 +1,209 @@
+/** (C) Copyright 2014 Chiral Behaviors, All Rights Reserved
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.hellblazer.slp.local;
+
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Queue;
+import java.util.UUID;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ConcurrentMap;
+
+/**
+ * A hashed timing wheel tracking the leases of service registrations. The
+ * wheel is a ring of buckets, each covering one tick of time; a lease is held
+ * in the bucket of the tick of its deadline, modulo the size of the wheel.
+ * Each tick only examines the leases of the buckets it passes, so the cost of
+ * a tick does not grow with the number of leases.
+ *
+ * <p>
+ * Renewing a lease only updates its deadline. The lease is moved to the bucket
+ * of its new deadline when its old bucket comes around, so renewal is
+ * constant time and never contends with the wheel. New leases are handed to
+ * the wheel through a concurrent queue and placed in their buckets by the
+ * next tick; the buckets themselves are only touched by the ticking thread.
+ *
+ * @author hhildebrand
+ *
+ */
+class TimingWheel {
+    /**
+     * The lease of a registration
+     */
+    static class Lease {
+        private long       deadline;
+        private boolean    done;
+        private final UUID registration;
+
+        Lease(UUID registration, long deadline) {
+            this.registration = registration;
+            this.deadline = deadline;
+        }
+
+        synchronized boolean cancel() {
+            if (done) {
+                return false;
+            }
+            done = true;
+            return true;
+        }
+
+        synchronized long deadline() {
+            return deadline;
+        }
+
+        /**
+         * Expire the lease if its deadline has passed
+         */
+        synchronized boolean expire(long now) {
+            if (done || deadline - now > 0) {
+                return false;
+            }
+            done = true;
+            return true;
+        }
+
+        synchronized boolean isDone() {
+            return done;
+        }
+
+        synchronized boolean renew(long deadline) {
+            if (done) {
+                return false;
+            }
+            this.deadline = deadline;
+            return true;
+        }
+    }
+
+    private final Queue<Lease>[]             buckets;
+    private long                             current = -1;
+    private final ConcurrentMap<UUID, Lease> leases  = new ConcurrentHashMap<UUID, Lease>();
+    private final int                        mask;
+    private final long                       origin;
+    private final Queue<Lease>               pending = new ConcurrentLinkedQueue<Lease>();
+    private final long                       tickNanos;
+
+    /**
+     * @param tickNanos
+     *            - the duration of a tick, in nanoseconds
+     * @param size
+     *            - the number of buckets of the wheel, a power of two
+     * @param origin
+     *            - the time of the first tick, in nanoseconds
+     */
+    @SuppressWarnings({ "rawtypes", "unchecked" })
+    TimingWheel(long tickNanos, int size, long origin) {
+        if (tickNanos < 1) {
+            throw new IllegalArgumentException(
+                                               "Tick duration must be greater than zero");
+        }
+        if (size < 1 || Integer.bitCount(size) != 1) {
+            throw new IllegalArgumentException(
+                                               "Wheel size must be a power of two");
+        }
+        this.tickNanos = tickNanos;
+        this.origin = origin;
+        mask = size - 1;
+        buckets = new Queue[size];
+        for (int i = 0; i < size; i++) {
+            buckets[i] = new ArrayDeque<Lease>();
+        }
+    }
+
+    /**
+     * Cancel the lease of the registration, if any
+     */
+    void cancel(UUID registration) {
+        Lease lease = leases.remove(registration);
+        if (lease != null) {
+            lease.cancel();
+        }
+    }
+
+    /**
+     * Renew the lease of the registration
+     *
+     * @return true if the lease was renewed, false if the registration has no
+     *         lease or its lease has expired
+     */
+    boolean renew(UUID registration, long deadline) {
+        Lease lease = leases.get(registration);
+        return lease != null && lease.renew(deadline);
+    }
+
+    /**
+     * Schedule the lease of the registration, replacing any existing lease
+     */
+    void schedule(UUID registration, long deadline) {
+        Lease lease = new Lease(registration, deadline);
+        Lease previous = leases.put(registration, lease);
+        if (previous != null) {
+            previous.cancel();
+        }
+        pending.add(lease);
+    }
+
+    /**
+     * Answer the number of leases
+     */
+    int size() {
+        return leases.size();
+    }
+
+    /**
+     * Advance the wheel to the time, answering the registrations whose leases
+     * have expired. Time must not go backwards.
+     */
+    synchronized List<UUID> tick(long now) {
+        long target = ticks(now);
+        Lease lease;
+        while ((lease = pending.poll()) != null) {
+            if (!lease.isDone()) {
+                place(lease, current + 1);
+            }
+        }
+        List<UUID> expired = new ArrayList<UUID>();
+        if (target <= current) {
+            return expired;
+        }
+        long from = Math.max(current + 1, target - mask);
+        for (long tick = from; tick <= target; tick++) {
+            Queue<Lease> bucket = buckets[(int) (tick & mask)];
+            for (int i = bucket.size(); i > 0; i--) {
+                lease = bucket.poll();
+                if (lease.expire(now)) {
+                    leases.remove(lease.registration, lease);
+                    expired.add(lease.registration);
+                } else if (!lease.isDone()) {
+                    place(lease, target + 1);
+                }
+            }
+        }
+        current = target;
+        return expired;
+    }
+
+    private void place(Lease lease, long earliest) {
+        long tick = Math.max(ticks(lease.deadline()), earliest);
+        buckets[(int) (tick & mask)].add(lease);
+    }
+
+    private long ticks(long time) {
+        return (time - origin) / tickNanos;
+    }
+}
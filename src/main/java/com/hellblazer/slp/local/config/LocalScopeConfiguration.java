@@ -16,9 +16,17 @@
 
 package com.hellblazer.slp.local.config;
 
+import java.util.HashSet;
+import java.util.Set;
+import java.util.concurrent.TimeUnit;
+
+import com.fasterxml.uuid.Generators;
+
 import com.hellblazer.slp.ServiceScope;
 import com.hellblazer.slp.config.ServiceScopeConfiguration;
 import com.hellblazer.slp.local.LocalScope;
+import com.hellblazer.slp.local.NotificationMode;
+import com.hellblazer.slp.local.OverflowPolicy;
 
 /**
  * @author hhildebrand
@@ -26,14 +34,28 @@ import com.hellblazer.slp.local.LocalScope;
  */
 public class LocalScopeConfiguration implements ServiceScopeConfiguration {
 
-    private int notificationThreads = 2;
+    private int              notificationCapacity        = LocalScope.DEFAULT_NOTIFICATION_CAPACITY;
+    private NotificationMode notificationMode            = NotificationMode.FIXED_POOL;
+    private int              notificationThreads         = 2;
+    private Set<String>      numericAttributes           = new HashSet<String>();
+    private OverflowPolicy   overflowPolicy              = LocalScope.DEFAULT_OVERFLOW_POLICY;
+    private int              parallelScanThreshold       = LocalScope.DEFAULT_PARALLEL_SCAN_THRESHOLD;
+    private long             slowListenerThresholdMillis = LocalScope.DEFAULT_SLOW_LISTENER_THRESHOLD;
 
     /* (non-Javadoc)
      * @see com.hellblazer.slp.config.ServiceScopeConfiguration#construct()
      */
     @Override
     public ServiceScope construct() throws Exception {
-        return new LocalScope(notificationThreads);
+        LocalScope scope = new LocalScope(
+                                          notificationMode.newExecutor(notificationThreads),
+                                          Generators.timeBasedGenerator(),
+                                          numericAttributes,
+                                          notificationCapacity, overflowPolicy);
+        scope.setParallelScanThreshold(parallelScanThreshold);
+        scope.setSlowListenerThreshold(slowListenerThresholdMillis,
+                                       TimeUnit.MILLISECONDS);
+        return scope;
     }
 
 }
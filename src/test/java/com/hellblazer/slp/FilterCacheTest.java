@@ -0,0 +1,59 @@
+/** (C) Copyright 2014 Chiral Behaviors, All Rights Reserved
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.hellblazer.slp;
+
+import static junit.framework.Assert.assertEquals;
+import static junit.framework.Assert.assertTrue;
+import static junit.framework.Assert.fail;
+
+import org.junit.Test;
+
+/**
+ * @author hhildebrand
+ *
+ */
+public class FilterCacheTest {
+
+    @Test
+    public void testCache() throws Exception {
+        FilterCache cache = new FilterCache(4);
+        Filter filter = cache.get("service:http", "(x=y)");
+        assertEquals(new Filter("(&(" + ServiceScope.SERVICE_TYPE
+                                + "=service:http) (x=y))"), filter);
+        assertTrue(filter == cache.get("service:http", "(x=y)"));
+        assertEquals(new Filter("(" + ServiceScope.SERVICE_TYPE
+                                + "=service:http)"),
+                     cache.get("service:http", null));
+        assertEquals(new Filter("(x=y)"), cache.get(null, "(x=y)"));
+        assertEquals(1, cache.getHits());
+        assertEquals(3, cache.getMisses());
+
+        try {
+            cache.get(null, "(x=y");
+            fail("Expected invalid syntax");
+        } catch (InvalidSyntaxException e) {
+            // expected
+        }
+        assertEquals(3, cache.size());
+
+        for (int i = 0; i < 100; i++) {
+            cache.get(null, "(x=" + i + ")");
+            assertTrue(filter == cache.get("service:http", "(x=y)"));
+            assertTrue(cache.size() <= 4);
+        }
+        assertEquals(101, cache.getHits());
+        assertTrue(cache.getEvictions() >= 98);
+    }
+}
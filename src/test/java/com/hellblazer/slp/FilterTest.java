@@ -17,10 +17,14 @@ package com.hellblazer.slp;
 import static junit.framework.Assert.assertEquals;
 import static junit.framework.Assert.assertFalse;
 import static junit.framework.Assert.assertNotNull;
+import static junit.framework.Assert.assertNull;
 import static junit.framework.Assert.assertTrue;
 
 import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
 import java.util.List;
+import java.util.Map;
 import java.util.Set;
 
 import org.junit.Test;
@@ -64,4 +68,135 @@ public class FilterTest {
         assertTrue(assr.contains("y"));
         assertFalse(assr.contains("a"));
     }
+
+    @Test
+    public void testFindRequiredAssertions() throws Exception {
+        Map<String, Set<String>> required = new Filter("(X=y)").findRequiredAssertions();
+        assertEquals(1, required.size());
+        assertTrue(required.get("x").contains("y"));
+
+        required = new Filter("(&(x=y) (z=a) (w>=3))").findRequiredAssertions();
+        assertEquals(2, required.size());
+        assertTrue(required.get("x").contains("y"));
+        assertTrue(required.get("z").contains("a"));
+
+        required = new Filter("(|(&(x=y) (z=a)) (x=b))").findRequiredAssertions();
+        assertEquals(1, required.size());
+        assertEquals(2, required.get("x").size());
+        assertTrue(required.get("x").contains("y"));
+        assertTrue(required.get("x").contains("b"));
+
+        required = new Filter("(|(x=y) (z=a))").findRequiredAssertions();
+        assertTrue(required.isEmpty());
+
+        required = new Filter("(&(x=y) (x=a))").findRequiredAssertions();
+        assertTrue(required.get("x").isEmpty());
+
+        required = new Filter("(&(x=y) (!(z=a)) (q=*) (r=b*))").findRequiredAssertions();
+        assertEquals(1, required.size());
+        assertTrue(required.get("x").contains("y"));
+    }
+
+    @Test
+    public void testCompile() throws Exception {
+        String[] filters = { "(x=y)", "(X=y)", "(x~=Y )", "(x>=b)", "(x<=b)",
+                "(x=*)", "(x=y*)", "(x=*y)", "(x=a*b*c)", "(!(x=y))",
+                "(&(x=y) (z=a))", "(|(x=q) (z=a))", "(&(x=*) (!(z=b)))",
+                "(count>=10)", "(count<=10)", "(count=10)" };
+        List<Map<String, String>> maps = new ArrayList<Map<String, String>>();
+        String[][] values = { { "y", "a" }, { "b", "c" }, { " y", "b" },
+                { "aXbYc", "a" }, { "a", "9" }, { "z", "10" }, { null, "100" } };
+        for (String[] value : values) {
+            Map<String, String> map = new HashMap<String, String>();
+            if (value[0] != null) {
+                map.put("x", value[0]);
+            }
+            map.put("z", value[1]);
+            map.put("count", value[1]);
+            maps.add(map);
+        }
+        maps.add(new HashMap<String, String>());
+        for (String f : filters) {
+            Filter filter = new Filter(f);
+            CompiledFilter compiled = filter.compile();
+            assertTrue(compiled == filter.compile());
+            assertEquals(filter, compiled.getFilter());
+            for (Map<String, String> map : maps) {
+                boolean expected = filter.matchCase(new HeaderMap(map));
+                assertEquals(f + " on " + map, expected, compiled.match(map));
+                assertEquals(f + " on " + map, expected,
+                             compiled.match(new PropertySnapshot(map, 0)));
+                assertEquals(f + " on " + map, filter.matchCase(map),
+                             compiled.matchCase(map));
+            }
+            assertEquals(filter.match((Map<String, String>) null),
+                         compiled.match((Map<String, String>) null));
+        }
+    }
+
+    @Test
+    public void testAttributeMaps() throws Exception {
+        Map<String, String> map = new HashMap<String, String>();
+        map.put("Name", "foo");
+        map.put("NAME", "bar");
+        map.put("Port", "80");
+        PropertySnapshot snapshot = new PropertySnapshot(map, 0);
+        assertEquals("bar", snapshot.getAttribute("name"));
+        assertEquals("80", snapshot.getAttribute("port"));
+        assertNull(snapshot.getAttribute("Port"));
+        assertEquals("80", snapshot.get("Port"));
+        assertNull(snapshot.get("port"));
+
+        assertTrue(new Filter("(port=80)").match(snapshot));
+        assertTrue(new Filter("(PORT=80)").match(snapshot));
+        assertTrue(new Filter("(pORt=*)").match(snapshot));
+        assertFalse(new Filter("(port=80)").matchCase(snapshot));
+        assertTrue(new Filter("(Port=80)").matchCase(snapshot));
+        assertTrue(new Filter("(&(Name=bar) (port>=7))").compile().match(snapshot));
+        assertTrue(new Filter("(port=80)").match(map));
+    }
+
+    @Test
+    public void testFindRequiredRanges() throws Exception {
+        Map<String, double[]> ranges = new Filter("(&(X>=1) (x<=5) (y<=2) (z>=a))").findRequiredRanges();
+        assertEquals(2, ranges.size());
+        assertEquals(1.0, ranges.get("x")[0]);
+        assertEquals(5.0, ranges.get("x")[1]);
+        assertEquals(Double.NEGATIVE_INFINITY, ranges.get("y")[0]);
+        assertEquals(2.0, ranges.get("y")[1]);
+
+        ranges = new Filter("(|(x=3) (&(x>=7) (y=1)))").findRequiredRanges();
+        assertEquals(1, ranges.size());
+        assertEquals(3.0, ranges.get("x")[0]);
+        assertEquals(Double.POSITIVE_INFINITY, ranges.get("x")[1]);
+
+        assertTrue(new Filter("(!(x>=1))").findRequiredRanges().isEmpty());
+        assertTrue(new Filter("(|(x>=1) (y>=1))").findRequiredRanges().isEmpty());
+
+        Set<String> numeric = new HashSet<String>();
+        numeric.add("x");
+        Filter filter = new Filter("(X>=9)");
+        Map<String, String> map = new HashMap<String, String>();
+        map.put("x", "10");
+        assertFalse(filter.match(map));
+        assertTrue(filter.compile(numeric).match(map));
+        map.put("x", "ten");
+        assertFalse(filter.compile(numeric).match(map));
+    }
+
+    @Test
+    public void testFindRequiredAttributes() throws Exception {
+        Set<String> required = new Filter("(&(X=y) (z>=3) (w=*) (v=a*))").findRequiredAttributes();
+        assertEquals(4, required.size());
+        assertTrue(required.contains("x"));
+        assertTrue(required.contains("z"));
+        assertTrue(required.contains("w"));
+        assertTrue(required.contains("v"));
+
+        required = new Filter("(|(&(x=y) (z=a)) (x=*))").findRequiredAttributes();
+        assertEquals(1, required.size());
+        assertTrue(required.contains("x"));
+
+        assertTrue(new Filter("(!(x=y))").findRequiredAttributes().isEmpty());
+    }
 }
@@ -0,0 +1,57 @@
+/** (C) Copyright 2014 Chiral Behaviors, All Rights Reserved
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.hellblazer.slp;
+
+import static junit.framework.Assert.assertEquals;
+import static junit.framework.Assert.assertTrue;
+
+import org.junit.Test;
+
+/**
+ * @author hhildebrand
+ *
+ */
+public class HistogramTest {
+
+    @Test
+    public void testBuckets() {
+        long previous = -1;
+        for (int bucket = 0; bucket < 248; bucket++) {
+            long upper = Histogram.upperBoundOf(bucket);
+            assertEquals(bucket, Histogram.bucketOf(upper));
+            assertEquals(bucket, Histogram.bucketOf(previous + 1));
+            previous = upper;
+        }
+        assertEquals(Long.MAX_VALUE, previous);
+    }
+
+    @Test
+    public void testPercentiles() {
+        Histogram histogram = new Histogram();
+        assertEquals(0, histogram.getPercentile(99));
+        for (long value = 1; value <= 1000; value++) {
+            histogram.record(value);
+        }
+        assertEquals(1000, histogram.getCount());
+        assertEquals(500500, histogram.getTotal());
+        assertEquals(1000, histogram.getMax());
+        assertEquals(500.5, histogram.getMean());
+        long median = histogram.getPercentile(50);
+        assertTrue(median >= 500 && median <= 625);
+        long tail = histogram.getPercentile(99);
+        assertTrue(tail >= 990 && tail <= 1000);
+        assertEquals(1000, histogram.getPercentile(100));
+    }
+}
@@ -0,0 +1,193 @@
+/** (C) Copyright 2014 Chiral Behaviors, All Rights Reserved
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.hellblazer.slp.local;
+
+import static com.hellblazer.slp.ServiceScope.SERVICE_TYPE;
+import static junit.framework.Assert.assertTrue;
+import static org.junit.Assume.assumeTrue;
+
+import java.lang.management.ManagementFactory;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.UUID;
+import java.util.concurrent.Executor;
+
+import org.junit.Before;
+import org.junit.Test;
+
+import com.fasterxml.uuid.Generators;
+import com.hellblazer.slp.CompiledFilter;
+import com.hellblazer.slp.Filter;
+import com.hellblazer.slp.ServiceEvent;
+import com.hellblazer.slp.ServiceEvent.EventType;
+import com.hellblazer.slp.ServiceListener;
+import com.hellblazer.slp.ServiceReference;
+import com.hellblazer.slp.ServiceURL;
+
+/**
+ * Guards the allocation of the hot paths of filters and scopes. Each
+ * operation is warmed up, then the bytes it allocates are measured with the
+ * allocation counter of the current thread, and compared to the recorded
+ * budget of the operation. A budget is the allocation measured when it was
+ * recorded, plus a margin for the variance of the JIT's escape analysis; the
+ * allocation free operations have no margin. An operation exceeding its budget
+ * is a regression, and an operation well under its budget should have its
+ * budget lowered.
+ *
+ * @author hhildebrand
+ *
+ */
+public class AllocationBudgetTest {
+    private static interface Operation {
+        void run() throws Exception;
+    }
+
+    private static final int                      ITERATIONS = 10000;
+    private static final int                      WARMUP     = 20000;
+
+    private com.sun.management.ThreadMXBean       threads;
+    private LocalScope                            localScope;
+    private Map<String, String>                   properties;
+    private ServiceReference                      reference;
+    private UUID                                  registration;
+
+    @Test
+    public void testCompiledFilterMatch() throws Exception {
+        final CompiledFilter compiled = new Filter(
+                                                   "(&(zone=us-east) (tier=web) (version>=2) (owner=*))").compile();
+        assertBudget("CompiledFilter.match(ServiceReference)", 0,
+                     new Operation() {
+                         @Override
+                         public void run() {
+                             compiled.match(reference);
+                         }
+                     });
+    }
+
+    @Test
+    public void testEventDispatch() throws Exception {
+        final ServiceEvent event = new ServiceEvent(EventType.MODIFIED,
+                                                    reference, Long.MAX_VALUE);
+        for (int i = 0; i < 4; i++) {
+            localScope.addServiceListener(new ServiceListener() {
+                @Override
+                public void serviceChanged(ServiceEvent event) {
+                }
+            }, "(" + SERVICE_TYPE + "=service:http)");
+        }
+        assertBudget("LocalScope.serviceChanged(ServiceEvent)", 1536,
+                     new Operation() {
+                         @Override
+                         public void run() {
+                             localScope.serviceChanged(event);
+                         }
+                     });
+    }
+
+    @Test
+    public void testFilterMatch() throws Exception {
+        final Filter filter = new Filter(
+                                         "(&(zone=us-east) (tier=web) (version>=2) (owner=*))");
+        assertBudget("Filter.match(ServiceReference)", 0, new Operation() {
+            @Override
+            public void run() {
+                filter.match(reference);
+            }
+        });
+        assertBudget("Filter.match(Map)", 640, new Operation() {
+            @Override
+            public void run() {
+                filter.match(properties);
+            }
+        });
+    }
+
+    @Test
+    public void testQueries() throws Exception {
+        assertBudget("LocalScope.getServiceReference(String)", 0,
+                     new Operation() {
+                         @Override
+                         public void run() throws Exception {
+                             localScope.getServiceReference("service:http");
+                         }
+                     });
+        assertBudget("LocalScope.getServiceReferences(String, String)", 1024,
+                     new Operation() {
+                         @Override
+                         public void run() throws Exception {
+                             localScope.getServiceReferences("service:http",
+                                                             "(zone=us-east)");
+                         }
+                     });
+        assertBudget("LocalScope.getReference(UUID)", 0, new Operation() {
+            @Override
+            public void run() throws Exception {
+                localScope.getReference(registration);
+            }
+        });
+    }
+
+    @Before
+    public void setUp() throws Exception {
+        assumeTrue(ManagementFactory.getThreadMXBean() instanceof com.sun.management.ThreadMXBean);
+        threads = (com.sun.management.ThreadMXBean) ManagementFactory.getThreadMXBean();
+        assumeTrue(threads.isThreadAllocatedMemorySupported());
+        threads.setThreadAllocatedMemoryEnabled(true);
+
+        properties = new HashMap<String, String>();
+        properties.put("Zone", "us-east");
+        properties.put("Tier", "web");
+        properties.put("Version", "2.4");
+        properties.put("Owner", "ops");
+        localScope = new LocalScope(new Executor() {
+            @Override
+            public void execute(Runnable command) {
+                command.run();
+            }
+        }, Generators.randomBasedGenerator(), Collections.<String> emptySet());
+        registration = localScope.register(new ServiceURL(
+                                                          "service:http://foo.bar:80/"),
+                                           properties);
+        for (int i = 0; i < 100; i++) {
+            Map<String, String> others = new HashMap<String, String>();
+            others.put("zone", "zone-" + i);
+            localScope.register(new ServiceURL("service:http://foo.bar:80/"
+                                               + i), others);
+        }
+        reference = localScope.getReference(registration);
+    }
+
+    /**
+     * Assert that the operation allocates no more than the budget of bytes per
+     * invocation, on average
+     */
+    private void assertBudget(String name, long budget, Operation operation)
+                                                                            throws Exception {
+        for (int i = 0; i < WARMUP; i++) {
+            operation.run();
+        }
+        long thread = Thread.currentThread().getId();
+        long start = threads.getThreadAllocatedBytes(thread);
+        for (int i = 0; i < ITERATIONS; i++) {
+            operation.run();
+        }
+        long perOperation = (threads.getThreadAllocatedBytes(thread) - start)
+                            / ITERATIONS;
+        assertTrue(String.format("%s allocated %s bytes per operation, over its budget of %s",
+                                 name, perOperation, budget),
+                   perOperation <= budget);
+    }
+}
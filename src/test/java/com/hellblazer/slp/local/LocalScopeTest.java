@@ -17,29 +17,64 @@ package com.hellblazer.slp.local;
 import static com.hellblazer.slp.ServiceScope.SERVICE_TYPE;
 import static junit.framework.Assert.assertEquals;
 import static junit.framework.Assert.assertNotNull;
+import static junit.framework.Assert.assertNull;
 import static junit.framework.Assert.assertTrue;
+import static junit.framework.Assert.fail;
+import static org.mockito.Matchers.anyLong;
+import static org.mockito.Matchers.eq;
 import static org.mockito.Mockito.mock;
 import static org.mockito.Mockito.verify;
 import static org.mockito.Mockito.verifyNoMoreInteractions;
 
+import java.lang.management.ManagementFactory;
+import java.net.MalformedURLException;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
 import java.util.HashMap;
 import java.util.HashSet;
+import java.util.Iterator;
 import java.util.List;
+import java.util.Map;
+import java.util.Queue;
 import java.util.Set;
+import java.util.Spliterator;
 import java.util.UUID;
+import java.util.concurrent.CountDownLatch;
 import java.util.concurrent.Executor;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.Consumer;
+
+import javax.management.JMX;
+import javax.management.MBeanServer;
+import javax.management.ObjectName;
 
 import org.junit.Test;
 import org.mockito.ArgumentCaptor;
 import org.mockito.internal.verification.Times;
 
 import com.fasterxml.uuid.Generators;
+import com.hellblazer.slp.BatchServiceListener;
+import com.hellblazer.slp.Filter;
+import com.hellblazer.slp.InvalidSyntaxException;
+import com.hellblazer.slp.ResyncServiceListener;
+import com.hellblazer.slp.ScopeMetrics;
+import com.hellblazer.slp.ScopeMetrics.Operation;
+import com.hellblazer.slp.ServiceChanges;
+import com.hellblazer.slp.ServiceDescription;
 import com.hellblazer.slp.ServiceEvent;
 import com.hellblazer.slp.ServiceEvent.EventType;
 import com.hellblazer.slp.ServiceListener;
 import com.hellblazer.slp.ServiceReference;
 import com.hellblazer.slp.ServiceScope;
 import com.hellblazer.slp.ServiceURL;
+import com.hellblazer.slp.StripedScopeMetrics;
+import com.hellblazer.slp.local.QueryPlan.AccessPath;
 
 /**
  * @author hhildebrand
@@ -122,4 +157,1747 @@ public class LocalScopeTest {
         assertEquals(1, references.size());
         assertEquals(url2, references.get(0).getUrl());
     }
+
+    @Test
+    public void testAttributeQueries() throws Exception {
+        Executor executor = new Executor() {
+            @Override
+            public void execute(Runnable command) {
+                command.run();
+            }
+        };
+
+        ServiceScope localScope = new LocalScope(
+                                                 executor,
+                                                 Generators.randomBasedGenerator());
+        ServiceURL url1 = new ServiceURL("service:http://foo.bar/one");
+        ServiceURL url2 = new ServiceURL("service:http://foo.bar/two");
+        ServiceURL url3 = new ServiceURL("service:ftp://foo.bar/three");
+        HashMap<String, String> properties = new HashMap<String, String>();
+        properties.put("group", "A");
+        UUID reference1 = localScope.register(url1, properties);
+        properties.put("group", "B");
+        localScope.register(url2, properties);
+        localScope.register(url3, properties);
+
+        List<ServiceReference> references = localScope.getServiceReferences("service:http",
+                                                                            "(group=A)");
+        assertEquals(1, references.size());
+        assertEquals(url1, references.get(0).getUrl());
+
+        references = localScope.getServiceReferences(null, "(group=B)");
+        assertEquals(2, references.size());
+
+        references = localScope.getServiceReferences(null,
+                                                     "(|(group=A) (group=B))");
+        assertEquals(3, references.size());
+
+        references = localScope.getServiceReferences("service:http",
+                                                     "(group=C)");
+        assertEquals(0, references.size());
+
+        properties.put("group", "C");
+        localScope.setProperties(reference1, properties);
+        references = localScope.getServiceReferences("service:http",
+                                                     "(group=A)");
+        assertEquals(0, references.size());
+        references = localScope.getServiceReferences("service:http",
+                                                     "(group=C)");
+        assertEquals(1, references.size());
+        assertEquals(url1, references.get(0).getUrl());
+
+        localScope.unregister(reference1);
+        references = localScope.getServiceReferences("service:http",
+                                                     "(group=C)");
+        assertEquals(0, references.size());
+        assertNull(localScope.getServiceReference("service:gopher"));
+    }
+
+    @Test
+    public void testListenerDispatch() throws Exception {
+        Executor executor = new Executor() {
+            @Override
+            public void execute(Runnable command) {
+                command.run();
+            }
+        };
+        class Recorder implements ServiceListener {
+            final List<ServiceEvent> events = new ArrayList<ServiceEvent>();
+
+            @Override
+            public void serviceChanged(ServiceEvent event) {
+                events.add(event);
+            }
+        }
+
+        ServiceScope localScope = new LocalScope(
+                                                 executor,
+                                                 Generators.randomBasedGenerator());
+        Recorder byType = new Recorder();
+        Recorder byGroup = new Recorder();
+        Recorder byPresence = new Recorder();
+        Recorder byNegation = new Recorder();
+        localScope.addServiceListener(byType, "(" + SERVICE_TYPE
+                                              + "=service:http)");
+        localScope.addServiceListener(byGroup, "(|(group=A) (group=B))");
+        localScope.addServiceListener(byPresence, "(group=*)");
+        localScope.addServiceListener(byNegation, "(!(group=A))");
+
+        HashMap<String, String> properties = new HashMap<String, String>();
+        properties.put("group", "A");
+        UUID registration = localScope.register(new ServiceURL(
+                                                               "service:http://foo.bar/one"),
+                                                properties);
+        localScope.register(new ServiceURL("service:ftp://foo.bar/two"),
+                            new HashMap<String, String>());
+        properties.put("group", "C");
+        localScope.setProperties(registration, properties);
+
+        assertEquals(2, byType.events.size());
+        assertEquals(1, byGroup.events.size());
+        assertEquals(EventType.REGISTERED, byGroup.events.get(0).getType());
+        assertEquals(2, byPresence.events.size());
+        assertEquals(2, byNegation.events.size());
+        assertEquals(EventType.REGISTERED, byNegation.events.get(0).getType());
+        assertEquals(EventType.MODIFIED, byNegation.events.get(1).getType());
+
+        localScope.removeServiceListener(byGroup);
+        localScope.removeServiceListener(byPresence, "(group=*)");
+        localScope.unregister(registration);
+        assertEquals(3, byType.events.size());
+        assertEquals(1, byGroup.events.size());
+        assertEquals(2, byPresence.events.size());
+    }
+
+    @Test
+    public void testOrderedDelivery() throws Exception {
+        final int count = 1000;
+        final CountDownLatch delivered = new CountDownLatch(count);
+        final AtomicInteger concurrent = new AtomicInteger();
+        final List<UUID> registrations = new ArrayList<UUID>();
+        final List<ServiceEvent> events = new ArrayList<ServiceEvent>();
+        final AtomicInteger overlaps = new AtomicInteger();
+        ServiceListener listener = new ServiceListener() {
+            @Override
+            public void serviceChanged(ServiceEvent event) {
+                if (concurrent.incrementAndGet() != 1) {
+                    overlaps.incrementAndGet();
+                }
+                events.add(event);
+                concurrent.decrementAndGet();
+                delivered.countDown();
+            }
+        };
+        ExecutorService executor = Executors.newFixedThreadPool(4);
+        try {
+            ServiceScope localScope = new LocalScope(
+                                                     executor,
+                                                     Generators.randomBasedGenerator());
+            localScope.addServiceListener(listener, "(" + SERVICE_TYPE
+                                                    + "=service:http)");
+            for (int i = 0; i < count; i++) {
+                registrations.add(localScope.register(new ServiceURL(
+                                                                     "service:http://foo.bar/"
+                                                                             + i),
+                                                      new HashMap<String, String>()));
+            }
+            assertTrue(delivered.await(30, TimeUnit.SECONDS));
+        } finally {
+            executor.shutdownNow();
+        }
+        assertEquals(0, overlaps.get());
+        assertEquals(count, events.size());
+        for (int i = 0; i < count; i++) {
+            assertEquals(registrations.get(i),
+                         events.get(i).getReference().getRegistration());
+        }
+    }
+
+    @Test
+    public void testBatchDelivery() throws Exception {
+        final Queue<Runnable> tasks = new ArrayDeque<Runnable>();
+        Executor executor = new Executor() {
+            @Override
+            public void execute(Runnable command) {
+                tasks.add(command);
+            }
+        };
+        final List<List<ServiceEvent>> batches = new ArrayList<List<ServiceEvent>>();
+        BatchServiceListener listener = new BatchServiceListener() {
+            @Override
+            public void serviceChanged(List<ServiceEvent> events) {
+                batches.add(events);
+            }
+
+            @Override
+            public void serviceChanged(ServiceEvent event) {
+                throw new IllegalStateException("Expected batched delivery");
+            }
+        };
+
+        ServiceScope localScope = new LocalScope(
+                                                 executor,
+                                                 Generators.randomBasedGenerator());
+        localScope.addServiceListener(listener, "(" + SERVICE_TYPE
+                                                + "=service:http)");
+        UUID one = localScope.register(new ServiceURL(
+                                                      "service:http://foo.bar/one"),
+                                       new HashMap<String, String>());
+        localScope.setProperties(one, new HashMap<String, String>());
+        UUID two = localScope.register(new ServiceURL(
+                                                      "service:http://foo.bar/two"),
+                                       new HashMap<String, String>());
+        localScope.unregister(two);
+        UUID three = localScope.register(new ServiceURL(
+                                                        "service:http://foo.bar/three"),
+                                         new HashMap<String, String>());
+        assertEquals(1, tasks.size());
+        tasks.remove().run();
+        assertEquals(1, batches.size());
+        List<ServiceEvent> batch = batches.get(0);
+        assertEquals(2, batch.size());
+        assertEquals(EventType.REGISTERED, batch.get(0).getType());
+        assertEquals(one, batch.get(0).getReference().getRegistration());
+        assertEquals(EventType.REGISTERED, batch.get(1).getType());
+        assertEquals(three, batch.get(1).getReference().getRegistration());
+
+        localScope.setProperties(one, new HashMap<String, String>());
+        localScope.setProperties(three, new HashMap<String, String>());
+        localScope.setProperties(one, new HashMap<String, String>());
+        localScope.unregister(three);
+        tasks.remove().run();
+        assertTrue(tasks.isEmpty());
+        assertEquals(2, batches.size());
+        batch = batches.get(1);
+        assertEquals(2, batch.size());
+        assertEquals(EventType.MODIFIED, batch.get(0).getType());
+        assertEquals(one, batch.get(0).getReference().getRegistration());
+        assertEquals(EventType.UNREGISTERED, batch.get(1).getType());
+        assertEquals(three, batch.get(1).getReference().getRegistration());
+    }
+
+    @Test
+    public void testBulkRegistration() throws Exception {
+        final Queue<Runnable> tasks = new ArrayDeque<Runnable>();
+        Executor executor = new Executor() {
+            @Override
+            public void execute(Runnable command) {
+                tasks.add(command);
+            }
+        };
+        final List<ServiceEvent> events = new ArrayList<ServiceEvent>();
+        ServiceListener listener = new ServiceListener() {
+            @Override
+            public void serviceChanged(ServiceEvent event) {
+                events.add(event);
+            }
+        };
+        ServiceScope localScope = new LocalScope(
+                                                 executor,
+                                                 Generators.randomBasedGenerator());
+        localScope.addServiceListener(listener, "(group=A)");
+
+        List<ServiceDescription> batch = new ArrayList<ServiceDescription>();
+        List<ServiceURL> urls = new ArrayList<ServiceURL>();
+        for (int i = 0; i < 10; i++) {
+            ServiceURL url = new ServiceURL("service:http://foo.bar/" + i);
+            urls.add(url);
+            Map<String, String> properties = new HashMap<String, String>();
+            properties.put("group", i % 2 == 0 ? "A" : "B");
+            batch.add(new ServiceDescription(url, properties));
+        }
+        // a repeated URL is a distinct service
+        urls.add(new ServiceURL("service:http://foo.bar/0"));
+        batch.add(new ServiceDescription(urls.get(10), null));
+        List<UUID> registrations = localScope.registerAll(batch);
+        assertEquals(11, registrations.size());
+        for (int i = 0; i < urls.size(); i++) {
+            assertEquals(urls.get(i),
+                         localScope.getReference(registrations.get(i)).getUrl());
+        }
+        assertTrue(!registrations.get(0).equals(registrations.get(10)));
+        assertEquals(5, localScope.getServiceReferences(null, "(group=A)").size());
+        assertEquals(11,
+                     localScope.getServiceReferences("service:http", null).size());
+        assertEquals(1, tasks.size());
+        tasks.remove().run();
+        assertEquals(5, events.size());
+        for (int i = 0; i < 5; i++) {
+            assertEquals(EventType.REGISTERED, events.get(i).getType());
+            assertEquals(registrations.get(i * 2),
+                         events.get(i).getReference().getRegistration());
+        }
+
+        localScope.unregisterAll(registrations.subList(0, 4));
+        assertEquals(3, localScope.getServiceReferences(null, "(group=A)").size());
+        assertEquals(7,
+                     localScope.getServiceReferences("service:http", null).size());
+        tasks.remove().run();
+        assertEquals(7, events.size());
+        assertEquals(EventType.UNREGISTERED, events.get(5).getType());
+        assertEquals(registrations.get(0),
+                     events.get(5).getReference().getRegistration());
+        assertEquals(registrations.get(2),
+                     events.get(6).getReference().getRegistration());
+    }
+
+    @Test
+    public void testPropertySnapshots() throws Exception {
+        ServiceScope localScope = new LocalScope(
+                                                 new Executor() {
+                                                     @Override
+                                                     public void execute(Runnable command) {
+                                                         command.run();
+                                                     }
+                                                 },
+                                                 Generators.randomBasedGenerator());
+        Map<String, String> properties = new HashMap<String, String>();
+        properties.put("b", "2");
+        properties.put("a", "1");
+        UUID registration = localScope.register(new ServiceURL(
+                                                               "service:http://foo.bar/"),
+                                                properties);
+        properties.put("a", "changed");
+        ServiceReference reference = localScope.getReference(registration);
+        Map<String, String> snapshot = reference.getProperties();
+        assertEquals(1, reference.getVersion());
+        assertEquals("1", snapshot.get("a"));
+        assertEquals("2", snapshot.get("b"));
+        assertEquals(registration.toString(),
+                     snapshot.get(ServiceScope.SERVICE_REGISTRATION));
+        assertEquals(4, snapshot.size());
+        assertTrue(snapshot == reference.getProperties());
+        try {
+            snapshot.put("c", "3");
+            fail("Snapshot must be immutable");
+        } catch (UnsupportedOperationException e) {
+            // expected
+        }
+
+        properties = new HashMap<String, String>();
+        properties.put("c", "3");
+        localScope.setProperties(registration, properties);
+        assertEquals(2, reference.getVersion());
+        assertEquals("3", reference.getProperties().get("c"));
+        assertNull(reference.getProperties().get("a"));
+        assertEquals(reference.getUrl().getServiceType().toString(),
+                     reference.getProperties().get(SERVICE_TYPE));
+        assertEquals("1", snapshot.get("a"));
+        assertNull(snapshot.get("c"));
+    }
+
+    @Test
+    public void testNumericRanges() throws Exception {
+        final List<ServiceEvent> events = new ArrayList<ServiceEvent>();
+        Set<String> numeric = new HashSet<String>();
+        numeric.add("Load");
+        ServiceScope localScope = new LocalScope(
+                                                 new Executor() {
+                                                     @Override
+                                                     public void execute(Runnable command) {
+                                                         command.run();
+                                                     }
+                                                 },
+                                                 Generators.randomBasedGenerator(),
+                                                 numeric);
+        localScope.addServiceListener(new ServiceListener() {
+            @Override
+            public void serviceChanged(ServiceEvent event) {
+                events.add(event);
+            }
+        }, "(load>=0.6)");
+        String[] loads = { "0.25", "0.5", "0.75", "10", "abc", "-0" };
+        Map<String, UUID> registrations = new HashMap<String, UUID>();
+        for (String load : loads) {
+            Map<String, String> properties = new HashMap<String, String>();
+            properties.put("LOAD", load);
+            registrations.put(load,
+                              localScope.register(new ServiceURL(
+                                                                 "service:http://foo.bar/"
+                                                                         + load),
+                                                  properties));
+        }
+        assertEquals(2, events.size());
+        assertLoads(localScope, "(load<=0.5)", "0.25", "0.5", "-0");
+        assertLoads(localScope, "(load>=2)", "10");
+        assertLoads(localScope, "(load<=0)", "-0");
+        assertLoads(localScope, "(&(load>=0.3) (load<=0.6))", "0.5");
+        assertLoads(localScope, "(&(load>=0.6) (load<=0.3))");
+        assertLoads(localScope, "(|(load<=0.1) (load>=5))", "-0", "10");
+        assertLoads(localScope, "(load>=a)", "abc");
+
+        Map<String, String> properties = new HashMap<String, String>();
+        properties.put("load", "0.1");
+        localScope.setProperties(registrations.get("10"), properties);
+        assertLoads(localScope, "(load>=2)");
+        assertLoads(localScope, "(load<=0.2)", "-0", "0.1");
+        localScope.unregister(registrations.get("-0"));
+        assertLoads(localScope, "(load<=0.2)", "0.1");
+    }
+
+    private void assertLoads(ServiceScope scope, String query,
+                             String... expected) throws Exception {
+        Set<String> loads = new HashSet<String>();
+        for (ServiceReference reference : scope.getServiceReferences(null,
+                                                                     query)) {
+            String load = reference.getProperties().get("LOAD");
+            loads.add(load == null ? reference.getProperties().get("load")
+                                  : load);
+        }
+        assertEquals(query, new HashSet<String>(Arrays.asList(expected)),
+                     loads);
+    }
+
+    @Test
+    public void testServiceTypeLookup() throws Exception {
+        ServiceScope localScope = new LocalScope(
+                                                 new Executor() {
+                                                     @Override
+                                                     public void execute(Runnable command) {
+                                                         command.run();
+                                                     }
+                                                 },
+                                                 Generators.randomBasedGenerator());
+        String[] urls = { "service:login:ftp://foo.bar/",
+                "service:login:telnet://foo.bar/", "service:login://foo.bar/",
+                "service:http://foo.bar/", "http://foo.bar/" };
+        for (int i = 0; i < urls.length; i++) {
+            Map<String, String> properties = new HashMap<String, String>();
+            properties.put("group", i % 2 == 0 ? "A" : "B");
+            localScope.register(new ServiceURL(urls[i]), properties);
+        }
+        assertEquals(3, localScope.getServiceReferences("service:login", null).size());
+        assertEquals(2,
+                     localScope.getServiceReferences("service:login", "(group=A)").size());
+        assertEquals(1,
+                     localScope.getServiceReferences("service:login:ftp", null).size());
+        assertEquals("service:login:telnet",
+                     localScope.getServiceReference("service:login:telnet").getUrl().getServiceType().toString());
+        assertEquals(5, localScope.getServiceReferences("*", null).size());
+        assertEquals(5, localScope.getServiceReferences(null, null).size());
+        assertEquals(3, localScope.getServiceReferences(null, "(group=A)").size());
+        assertEquals(2,
+                     localScope.getServiceReferences("service:login:*", null).size());
+        assertEquals(4, localScope.getServiceReferences("service:*", null).size());
+        assertEquals(1, localScope.getServiceReferences("http", null).size());
+        assertTrue(localScope.getServiceReferences("service:ftp", null).isEmpty());
+        assertNull(localScope.getServiceReference("service:ftp"));
+    }
+
+    @Test
+    public void testServiceSelection() throws Exception {
+        ServiceScope localScope = new LocalScope(
+                                                 new Executor() {
+                                                     @Override
+                                                     public void execute(Runnable command) {
+                                                         command.run();
+                                                     }
+                                                 },
+                                                 Generators.randomBasedGenerator());
+        UUID backup = localScope.register(new ServiceURL(
+                                                         "service:login:ftp://backup/",
+                                                         (byte) 100, (byte) 2),
+                                          null);
+        UUID heavy = localScope.register(new ServiceURL(
+                                                        "service:login:ftp://heavy/",
+                                                        (byte) 3, (byte) 1),
+                                         null);
+        UUID light = localScope.register(new ServiceURL(
+                                                        "service:login:telnet://light/",
+                                                        (byte) 1, (byte) 1),
+                                         null);
+        UUID idle = localScope.register(new ServiceURL(
+                                                       "service:login:telnet://idle/",
+                                                       (byte) 0, (byte) 1),
+                                        null);
+        int[] counts = new int[3];
+        for (int i = 0; i < 4000; i++) {
+            UUID selected = localScope.getServiceReference("service:login").getRegistration();
+            assertTrue(!selected.equals(backup));
+            counts[selected.equals(heavy) ? 0 : selected.equals(light) ? 1 : 2]++;
+        }
+        // draws 0..4: the idle service takes 0, heavy 1-3 and light 4
+        assertTrue(counts[0] > counts[1] + counts[2]);
+        assertTrue(counts[1] > 0 && counts[2] > 0);
+        assertEquals(heavy,
+                     localScope.getServiceReference("service:login:ftp").getRegistration());
+
+        localScope.unregister(heavy);
+        localScope.unregister(light);
+        localScope.unregister(idle);
+        assertEquals(backup,
+                     localScope.getServiceReference("service:login").getRegistration());
+        localScope.unregister(backup);
+        assertNull(localScope.getServiceReference("service:login"));
+
+        ServiceReferenceImpl[] members = new ServiceReferenceImpl[3];
+        byte[] weights = { 3, 0, 1 };
+        for (int i = 0; i < members.length; i++) {
+            members[i] = new ServiceReferenceImpl(
+                                                  new ServiceURL(
+                                                                 "service:http://foo.bar/"
+                                                                         + i,
+                                                                 weights[i],
+                                                                 (byte) 0),
+                                                  null, UUID.randomUUID());
+        }
+        ServiceSelector.Candidates candidates = new ServiceSelector.Candidates(
+                                                                               members);
+        assertTrue(members[1] == candidates.select(0));
+        assertTrue(members[0] == candidates.select(1));
+        assertTrue(members[0] == candidates.select(3));
+        assertTrue(members[2] == candidates.select(4));
+
+        ServiceReferenceImpl appended = new ServiceReferenceImpl(
+                                                                 new ServiceURL(
+                                                                                "service:http://foo.bar/3",
+                                                                                (byte) 2,
+                                                                                (byte) 0),
+                                                                 null,
+                                                                 UUID.randomUUID());
+        assertTrue(candidates.appendable(appended));
+        ServiceSelector.Candidates successor = candidates.append(appended);
+        assertEquals(3, candidates.size);
+        assertEquals(4, successor.size);
+        assertTrue(members[2] == successor.select(4));
+        assertTrue(appended == successor.select(5));
+        assertTrue(appended == successor.select(6));
+        assertTrue(!successor.appendable(new ServiceReferenceImpl(
+                                                                  new ServiceURL(
+                                                                                 "service:http://foo.bar/4"),
+                                                                  null,
+                                                                  UUID.randomUUID())));
+    }
+
+    @Test
+    public void testIncrementalServiceSelection() throws Exception {
+        ServiceScope localScope = new LocalScope(
+                                                 new Executor() {
+                                                     @Override
+                                                     public void execute(Runnable command) {
+                                                         command.run();
+                                                     }
+                                                 },
+                                                 Generators.randomBasedGenerator());
+        // each registration lowers the priority, and so replaces the
+        // preferred service, which must be visible to the next selection
+        UUID[] registrations = new UUID[100];
+        for (int i = 0; i < registrations.length; i++) {
+            registrations[i] = localScope.register(new ServiceURL(
+                                                                  "service:http://host-"
+                                                                          + i
+                                                                          + "/",
+                                                                  (byte) 1,
+                                                                  (byte) (registrations.length - i)),
+                                                   null);
+            assertEquals(registrations[i],
+                         localScope.getServiceReference("service:http").getRegistration());
+            localScope.register(new ServiceURL("service:http://spare-" + i
+                                               + "/", (byte) 1, (byte) 127),
+                                null);
+        }
+        for (int i = registrations.length - 1; i > 0; i--) {
+            localScope.unregister(registrations[i]);
+            assertEquals(registrations[i - 1],
+                         localScope.getServiceReference("service:http").getRegistration());
+        }
+    }
+
+    @Test
+    public void testLeases() throws Exception {
+        LocalScope localScope = new LocalScope(
+                                               new Executor() {
+                                                   @Override
+                                                   public void execute(Runnable command) {
+                                                       command.run();
+                                                   }
+                                               },
+                                               Generators.randomBasedGenerator());
+        final List<ServiceEvent> events = new ArrayList<ServiceEvent>();
+        localScope.addServiceListener(new ServiceListener() {
+            @Override
+            public void serviceChanged(ServiceEvent event) {
+                events.add(event);
+            }
+        }, "(" + SERVICE_TYPE + "=service:http)");
+        ServiceURL url = new ServiceURL("service:http://foo.bar/");
+        try {
+            localScope.register(url, null, 0, TimeUnit.SECONDS);
+            fail("Expected a non positive lease to be rejected");
+        } catch (IllegalArgumentException e) {
+            // expected
+        }
+        long start = System.nanoTime();
+        UUID leased = localScope.register(url, null, 1, TimeUnit.SECONDS);
+        UUID permanent = localScope.register(url, null);
+        assertEquals(2, events.size());
+        assertTrue(!localScope.renew(permanent, 10, TimeUnit.SECONDS));
+
+        localScope.expireLeases(start);
+        assertNotNull(localScope.getReference(leased));
+        assertTrue(localScope.renew(leased, 60, TimeUnit.SECONDS));
+        localScope.expireLeases(start + TimeUnit.SECONDS.toNanos(30));
+        assertNotNull(localScope.getReference(leased));
+        assertEquals(2, events.size());
+
+        localScope.expireLeases(System.nanoTime()
+                                + TimeUnit.SECONDS.toNanos(61));
+        assertNull(localScope.getReference(leased));
+        assertNotNull(localScope.getReference(permanent));
+        assertEquals(3, events.size());
+        assertEquals(EventType.UNREGISTERED, events.get(2).getType());
+        assertEquals(leased, events.get(2).getReference().getRegistration());
+        assertTrue(!localScope.renew(leased, 10, TimeUnit.SECONDS));
+
+        UUID cancelled = localScope.register(url, null, 1, TimeUnit.SECONDS);
+        localScope.unregister(cancelled);
+        assertTrue(!localScope.renew(cancelled, 10, TimeUnit.SECONDS));
+        try {
+            localScope.renew(permanent, 0, TimeUnit.SECONDS);
+            fail("Expected a non positive lease to be rejected");
+        } catch (IllegalArgumentException e) {
+            // expected
+        }
+
+        localScope.stop();
+
+        // the leases outstanding when stopped expire once started again
+        localScope = new LocalScope(new Executor() {
+            @Override
+            public void execute(Runnable command) {
+                command.run();
+            }
+        }, Generators.randomBasedGenerator());
+        UUID restarted = localScope.register(url, null, 200,
+                                             TimeUnit.MILLISECONDS);
+        localScope.stop();
+        localScope.start();
+        long deadline = System.currentTimeMillis() + 10000;
+        while (localScope.getReference(restarted) != null
+               && System.currentTimeMillis() < deadline) {
+            Thread.sleep(10);
+        }
+        assertNull(localScope.getReference(restarted));
+        localScope.stop();
+    }
+
+    @Test
+    public void testStreamingQueries() throws Exception {
+        ServiceScope localScope = new LocalScope(
+                                                 new Executor() {
+                                                     @Override
+                                                     public void execute(Runnable command) {
+                                                         command.run();
+                                                     }
+                                                 },
+                                                 Generators.randomBasedGenerator());
+        List<ServiceDescription> services = new ArrayList<ServiceDescription>();
+        for (int i = 0; i < 1000; i++) {
+            Map<String, String> properties = new HashMap<String, String>();
+            properties.put("parity", i % 2 == 0 ? "even" : "odd");
+            services.add(new ServiceDescription(
+                                                new ServiceURL(
+                                                               "service:http://foo.bar/"
+                                                                       + i),
+                                                properties));
+        }
+        localScope.registerAll(services);
+        assertEquals(500,
+                     localScope.getServiceReferences("service:http",
+                                                     "(parity=even)").size());
+
+        Iterator<ServiceReference> page = localScope.iterateServiceReferences("service:http",
+                                                                              "(parity=even)",
+                                                                              490,
+                                                                              50);
+        int count = 0;
+        while (page.hasNext()) {
+            assertEquals("even", page.next().getProperties().get("parity"));
+            count++;
+        }
+        assertEquals(10, count);
+        assertTrue(!localScope.iterateServiceReferences(null, null, 1000, 10).hasNext());
+
+        assertEquals(500,
+                     localScope.streamServiceReferences("service:http",
+                                                        "(parity=odd)").count());
+        assertEquals(1000,
+                     localScope.streamServiceReferences("service:http", null).parallel().count());
+
+        Spliterator<ServiceReference> spliterator = localScope.getServiceReferenceSpliterator("service:http",
+                                                                                              "(parity=odd)");
+        Spliterator<ServiceReference> prefix = spliterator.trySplit();
+        assertNotNull(prefix);
+        final Set<ServiceReference> matched = new HashSet<ServiceReference>();
+        Consumer<ServiceReference> collect = new Consumer<ServiceReference>() {
+            @Override
+            public void accept(ServiceReference reference) {
+                assertTrue(matched.add(reference));
+            }
+        };
+        prefix.forEachRemaining(collect);
+        spliterator.forEachRemaining(collect);
+        assertEquals(500, matched.size());
+    }
+
+    @Test
+    public void testParallelScan() throws Exception {
+        LocalScope localScope = new LocalScope(
+                                               new Executor() {
+                                                   @Override
+                                                   public void execute(Runnable command) {
+                                                       command.run();
+                                                   }
+                                               },
+                                               Generators.randomBasedGenerator());
+        List<ServiceDescription> services = new ArrayList<ServiceDescription>();
+        for (int i = 0; i < 2000; i++) {
+            Map<String, String> properties = new HashMap<String, String>();
+            properties.put("name", "service-" + i);
+            services.add(new ServiceDescription(
+                                                new ServiceURL(
+                                                               i % 2 == 0 ? "service:http://foo.bar/"
+                                                                            + i
+                                                                         : "service:ftp://foo.bar/"
+                                                                           + i),
+                                                properties));
+        }
+        localScope.registerAll(services);
+        localScope.setParallelScanThreshold(Integer.MAX_VALUE);
+        Set<ServiceReference> sequential = new HashSet<ServiceReference>(
+                                                                         localScope.getServiceReferences("service:http",
+                                                                                                         "(name=service-1*)"));
+        localScope.setParallelScanThreshold(16);
+        List<ServiceReference> parallel = localScope.getServiceReferences("service:http",
+                                                                          "(name=service-1*)");
+        assertEquals(555, sequential.size());
+        assertEquals(sequential.size(), parallel.size());
+        assertEquals(sequential, new HashSet<ServiceReference>(parallel));
+        assertEquals(1111, localScope.getServiceReferences(null,
+                                                           "(name=service-1*)").size());
+        try {
+            localScope.setParallelScanThreshold(0);
+            fail("Expected a threshold of zero to be rejected");
+        } catch (IllegalArgumentException e) {
+            // expected
+        }
+    }
+
+    @Test
+    public void testChangesSince() throws Exception {
+        ServiceScope localScope = new LocalScope(
+                                                 new Executor() {
+                                                     @Override
+                                                     public void execute(Runnable command) {
+                                                         command.run();
+                                                     }
+                                                 },
+                                                 Generators.randomBasedGenerator());
+        ServiceChanges changes = localScope.getChangesSince(0);
+        assertEquals(0, changes.getVersion());
+        assertTrue(changes.getAdded().isEmpty());
+
+        UUID kept = localScope.register(new ServiceURL(
+                                                       "service:http://foo.bar/kept"),
+                                        null);
+        UUID modified = localScope.register(new ServiceURL(
+                                                           "service:http://foo.bar/modified"),
+                                            null);
+        UUID removed = localScope.register(new ServiceURL(
+                                                          "service:http://foo.bar/removed"),
+                                           null);
+        changes = localScope.getChangesSince(0);
+        assertEquals(3, changes.getVersion());
+        assertEquals(3, changes.getAdded().size());
+        assertTrue(!changes.isReset());
+        long version = changes.getVersion();
+
+        assertTrue(localScope.getChangesSince(version).getAdded().isEmpty());
+        Map<String, String> properties = new HashMap<String, String>();
+        properties.put("a", "1");
+        localScope.setProperties(modified, properties);
+        localScope.unregister(removed);
+        UUID added = localScope.register(new ServiceURL(
+                                                        "service:http://foo.bar/added"),
+                                         null);
+        UUID transient_ = localScope.register(new ServiceURL(
+                                                             "service:http://foo.bar/transient"),
+                                              null);
+        localScope.unregister(transient_);
+
+        changes = localScope.getChangesSince(version);
+        assertEquals(version + 5, changes.getVersion());
+        assertEquals(1, changes.getAdded().size());
+        assertEquals(added, changes.getAdded().get(0).getRegistration());
+        assertEquals(1, changes.getModified().size());
+        assertEquals(modified, changes.getModified().get(0).getRegistration());
+        assertEquals(version + 1, changes.getModified().get(0).getVersion());
+        assertEquals(1, changes.getRemoved().size());
+        assertEquals(removed, changes.getRemoved().get(0).getRegistration());
+        assertEquals(kept, localScope.getChangesSince(0).getAdded().get(0).getRegistration());
+
+        // forget the removals since the version
+        version = changes.getVersion();
+        List<UUID> registrations = new ArrayList<UUID>();
+        for (int i = 0; i < 5000; i++) {
+            registrations.add(localScope.register(new ServiceURL(
+                                                                 "service:http://foo.bar/"
+                                                                         + i),
+                                                  null));
+        }
+        localScope.unregisterAll(registrations);
+        changes = localScope.getChangesSince(version);
+        assertTrue(changes.isReset());
+        assertEquals(3, changes.getAdded().size());
+        assertTrue(changes.getRemoved().isEmpty());
+    }
+
+    @Test
+    public void testEventJournal() throws Exception {
+        ServiceScope localScope = new LocalScope(
+                                                 new Executor() {
+                                                     @Override
+                                                     public void execute(Runnable command) {
+                                                         command.run();
+                                                     }
+                                                 },
+                                                 Generators.randomBasedGenerator());
+        UUID a = localScope.register(new ServiceURL("service:http://foo.bar/a"),
+                                     null);
+        UUID b = localScope.register(new ServiceURL("service:http://foo.bar/b"),
+                                     null);
+        final List<ServiceEvent> events = new ArrayList<ServiceEvent>();
+        ServiceListener listener = new ServiceListener() {
+            @Override
+            public void serviceChanged(ServiceEvent event) {
+                events.add(event);
+            }
+        };
+        String query = "(" + SERVICE_TYPE + "=service:http)";
+        localScope.addServiceListener(listener, query);
+        assertEquals(2, events.size());
+        assertEquals(2, events.get(1).getSequence());
+        long last = events.get(1).getSequence();
+
+        localScope.removeServiceListener(listener, query);
+        events.clear();
+        localScope.setProperties(a, new HashMap<String, String>());
+        UUID c = localScope.register(new ServiceURL("service:http://foo.bar/c"),
+                                     null);
+        localScope.register(new ServiceURL("service:ftp://foo.bar/d"), null);
+        localScope.unregister(b);
+
+        assertTrue(localScope.addServiceListener(listener, query, last));
+        assertEquals(3, events.size());
+        assertEquals(EventType.MODIFIED, events.get(0).getType());
+        assertEquals(a, events.get(0).getReference().getRegistration());
+        assertEquals(EventType.REGISTERED, events.get(1).getType());
+        assertEquals(c, events.get(1).getReference().getRegistration());
+        assertEquals(EventType.UNREGISTERED, events.get(2).getType());
+        assertEquals(b, events.get(2).getReference().getRegistration());
+        assertEquals(6, events.get(2).getSequence());
+        last = events.get(2).getSequence();
+
+        localScope.removeServiceListener(listener, query);
+        events.clear();
+        for (int i = 0; i < 5000; i++) {
+            localScope.setProperties(a, new HashMap<String, String>());
+        }
+        assertTrue(!localScope.addServiceListener(listener, query, last));
+        assertEquals(2, events.size());
+        for (ServiceEvent event : events) {
+            assertEquals(EventType.REGISTERED, event.getType());
+        }
+
+        // attaching again has no effect, and resumes nothing
+        events.clear();
+        assertTrue(!localScope.addServiceListener(listener, query, last));
+        assertTrue(events.isEmpty());
+    }
+
+    @Test
+    public void testGapFreeAttach() throws Exception {
+        ExecutorService executor = Executors.newFixedThreadPool(2);
+        final ServiceScope localScope = new LocalScope(
+                                                       executor,
+                                                       Generators.randomBasedGenerator());
+        final Set<UUID> seen = new HashSet<UUID>();
+        final List<String> errors = new ArrayList<String>();
+        ServiceListener listener = new ServiceListener() {
+            @Override
+            public void serviceChanged(ServiceEvent event) {
+                UUID registration = event.getReference().getRegistration();
+                synchronized (seen) {
+                    switch (event.getType()) {
+                        case REGISTERED:
+                            if (!seen.add(registration)) {
+                                errors.add("duplicate " + event);
+                            }
+                            break;
+                        case UNREGISTERED:
+                            if (!seen.remove(registration)) {
+                                errors.add("unknown " + event);
+                            }
+                            break;
+                        default:
+                    }
+                }
+            }
+        };
+        final List<ServiceURL> urls = new ArrayList<ServiceURL>();
+        for (int i = 0; i < 4000; i++) {
+            urls.add(new ServiceURL("service:http://foo.bar/" + i));
+        }
+        final CountDownLatch started = new CountDownLatch(1);
+        Thread churn = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                for (int i = 0; i < urls.size(); i++) {
+                    UUID registration = localScope.register(urls.get(i), null);
+                    if (i % 2 == 0) {
+                        localScope.unregister(registration);
+                    }
+                    if (i == 1000) {
+                        started.countDown();
+                    }
+                }
+            }
+        });
+        try {
+            churn.start();
+            started.await();
+            localScope.addServiceListener(listener, "(" + SERVICE_TYPE
+                                                  + "=service:http)");
+            churn.join();
+            Set<UUID> expected = new HashSet<UUID>();
+            for (ServiceReference reference : localScope.getServiceReferences(null,
+                                                                              null)) {
+                expected.add(reference.getRegistration());
+            }
+            assertEquals(2000, expected.size());
+            long deadline = System.currentTimeMillis() + 10000;
+            while (System.currentTimeMillis() < deadline) {
+                synchronized (seen) {
+                    if (seen.equals(expected)) {
+                        break;
+                    }
+                }
+                Thread.sleep(10);
+            }
+            synchronized (seen) {
+                assertEquals(errors.toString(), 0, errors.size());
+                assertEquals(expected, seen);
+            }
+        } finally {
+            executor.shutdownNow();
+        }
+    }
+
+    @Test
+    public void testOverflowPolicies() throws Exception {
+        final Queue<Runnable> tasks = new ArrayDeque<Runnable>();
+        Executor executor = new Executor() {
+            @Override
+            public void execute(Runnable command) {
+                tasks.add(command);
+            }
+        };
+        final List<ServiceEvent> events = new ArrayList<ServiceEvent>();
+        final AtomicInteger resyncs = new AtomicInteger();
+        ResyncServiceListener listener = new ResyncServiceListener() {
+            @Override
+            public void serviceChanged(ServiceEvent event) {
+                events.add(event);
+            }
+
+            @Override
+            public void serviceResync() {
+                resyncs.incrementAndGet();
+                events.clear();
+            }
+        };
+        Set<String> none = Collections.emptySet();
+
+        LocalScope localScope = new LocalScope(executor,
+                                               Generators.randomBasedGenerator(),
+                                               none, 4,
+                                               OverflowPolicy.DROP_OLDEST);
+        localScope.addServiceListener(listener, "(" + SERVICE_TYPE
+                                                  + "=service:http)");
+        List<UUID> registrations = new ArrayList<UUID>();
+        for (int i = 0; i < 10; i++) {
+            registrations.add(localScope.register(new ServiceURL(
+                                                                 "service:http://foo.bar/"
+                                                                         + i),
+                                                  null));
+        }
+        ListenerStatistics statistics = localScope.getListenerStatistics().get(0);
+        assertEquals(4, statistics.getDepth());
+        assertEquals(6, statistics.getDropped());
+        run(tasks);
+        assertEquals(4, events.size());
+        assertEquals(registrations.get(6),
+                     events.get(0).getReference().getRegistration());
+        assertEquals(4, localScope.getListenerStatistics().get(0).getDelivered());
+
+        events.clear();
+        localScope = new LocalScope(executor,
+                                    Generators.randomBasedGenerator(), none, 4,
+                                    OverflowPolicy.COALESCE);
+        localScope.addServiceListener(listener, "(" + SERVICE_TYPE
+                                                  + "=service:http)");
+        UUID registration = localScope.register(new ServiceURL(
+                                                               "service:http://foo.bar/"),
+                                                null);
+        for (int i = 0; i < 10; i++) {
+            Map<String, String> properties = new HashMap<String, String>();
+            properties.put("i", Integer.toString(i));
+            localScope.setProperties(registration, properties);
+        }
+        statistics = localScope.getListenerStatistics().get(0);
+        assertTrue(statistics.getDepth() <= 4);
+        assertEquals(0, statistics.getDropped());
+        assertTrue(statistics.getCoalesced() > 0);
+        run(tasks);
+        ServiceEvent last = events.get(events.size() - 1);
+        assertEquals("9", last.getReference().getProperties().get("i"));
+
+        // an unregistration cancels the pending registration of a full queue
+        events.clear();
+        long coalesced = localScope.getListenerStatistics().get(0).getCoalesced();
+        registrations.clear();
+        for (int i = 0; i < 4; i++) {
+            registrations.add(localScope.register(new ServiceURL(
+                                                                 "service:http://foo.bar/"
+                                                                         + i),
+                                                  null));
+        }
+        localScope.unregister(registrations.get(2));
+        statistics = localScope.getListenerStatistics().get(0);
+        assertEquals(3, statistics.getDepth());
+        assertEquals(coalesced + 2, statistics.getCoalesced());
+        assertEquals(0, statistics.getDropped());
+        run(tasks);
+        assertEquals(3, events.size());
+        for (ServiceEvent event : events) {
+            assertEquals(EventType.REGISTERED, event.getType());
+            assertTrue(!registrations.get(2).equals(event.getReference().getRegistration()));
+        }
+
+        // an event which cannot be coalesced into a full queue resyncs the
+        // listener, rather than losing the change of another service
+        events.clear();
+        localScope.register(new ServiceURL("service:http://foo.bar/4"), null);
+        localScope.register(new ServiceURL("service:http://foo.bar/5"), null);
+        localScope.register(new ServiceURL("service:http://foo.bar/6"), null);
+        localScope.register(new ServiceURL("service:http://foo.bar/7"), null);
+        localScope.register(new ServiceURL("service:http://foo.bar/8"), null);
+        statistics = localScope.getListenerStatistics().get(0);
+        assertEquals(1, statistics.getResyncs());
+        assertEquals(5, statistics.getDropped());
+        assertEquals(0, statistics.getDepth());
+        run(tasks);
+        assertEquals(1, resyncs.get());
+        // the first registration, the three remaining and the five new
+        assertEquals(9, events.size());
+        for (ServiceEvent event : events) {
+            assertEquals(EventType.REGISTERED, event.getType());
+        }
+
+        events.clear();
+        resyncs.set(0);
+        localScope = new LocalScope(executor,
+                                    Generators.randomBasedGenerator(), none, 4,
+                                    OverflowPolicy.RESYNC);
+        localScope.addServiceListener(listener, "(" + SERVICE_TYPE
+                                                  + "=service:http)");
+        for (int i = 0; i < 10; i++) {
+            localScope.register(new ServiceURL("service:http://foo.bar/" + i),
+                                null);
+        }
+        statistics = localScope.getListenerStatistics().get(0);
+        assertEquals(1, statistics.getResyncs());
+        assertEquals(0, statistics.getDepth());
+        run(tasks);
+        assertEquals(1, resyncs.get());
+        assertEquals(10, events.size());
+        for (ServiceEvent event : events) {
+            assertEquals(EventType.REGISTERED, event.getType());
+        }
+        localScope.register(new ServiceURL("service:http://foo.bar/after"),
+                            null);
+        run(tasks);
+        assertEquals(11, events.size());
+    }
+
+    @Test
+    public void testBlockingOverflow() throws Exception {
+        ExecutorService executor = Executors.newSingleThreadExecutor();
+        final LocalScope localScope = new LocalScope(
+                                                     executor,
+                                                     Generators.randomBasedGenerator(),
+                                                     Collections.<String> emptySet(),
+                                                     2, OverflowPolicy.BLOCK);
+        final CountDownLatch gate = new CountDownLatch(1);
+        final AtomicInteger received = new AtomicInteger();
+        localScope.addServiceListener(new ServiceListener() {
+            @Override
+            public void serviceChanged(ServiceEvent event) {
+                try {
+                    gate.await();
+                } catch (InterruptedException e) {
+                    return;
+                }
+                received.incrementAndGet();
+            }
+        }, "(" + SERVICE_TYPE + "=service:http)");
+        final List<ServiceURL> urls = new ArrayList<ServiceURL>();
+        for (int i = 0; i < 10; i++) {
+            urls.add(new ServiceURL("service:http://foo.bar/" + i));
+        }
+        Thread producer = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                for (ServiceURL url : urls) {
+                    localScope.register(url, null);
+                }
+            }
+        });
+        try {
+            producer.start();
+            producer.join(500);
+            assertTrue(producer.isAlive());
+            assertTrue(localScope.getListenerStatistics().get(0).getDepth() <= 2);
+            gate.countDown();
+            producer.join(10000);
+            assertTrue(!producer.isAlive());
+            long deadline = System.currentTimeMillis() + 10000;
+            while (received.get() < 10
+                   && System.currentTimeMillis() < deadline) {
+                Thread.sleep(10);
+            }
+            assertEquals(10, received.get());
+            assertEquals(0, localScope.getListenerStatistics().get(0).getDropped());
+        } finally {
+            executor.shutdownNow();
+        }
+    }
+
+    @Test
+    public void testListenerReaddedWhileDelivering() throws Exception {
+        ExecutorService executor = Executors.newFixedThreadPool(2);
+        final LocalScope localScope = new LocalScope(
+                                                     executor,
+                                                     Generators.randomBasedGenerator());
+        final CountDownLatch gate = new CountDownLatch(1);
+        final CountDownLatch entered = new CountDownLatch(1);
+        final AtomicInteger active = new AtomicInteger();
+        final AtomicInteger maxActive = new AtomicInteger();
+        final List<ServiceEvent> events = new ArrayList<ServiceEvent>();
+        ServiceListener listener = new ServiceListener() {
+            @Override
+            public void serviceChanged(ServiceEvent event) {
+                int now = active.incrementAndGet();
+                if (now > maxActive.get()) {
+                    maxActive.set(now);
+                }
+                entered.countDown();
+                try {
+                    gate.await();
+                } catch (InterruptedException e) {
+                    return;
+                } finally {
+                    synchronized (events) {
+                        events.add(event);
+                    }
+                    active.decrementAndGet();
+                }
+            }
+        };
+        String query = "(" + SERVICE_TYPE + "=service:http)";
+        try {
+            localScope.addServiceListener(listener, query);
+            UUID first = localScope.register(new ServiceURL(
+                                                            "service:http://foo.bar/1"),
+                                             null);
+            assertTrue(entered.await(10, TimeUnit.SECONDS));
+
+            // removed and added again while its mailbox is delivering
+            localScope.removeServiceListener(listener, query);
+            localScope.addServiceListener(listener, query);
+            localScope.register(new ServiceURL("service:http://foo.bar/2"),
+                                null);
+            Thread.sleep(100);
+            gate.countDown();
+            long deadline = System.currentTimeMillis() + 10000;
+            while (System.currentTimeMillis() < deadline) {
+                synchronized (events) {
+                    if (events.size() == 3) {
+                        break;
+                    }
+                }
+                Thread.sleep(10);
+            }
+            assertEquals(1, maxActive.get());
+            synchronized (events) {
+                // the first registration, then the snapshot and the second
+                assertEquals(3, events.size());
+                assertEquals(first,
+                             events.get(0).getReference().getRegistration());
+                assertTrue(events.get(1).getSequence() < events.get(2).getSequence());
+            }
+            assertEquals(1, localScope.getListenerStatistics().size());
+
+            // the mailbox is retired with the last registration, once idle
+            localScope.removeServiceListener(listener, query);
+            deadline = System.currentTimeMillis() + 10000;
+            while (!localScope.getListenerStatistics().isEmpty()
+                   && System.currentTimeMillis() < deadline) {
+                Thread.sleep(10);
+            }
+            assertTrue(localScope.getListenerStatistics().isEmpty());
+        } finally {
+            executor.shutdownNow();
+        }
+    }
+
+    @Test
+    public void testQueriesDuringModification() throws Exception {
+        Set<String> numeric = new HashSet<String>();
+        numeric.add("load");
+        final LocalScope localScope = new LocalScope(
+                                                     new Executor() {
+                                                         @Override
+                                                         public void execute(Runnable command) {
+                                                             command.run();
+                                                         }
+                                                     },
+                                                     Generators.randomBasedGenerator(),
+                                                     numeric);
+        Map<String, String> properties = new HashMap<String, String>();
+        properties.put("group", "A");
+        properties.put("load", "1");
+        UUID registration = localScope.register(new ServiceURL(
+                                                               "service:http://foo.bar/one"),
+                                                properties);
+        final AtomicBoolean done = new AtomicBoolean();
+        final AtomicInteger misses = new AtomicInteger();
+        Thread reader = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                // the service always matches both queries
+                try {
+                    while (!done.get()) {
+                        if (localScope.getServiceReferences("service:http",
+                                                            "(group=A)").isEmpty()) {
+                            misses.incrementAndGet();
+                        }
+                        if (localScope.getServiceReferences("service:http",
+                                                            "(load>=1)").isEmpty()) {
+                            misses.incrementAndGet();
+                        }
+                    }
+                } catch (InvalidSyntaxException e) {
+                    throw new IllegalStateException(e);
+                }
+            }
+        });
+        reader.start();
+        for (int i = 0; i < 100000; i++) {
+            properties.put("counter", Integer.toString(i));
+            // the same load, spelled differently
+            properties.put("load", i % 2 == 0 ? "1.0" : "1");
+            localScope.setProperties(registration, properties);
+        }
+        done.set(true);
+        reader.join();
+        assertEquals(0, misses.get());
+    }
+
+    @Test
+    public void testUnregisterDuringRegistration() throws Exception {
+        final LocalScope localScope = new LocalScope(
+                                                     new Executor() {
+                                                         @Override
+                                                         public void execute(Runnable command) {
+                                                             command.run();
+                                                         }
+                                                     },
+                                                     Generators.randomBasedGenerator());
+        final int services = 5000;
+        final AtomicBoolean done = new AtomicBoolean();
+        Thread reaper = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                // unregister the services as soon as a query finds them
+                try {
+                    ServiceReference found;
+                    while ((found = localScope.getServiceReference("service:http")) != null
+                           || !done.get()) {
+                        if (found != null) {
+                            localScope.unregister(found.getRegistration());
+                        }
+                    }
+                } catch (InvalidSyntaxException e) {
+                    throw new IllegalStateException(e);
+                }
+            }
+        });
+        reaper.start();
+        for (int i = 0; i < services; i++) {
+            localScope.register(new ServiceURL("service:http://foo.bar/" + i),
+                                null);
+        }
+        done.set(true);
+        reaper.join(30000);
+        assertTrue(!reaper.isAlive());
+        assertNull(localScope.getServiceReference("service:http"));
+        assertTrue(localScope.getServiceReferences("service:http", null).isEmpty());
+    }
+
+    @Test
+    public void testConcurrentChangesDeliveredInSequence() throws Exception {
+        ExecutorService executor = Executors.newFixedThreadPool(4);
+        final LocalScope localScope = new LocalScope(
+                                                     executor,
+                                                     Generators.randomBasedGenerator());
+        final List<Long> sequences = new ArrayList<Long>();
+        localScope.addServiceListener(new ServiceListener() {
+            @Override
+            public void serviceChanged(ServiceEvent event) {
+                synchronized (sequences) {
+                    sequences.add(event.getSequence());
+                }
+            }
+        }, "(" + SERVICE_TYPE + "=service:http)");
+        final int producers = 4;
+        final int changes = 300;
+        List<Thread> threads = new ArrayList<Thread>();
+        for (int p = 0; p < producers; p++) {
+            final int producer = p;
+            threads.add(new Thread(new Runnable() {
+                @Override
+                public void run() {
+                    for (int i = 0; i < changes; i++) {
+                        try {
+                            UUID registration = localScope.register(new ServiceURL(
+                                                                                   "service:http://foo.bar/"
+                                                                                           + producer
+                                                                                           + "/"
+                                                                                           + i),
+                                                                    null);
+                            localScope.setProperties(registration,
+                                                     new HashMap<String, String>());
+                            localScope.unregister(registration);
+                        } catch (MalformedURLException e) {
+                            throw new IllegalStateException(e);
+                        }
+                    }
+                }
+            }));
+        }
+        try {
+            for (Thread thread : threads) {
+                thread.start();
+            }
+            for (Thread thread : threads) {
+                thread.join(30000);
+            }
+            long deadline = System.currentTimeMillis() + 10000;
+            while (System.currentTimeMillis() < deadline) {
+                synchronized (sequences) {
+                    if (sequences.size() == producers * changes * 3) {
+                        break;
+                    }
+                }
+                Thread.sleep(10);
+            }
+            synchronized (sequences) {
+                assertEquals(producers * changes * 3, sequences.size());
+                for (int i = 1; i < sequences.size(); i++) {
+                    assertTrue(String.format("Sequence %s delivered after %s",
+                                             sequences.get(i),
+                                             sequences.get(i - 1)),
+                               sequences.get(i - 1) < sequences.get(i));
+                }
+            }
+        } finally {
+            executor.shutdownNow();
+        }
+    }
+
+    @Test
+    public void testBlockingOverflowFromNotification() throws Exception {
+        // a single notification thread, which would wait on itself
+        ExecutorService executor = Executors.newSingleThreadExecutor();
+        final LocalScope localScope = new LocalScope(
+                                                     executor,
+                                                     Generators.randomBasedGenerator(),
+                                                     Collections.<String> emptySet(),
+                                                     1, OverflowPolicy.BLOCK);
+        final CountDownLatch received = new CountDownLatch(5);
+        localScope.addServiceListener(new ServiceListener() {
+            @Override
+            public void serviceChanged(ServiceEvent event) {
+                for (int i = 0; i < 5; i++) {
+                    try {
+                        localScope.register(new ServiceURL(
+                                                           "service:http://foo.bar/"
+                                                                   + i), null);
+                    } catch (MalformedURLException e) {
+                        throw new IllegalStateException(e);
+                    }
+                }
+            }
+        }, "(" + SERVICE_TYPE + "=service:trigger)");
+        localScope.addServiceListener(new ServiceListener() {
+            @Override
+            public void serviceChanged(ServiceEvent event) {
+                received.countDown();
+            }
+        }, "(" + SERVICE_TYPE + "=service:http)");
+        try {
+            localScope.register(new ServiceURL("service:trigger://foo.bar/"),
+                                null);
+            assertTrue(received.await(10, TimeUnit.SECONDS));
+        } finally {
+            executor.shutdownNow();
+        }
+    }
+
+    @Test
+    public void testBlockingBackpressure() throws Exception {
+        ExecutorService executor = Executors.newSingleThreadExecutor();
+        final LocalScope localScope = new LocalScope(
+                                                     executor,
+                                                     Generators.randomBasedGenerator(),
+                                                     Collections.<String> emptySet(),
+                                                     4, OverflowPolicy.BLOCK);
+        final CountDownLatch gate = new CountDownLatch(1);
+        final AtomicInteger received = new AtomicInteger();
+        localScope.addServiceListener(new ServiceListener() {
+            @Override
+            public void serviceChanged(ServiceEvent event) {
+                try {
+                    gate.await();
+                } catch (InterruptedException e) {
+                    return;
+                }
+                received.incrementAndGet();
+            }
+        }, "(" + SERVICE_TYPE + "=service:http)");
+        int producers = 8;
+        final int registrations = 100;
+        List<Thread> threads = new ArrayList<Thread>();
+        for (int i = 0; i < producers; i++) {
+            final int producer = i;
+            threads.add(new Thread(new Runnable() {
+                @Override
+                public void run() {
+                    for (int j = 0; j < registrations; j++) {
+                        try {
+                            localScope.register(new ServiceURL(
+                                                               "service:http://foo.bar/"
+                                                                       + producer
+                                                                       + "/"
+                                                                       + j),
+                                                null);
+                        } catch (MalformedURLException e) {
+                            throw new IllegalStateException(e);
+                        }
+                    }
+                }
+            }));
+        }
+        try {
+            for (Thread thread : threads) {
+                thread.start();
+            }
+            Thread.sleep(500);
+            // every producer is held back by the blocked listener: the
+            // changes published are those drained for delivery - at most a
+            // notification batch of 32 - queued for the listener, and at most
+            // one awaiting dispatch per producer
+            long published = localScope.getChangesSince(0).getVersion();
+            assertTrue("published " + published,
+                       published <= 32 + 4 + producers);
+            assertTrue(localScope.getListenerStatistics().get(0).getDepth() <= 4);
+            for (Thread thread : threads) {
+                assertTrue(thread.isAlive());
+            }
+            gate.countDown();
+            for (Thread thread : threads) {
+                thread.join(10000);
+                assertTrue(!thread.isAlive());
+            }
+            long deadline = System.currentTimeMillis() + 10000;
+            while (received.get() < producers * registrations
+                   && System.currentTimeMillis() < deadline) {
+                Thread.sleep(10);
+            }
+            assertEquals(producers * registrations, received.get());
+            assertEquals(0, localScope.getListenerStatistics().get(0).getDropped());
+        } finally {
+            executor.shutdownNow();
+        }
+    }
+
+    @Test
+    public void testExplain() throws Exception {
+        Executor executor = new Executor() {
+            @Override
+            public void execute(Runnable command) {
+                command.run();
+            }
+        };
+        LocalScope localScope = new LocalScope(executor,
+                                               Generators.randomBasedGenerator());
+        for (int i = 0; i < 20; i++) {
+            Map<String, String> properties = new HashMap<String, String>();
+            properties.put("zone", "zone-" + i % 4);
+            localScope.register(new ServiceURL((i % 2 == 0 ? "service:http://"
+                                                          : "service:ftp://")
+                                               + "foo.bar/" + i), properties);
+        }
+
+        QueryPlan plan = localScope.explain("service:http", null);
+        assertEquals(AccessPath.TYPE_INDEX, plan.getAccessPath());
+        assertEquals(new Filter("(" + SERVICE_TYPE + "=service:http)"),
+                     plan.getFilter());
+        assertEquals(10, plan.getCandidates());
+        assertEquals(10, plan.getExamined());
+        assertEquals(10, plan.getMatched());
+
+        plan = localScope.explain("service:http", "(zone=zone-1)");
+        assertEquals(AccessPath.ATTRIBUTE_INDEX, plan.getAccessPath());
+        assertTrue(plan.isTypeChecked());
+        assertEquals(5, plan.getExamined());
+        assertEquals(0, plan.getMatched());
+        assertEquals(localScope.getServiceReferences("service:http",
+                                                     "(zone=zone-2)").size(),
+                     localScope.explain("service:http", "(zone=zone-2)").getMatched());
+
+        plan = localScope.explain(null, "(zone=*-3)");
+        assertEquals(AccessPath.FULL_SCAN, plan.getAccessPath());
+        assertTrue(!plan.isTypeChecked());
+        assertTrue(!plan.isParallel());
+        assertEquals(new Filter("(zone=*-3)"), plan.getFilter());
+        assertEquals(20, plan.getExamined());
+        assertEquals(5, plan.getMatched());
+        assertTrue(plan.getParseTime() >= 0 && plan.getExecuteTime() >= 0);
+
+        plan = localScope.explain("*", " ");
+        assertNull(plan.getFilter());
+        assertEquals(20, plan.getMatched());
+    }
+
+    @Test
+    public void testManagementInterface() throws Exception {
+        Executor executor = new Executor() {
+            @Override
+            public void execute(Runnable command) {
+                command.run();
+            }
+        };
+        LocalScope localScope = new LocalScope(executor,
+                                               Generators.randomBasedGenerator());
+        assertNull(localScope.getObjectName());
+        localScope.start();
+        ObjectName name = localScope.getObjectName();
+        assertNotNull(name);
+        MBeanServer server = ManagementFactory.getPlatformMBeanServer();
+        assertTrue(server.isRegistered(name));
+        LocalScopeMXBean bean = JMX.newMXBeanProxy(server, name,
+                                                   LocalScopeMXBean.class);
+
+        ServiceListener listener = mock(ServiceListener.class);
+        String query = "(" + SERVICE_TYPE + "=service:http)";
+        localScope.addServiceListener(listener, query);
+        localScope.addServiceListener(mock(ServiceListener.class), query);
+        UUID registration = localScope.register(new ServiceURL(
+                                                               "service:http://foo.bar/"),
+                                                null);
+        localScope.register(new ServiceURL("service:ftp://foo.bar/"), null);
+        localScope.setProperties(registration, new HashMap<String, String>());
+
+        assertEquals(2, bean.getRegistrationCount());
+        assertEquals(2, bean.getListenerCount());
+        assertEquals(1, bean.getDistinctFilterCount());
+        assertEquals(0, bean.getActiveDispatchThreads());
+        assertEquals(0, bean.getPendingNotifications());
+        assertEquals(-1, bean.getNotificationQueueDepth());
+        assertEquals(Long.valueOf(2),
+                     bean.getEventCounts().get(EventType.REGISTERED.name()));
+        assertEquals(Long.valueOf(1),
+                     bean.getEventCounts().get(EventType.MODIFIED.name()));
+        assertEquals(3, bean.getEventRates().size());
+        assertEquals(2, bean.dumpSlowestListeners(10).size());
+        assertEquals(1, bean.dumpSlowestListeners(1).size());
+        List<String> filters = bean.dumpMostExpensiveFilters(10);
+        assertEquals(1, filters.size());
+        assertTrue(filters.get(0).startsWith(query));
+
+        localScope.stop();
+        assertNull(localScope.getObjectName());
+        assertTrue(!server.isRegistered(name));
+
+        Rate rate = new Rate(0);
+        for (int i = 0; i < 600; i++) {
+            rate.mark();
+        }
+        assertEquals(0.0, rate.getRate(TimeUnit.SECONDS.toNanos(4)));
+        double perSecond = rate.getRate(TimeUnit.SECONDS.toNanos(60));
+        assertEquals(600, rate.getCount());
+        assertTrue(perSecond > 0.0 && perSecond < 10.0);
+    }
+
+    @Test
+    public void testMetrics() throws Exception {
+        Executor executor = new Executor() {
+            @Override
+            public void execute(Runnable command) {
+                command.run();
+            }
+        };
+        LocalScope localScope = new LocalScope(executor,
+                                               Generators.randomBasedGenerator());
+        StripedScopeMetrics metrics = (StripedScopeMetrics) localScope.getMetrics();
+        ServiceListener listener = mock(ServiceListener.class);
+        localScope.addServiceListener(listener, "(" + SERVICE_TYPE
+                                                + "=service:http)");
+        localScope.addServiceListener(listener, "(" + SERVICE_TYPE
+                                                + "=service:ftp)");
+        UUID registration = localScope.register(new ServiceURL(
+                                                               "service:http://foo.bar/"),
+                                                null);
+        localScope.setProperties(registration, new HashMap<String, String>());
+        localScope.getServiceReferences("service:http", null);
+        localScope.getServiceReference("service:http");
+        localScope.unregister(registration);
+
+        assertEquals(2,
+                     metrics.getOperation(Operation.ADD_SERVICE_LISTENER).getCount());
+        assertEquals(1, metrics.getOperation(Operation.REGISTER).getCount());
+        assertEquals(1, metrics.getOperation(Operation.SET_PROPERTIES).getCount());
+        assertEquals(1, metrics.getOperation(Operation.UNREGISTER).getCount());
+        assertEquals(1,
+                     metrics.getOperation(Operation.GET_SERVICE_REFERENCES).getCount());
+        assertEquals(1,
+                     metrics.getOperation(Operation.GET_SERVICE_REFERENCE).getCount());
+        assertEquals(3, metrics.getFilterEvaluations().getCount());
+        assertEquals(3, metrics.getQueued());
+        assertEquals(3, metrics.getDelivered());
+        assertTrue(metrics.getNotificationLatency().getMax() > 0);
+
+        ScopeMetrics recorder = mock(ScopeMetrics.class);
+        localScope.setMetrics(recorder);
+        localScope.register(new ServiceURL("service:ftp://foo.bar/"), null);
+        verify(recorder).queued(1);
+        verify(recorder).operation(eq(Operation.REGISTER), anyLong());
+    }
+
+    @Test
+    public void testSlowListeners() throws Exception {
+        Executor executor = new Executor() {
+            @Override
+            public void execute(Runnable command) {
+                command.run();
+            }
+        };
+        LocalScope localScope = new LocalScope(executor,
+                                               Generators.randomBasedGenerator());
+        localScope.setSlowListenerThreshold(5, TimeUnit.MILLISECONDS);
+        assertEquals(5000,
+                     localScope.getSlowListenerThreshold(TimeUnit.MICROSECONDS));
+        final AtomicInteger sleep = new AtomicInteger(20);
+        ServiceListener slow = new ServiceListener() {
+            @Override
+            public void serviceChanged(ServiceEvent event) {
+                try {
+                    Thread.sleep(sleep.get());
+                } catch (InterruptedException e) {
+                    return;
+                }
+            }
+        };
+        ServiceListener fast = mock(ServiceListener.class);
+        String query = "(" + SERVICE_TYPE + "=service:http)";
+        localScope.addServiceListener(slow, query);
+        localScope.addServiceListener(fast, query);
+        assertTrue(localScope.getSlowListeners().isEmpty());
+
+        localScope.register(new ServiceURL("service:http://foo.bar/"), null);
+        List<ListenerStatistics> slowListeners = localScope.getSlowListeners();
+        assertEquals(1, slowListeners.size());
+        ListenerStatistics statistics = slowListeners.get(0);
+        assertTrue(statistics.getListener() == slow);
+        assertTrue(statistics.isSlow());
+        assertEquals(1, statistics.getSlowInvocations());
+        assertEquals(1, statistics.getInvocations());
+        assertTrue(statistics.getMaxInvocationTime() >= TimeUnit.MILLISECONDS.toNanos(20));
+        assertEquals(Arrays.asList(query), statistics.getFilters());
+
+        sleep.set(0);
+        localScope.register(new ServiceURL("service:http://foo.bar/1"), null);
+        statistics = localScope.getSlowListeners().get(0);
+        assertTrue(!statistics.isSlow());
+        assertEquals(1, statistics.getSlowInvocations());
+        assertEquals(2, statistics.getInvocations());
+    }
+
+    @Test
+    public void testNotificationModes() throws Exception {
+        final List<ServiceURL> urls = new ArrayList<ServiceURL>();
+        for (int i = 0; i < 50; i++) {
+            urls.add(new ServiceURL("service:http://foo.bar/" + i));
+        }
+        for (NotificationMode mode : NotificationMode.values()) {
+            ExecutorService executor;
+            try {
+                executor = mode.newExecutor(4);
+            } catch (UnsupportedOperationException e) {
+                continue; // virtual threads are not available on this JVM
+            }
+            try {
+                LocalScope localScope = new LocalScope(
+                                                       executor,
+                                                       Generators.randomBasedGenerator());
+                final List<List<UUID>> received = new ArrayList<List<UUID>>();
+                final CountDownLatch latch = new CountDownLatch(4 * urls.size());
+                for (int i = 0; i < 4; i++) {
+                    final List<UUID> events = Collections.synchronizedList(new ArrayList<UUID>());
+                    received.add(events);
+                    localScope.addServiceListener(new ServiceListener() {
+                        @Override
+                        public void serviceChanged(ServiceEvent event) {
+                            try {
+                                Thread.sleep(1);
+                            } catch (InterruptedException e) {
+                                return;
+                            }
+                            events.add(event.getReference().getRegistration());
+                            latch.countDown();
+                        }
+                    }, "(" + SERVICE_TYPE + "=service:http)");
+                }
+                List<UUID> registrations = new ArrayList<UUID>();
+                for (ServiceURL url : urls) {
+                    registrations.add(localScope.register(url, null));
+                }
+                assertTrue(mode.toString(), latch.await(30, TimeUnit.SECONDS));
+                for (List<UUID> events : received) {
+                    assertEquals(mode.toString(), registrations, events);
+                }
+            } finally {
+                executor.shutdownNow();
+            }
+        }
+    }
+
+    private void run(Queue<Runnable> tasks) {
+        Runnable task;
+        while ((task = tasks.poll()) != null) {
+            task.run();
+        }
+    }
 }